@@ -8,7 +8,8 @@ import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.Intern
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalSlicedFacet;
 
 /**
- * DI module for registering the facet types with ElasticSearch's serialization mechanisms.
+ * DI module for registering the facet types with ElasticSearch's serialization mechanisms,
+ * and binding the plugin's node-level components.
  * 
  */
 public class DateFacetsModule extends AbstractModule {
@@ -19,6 +20,9 @@ public class DateFacetsModule extends AbstractModule {
         InternalDistinctFacet.registerStreams();
         InternalSlicedFacet.registerStreams();
         InternalSlicedDistinctFacet.registerStreams();
+        bind(DirectPagePool.class).asEagerSingleton();
+        bind(RoundedOrdinalCache.class).asEagerSingleton();
+        bind(SegmentCollectionPool.class).asEagerSingleton();
     }
 
 }
@@ -0,0 +1,207 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Node-wide pool of fixed-size direct (off-heap) memory pages, used to hold the registers
+ * of approximate distinct counts outside the JVM heap.
+ * <p/>
+ * Off-heap storage is disabled by default; set <code>approx.distinct.off_heap: true</code>
+ * in the node settings to enable it. Released pages are kept for reuse, up to
+ * <code>approx.distinct.off_heap.max_pooled_pages</code> of them; any more are freed straight
+ * away, as the garbage collector can take a long time to get round to freeing direct buffers.
+ * JVMs which don't expose a way of doing that leave them to the garbage collector instead.
+ * This class is thread-safe.
+ */
+public class DirectPagePool extends AbstractComponent {
+
+    /** Size of each page, in bytes (1MB). */
+    public static final int PAGE_SIZE = 1 << 20;
+
+    /** Default number of released pages to keep for reuse. */
+    public static final int DEFAULT_MAX_POOLED_PAGES = 64;
+
+    private static final byte[] ZEROS = new byte[8192];
+
+    /**
+     * Frees a direct buffer on Java 9 and later: sun.misc.Unsafe.invokeCleaner(ByteBuffer), or null.
+     */
+    private static final Method __invokeCleaner;
+
+    /**
+     * The sun.misc.Unsafe instance to call {@link #__invokeCleaner} on.
+     */
+    private static final Object __unsafe;
+
+    /**
+     * Gets a direct buffer's cleaner on older JVMs: DirectByteBuffer.cleaner(), or null.
+     */
+    private static final Method __cleaner;
+
+    /**
+     * Frees the memory of a direct buffer's cleaner on older JVMs: sun.misc.Cleaner.clean(), or null.
+     */
+    private static final Method __clean;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch(final Exception e) {
+            invokeCleaner = null;
+        }
+        __invokeCleaner = invokeCleaner;
+        __unsafe = unsafe;
+
+        Method cleaner = null;
+        Method clean = null;
+        if(invokeCleaner == null) {
+            try {
+                cleaner = ByteBuffer.allocateDirect(1).getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch(final Exception e) {
+                cleaner = null;
+            }
+        }
+        __cleaner = cleaner;
+        __clean = clean;
+    }
+
+    private final boolean _enabled;
+
+    private final int _maxPooledPages;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> _pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicInteger _pooled = new AtomicInteger();
+
+    private final AtomicInteger _inUse = new AtomicInteger();
+
+    /**
+     * Create a new pool.
+     *
+     * @param settings the node settings
+     */
+    @Inject
+    public DirectPagePool(final Settings settings) {
+        this(settings, settings.getAsBoolean("approx.distinct.off_heap", false),
+                settings.getAsInt("approx.distinct.off_heap.max_pooled_pages", DEFAULT_MAX_POOLED_PAGES));
+    }
+
+    /**
+     * Create a new pool with explicit configuration.
+     *
+     * @param settings the node settings
+     * @param enabled true if distinct counts should use off-heap pages
+     * @param maxPooledPages the number of released pages to keep for reuse
+     */
+    public DirectPagePool(final Settings settings, final boolean enabled, final int maxPooledPages) {
+        super(settings);
+        _enabled = enabled;
+        _maxPooledPages = maxPooledPages;
+        if(enabled)
+            logger.info("Approximate distinct counts will use off-heap pages, keeping up to {} for reuse", maxPooledPages);
+    }
+
+    /**
+     * Check whether off-heap storage has been enabled.
+     *
+     * @return true if distinct counts should use pages from this pool
+     */
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    /**
+     * Take a zeroed page from the pool, allocating a new one if none are free.
+     *
+     * @return a direct buffer of {@link #PAGE_SIZE} bytes in native byte order
+     */
+    public ByteBuffer acquire() {
+        _inUse.incrementAndGet();
+        final ByteBuffer page = _pool.poll();
+        if(page == null)
+            return ByteBuffer.allocateDirect(PAGE_SIZE).order(ByteOrder.nativeOrder());
+        _pooled.decrementAndGet();
+        page.clear();
+        while(page.hasRemaining()) {
+            page.put(ZEROS, 0, Math.min(ZEROS.length, page.remaining()));
+        }
+        page.clear();
+        return page;
+    }
+
+    /**
+     * Return a page to the pool. It must not be used again by the caller.
+     *
+     * @param page a page obtained from {@link #acquire()}
+     */
+    public void release(final ByteBuffer page) {
+        _inUse.decrementAndGet();
+        if(_pooled.incrementAndGet() <= _maxPooledPages) {
+            _pool.offer(page);
+        } else {
+            _pooled.decrementAndGet();
+            free(page);
+        }
+    }
+
+    /**
+     * Free the native memory of a direct buffer now, if this JVM allows it. Nothing may use the
+     * buffer, or any view of it, afterwards.
+     *
+     * @param buffer the buffer
+     * @return true if it was freed, false if it was left to the garbage collector
+     */
+    static boolean free(final ByteBuffer buffer) {
+        try {
+            if(__invokeCleaner != null) {
+                __invokeCleaner.invoke(__unsafe, buffer);
+                return true;
+            }
+            if(__cleaner != null) {
+                final Object cleaner = __cleaner.invoke(buffer);
+                if(cleaner != null)
+                    __clean.invoke(cleaner);
+                return true;
+            }
+        } catch(final Exception e) {
+            // Leave it to the garbage collector
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of pages currently acquired and not yet released.
+     *
+     * @return the number of pages in use
+     */
+    public int pagesInUse() {
+        return _inUse.get();
+    }
+
+    /**
+     * Get the number of released pages being kept for reuse.
+     *
+     * @return the number of pooled pages
+     */
+    public int pagesPooled() {
+        return _pooled.get();
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.util.ByteBlockPool;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.RecyclingByteBlockAllocator;
+
+/**
+ * Node-wide recycler for the large objects behind distinct counts: the BytesRefHash
+ * of each exact counter, and full-size pages of dense registers. It plays the same role
+ * for these as Elasticsearch's CacheRecycler does for Trove maps.
+ * <p/>
+ * Each recycled hash keeps the first block of its byte pool, which is where almost all
+ * of the garbage from small buckets comes from. Only a bounded number of objects are kept,
+ * and hashes which have grown past {@link #MAX_POOLED_HASH_SIZE} are never kept, as clearing
+ * a hash does not shrink its table; anything else is left for the garbage collector.
+ * This class is thread-safe.
+ */
+public class EstimatorRecycler {
+
+    /** Size of each register page handed out by {@link #popIntPage()}, in ints (1MB). */
+    public static final int INT_PAGE_SIZE = 1 << 18;
+
+    /** Largest number of released hashes to keep for reuse. */
+    public static final int MAX_POOLED_HASHES = 256;
+
+    /** Largest number of entries a released hash may have held and still be kept for reuse. */
+    public static final int MAX_POOLED_HASH_SIZE = 4096;
+
+    /** Largest number of released register pages to keep for reuse. */
+    public static final int MAX_POOLED_PAGES = 16;
+
+    private static final Queue<BytesRefHash> __hashes = new ConcurrentLinkedQueue<BytesRefHash>();
+
+    private static final AtomicInteger __pooledHashes = new AtomicInteger();
+
+    private static final Queue<int[]> __pages = new ConcurrentLinkedQueue<int[]>();
+
+    private static final AtomicInteger __pooledPages = new AtomicInteger();
+
+    private EstimatorRecycler() {}
+
+    /**
+     * Take an empty BytesRefHash from the pool, creating a new one if none are free.
+     *
+     * @return the hash
+     */
+    public static BytesRefHash popBytesRefHash() {
+        final BytesRefHash hash = __hashes.poll();
+        if(hash == null)
+            return new BytesRefHash(new ByteBlockPool(
+                    new RecyclingByteBlockAllocator(ByteBlockPool.BYTE_BLOCK_SIZE, 1)));
+        __pooledHashes.decrementAndGet();
+        return hash;
+    }
+
+    /**
+     * Empty a BytesRefHash and return it to the pool. It must not be used again by the caller.
+     * Hashes which were compacted by {@link BytesRefUtils#process(BytesRefHash, BytesRefUtils.Procedure)}
+     * can be returned too. Hashes holding more than {@link #MAX_POOLED_HASH_SIZE} entries are dropped.
+     *
+     * @param hash a hash obtained from {@link #popBytesRefHash()}
+     */
+    public static void pushBytesRefHash(final BytesRefHash hash) {
+        if(hash.size() > MAX_POOLED_HASH_SIZE)
+            return;
+        if(__pooledHashes.incrementAndGet() <= MAX_POOLED_HASHES) {
+            hash.clear();
+            hash.reinit();
+            __hashes.offer(hash);
+        } else {
+            __pooledHashes.decrementAndGet();
+        }
+    }
+
+    /**
+     * Take a zeroed page of {@link #INT_PAGE_SIZE} ints from the pool, allocating a new one if none are free.
+     *
+     * @return the page
+     */
+    public static int[] popIntPage() {
+        final int[] page = __pages.poll();
+        if(page == null)
+            return new int[INT_PAGE_SIZE];
+        __pooledPages.decrementAndGet();
+        Arrays.fill(page, 0);
+        return page;
+    }
+
+    /**
+     * Return a page to the pool. It must not be used again by the caller.
+     *
+     * @param page a page obtained from {@link #popIntPage()}
+     */
+    public static void pushIntPage(final int[] page) {
+        if(__pooledPages.incrementAndGet() <= MAX_POOLED_PAGES) {
+            __pages.offer(page);
+        } else {
+            __pooledPages.decrementAndGet();
+        }
+    }
+
+    /**
+     * Get the number of released hashes being kept for reuse.
+     *
+     * @return the number of pooled hashes
+     */
+    public static int pooledHashes() {
+        return __pooledHashes.get();
+    }
+
+    /**
+     * Get the number of released register pages being kept for reuse.
+     *
+     * @return the number of pooled pages
+     */
+    public static int pooledPages() {
+        return __pooledPages.get();
+    }
+
+}
@@ -3,6 +3,7 @@ package com.pearson.entech.elasticsearch.plugin.approx;
 import java.util.Collection;
 
 import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.plugins.AbstractPlugin;
@@ -41,6 +42,13 @@ public class FacetPlugin extends AbstractPlugin {
         return modules;
     }
 
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        final Collection<Class<? extends LifecycleComponent>> services = Lists.newArrayList();
+        services.add(SegmentCollectionPool.class);
+        return services;
+    }
+
     @Override
     public void processModule(final Module module) {
         if(module instanceof FacetModule) {
@@ -0,0 +1,163 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * An open-addressing hash set of primitive longs, modelled on Lucene's BytesRefHash.
+ * Each distinct value is given a sequential ID when it is added, so the values can be
+ * iterated over cheaply with {@link #get(int)} from 0 to {@link #size()} - 1.
+ * <p/>
+ * The values are not hashed again, so they should already be well distributed,
+ * e.g. the output of {@link MurmurHash3}.
+ */
+public class LongHash {
+
+    /** Default initial capacity. */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /** Marker for an empty slot in the table. */
+    private static final int EMPTY = -1;
+
+    /**
+     * Values, indexed by ID.
+     */
+    private long[] _values;
+
+    /**
+     * Open-addressing table of IDs, indexed by value hash; EMPTY for unused slots.
+     */
+    private int[] _ids;
+
+    private int _mask;
+
+    private int _size;
+
+    /**
+     * Number of entries at which the table will be doubled.
+     */
+    private int _resizeAt;
+
+    /**
+     * Create a new set with the default capacity.
+     */
+    public LongHash() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a new set.
+     *
+     * @param capacity the number of values to size the set for initially
+     */
+    public LongHash(final int capacity) {
+        int tableSize = DEFAULT_CAPACITY;
+        while(tableSize * 3 / 4 < capacity)
+            tableSize <<= 1;
+        _values = new long[tableSize * 3 / 4];
+        allocateTable(tableSize);
+    }
+
+    /**
+     * Add a value to the set.
+     *
+     * @param value the value
+     * @return the new value's ID, or if the value was already present, -(id + 1)
+     */
+    public int add(final long value) {
+        int slot = slot(value);
+        while(true) {
+            final int id = _ids[slot];
+            if(id == EMPTY)
+                break;
+            if(_values[id] == value)
+                return -(id + 1);
+            slot = (slot + 1) & _mask;
+        }
+        final int id = _size++;
+        if(id == _values.length)
+            _values = ArrayUtil.grow(_values, id + 1);
+        _values[id] = value;
+        _ids[slot] = id;
+        if(_size > _resizeAt)
+            rehash(_ids.length << 1);
+        return id;
+    }
+
+    /**
+     * Look up a value.
+     *
+     * @param value the value
+     * @return the value's ID, or -1 if it's not in the set
+     */
+    public int find(final long value) {
+        int slot = slot(value);
+        while(true) {
+            final int id = _ids[slot];
+            if(id == EMPTY)
+                return -1;
+            if(_values[id] == value)
+                return id;
+            slot = (slot + 1) & _mask;
+        }
+    }
+
+    /**
+     * Get a value by ID.
+     *
+     * @param id the ID, between 0 and size() - 1
+     * @return the value
+     */
+    public long get(final int id) {
+        return _values[id];
+    }
+
+    /**
+     * Get the number of values in the set.
+     *
+     * @return the size
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Remove all values, keeping the allocated memory for reuse.
+     */
+    public void clear() {
+        _size = 0;
+        Arrays.fill(_ids, EMPTY);
+    }
+
+    /**
+     * Get the approximate memory used by this set.
+     *
+     * @return the size in bytes
+     */
+    public long sizeInBytes() {
+        return _values.length * 8L + _ids.length * 4L;
+    }
+
+    private int slot(final long value) {
+        return ((int) (value ^ (value >>> 32))) & _mask;
+    }
+
+    private void allocateTable(final int tableSize) {
+        _ids = new int[tableSize];
+        Arrays.fill(_ids, EMPTY);
+        _mask = tableSize - 1;
+        _resizeAt = tableSize * 3 / 4;
+    }
+
+    private void rehash(final int tableSize) {
+        allocateTable(tableSize);
+        for(int id = 0; id < _size; id++) {
+            int slot = slot(_values[id]);
+            while(_ids[slot] != EMPTY)
+                slot = (slot + 1) & _mask;
+            _ids[slot] = id;
+        }
+    }
+
+}
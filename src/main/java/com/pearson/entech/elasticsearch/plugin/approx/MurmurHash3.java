@@ -0,0 +1,162 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * 64-bit hashing utilities based on Austin Appleby's public domain MurmurHash3 (x64_128 variant).
+ * Estimators which need more than 32 bits of hash, such as HyperLogLog++, should use these
+ * rather than Lucene's 32-bit MurmurHash2.
+ */
+public class MurmurHash3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private static final int SEED = 0x9747b28c;
+
+    private MurmurHash3() {}
+
+    /**
+     * Hash the bytes of a BytesRef to 64 bits. This is the first half of the 128-bit hash.
+     *
+     * @param ref the BytesRef to hash
+     * @return the hash
+     */
+    public static long hash64(final BytesRef ref) {
+        return hash64(ref.bytes, ref.offset, ref.length);
+    }
+
+    /**
+     * Hash a range of a byte array to 64 bits. This is the first half of the 128-bit hash.
+     *
+     * @param bytes the bytes to hash
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @return the hash
+     */
+    public static long hash64(final byte[] bytes, final int offset, final int length) {
+        long h1 = SEED & 0xffffffffL;
+        long h2 = SEED & 0xffffffffL;
+        final int blocks = length >>> 4;
+        int pos = offset;
+
+        for(int i = 0; i < blocks; i++) {
+            long k1 = getLong(bytes, pos);
+            long k2 = getLong(bytes, pos + 8);
+            pos += 16;
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // Tail: deliberate fall-through, as in the reference implementation
+        long k1 = 0;
+        long k2 = 0;
+        switch(length & 15) {
+        case 15:
+            k2 ^= (bytes[pos + 14] & 0xffL) << 48;
+        case 14:
+            k2 ^= (bytes[pos + 13] & 0xffL) << 40;
+        case 13:
+            k2 ^= (bytes[pos + 12] & 0xffL) << 32;
+        case 12:
+            k2 ^= (bytes[pos + 11] & 0xffL) << 24;
+        case 11:
+            k2 ^= (bytes[pos + 10] & 0xffL) << 16;
+        case 10:
+            k2 ^= (bytes[pos + 9] & 0xffL) << 8;
+        case 9:
+            k2 ^= bytes[pos + 8] & 0xffL;
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        case 8:
+            k1 ^= (bytes[pos + 7] & 0xffL) << 56;
+        case 7:
+            k1 ^= (bytes[pos + 6] & 0xffL) << 48;
+        case 6:
+            k1 ^= (bytes[pos + 5] & 0xffL) << 40;
+        case 5:
+            k1 ^= (bytes[pos + 4] & 0xffL) << 32;
+        case 4:
+            k1 ^= (bytes[pos + 3] & 0xffL) << 24;
+        case 3:
+            k1 ^= (bytes[pos + 2] & 0xffL) << 16;
+        case 2:
+            k1 ^= (bytes[pos + 1] & 0xffL) << 8;
+        case 1:
+            k1 ^= bytes[pos] & 0xffL;
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        return h1 + h2;
+    }
+
+    /**
+     * Hash a primitive long to 64 bits, with {@link #fmix64(long)}. As the mixer is bijective,
+     * distinct values always have distinct hashes.
+     *
+     * @param value the value to hash
+     * @return the hash
+     */
+    public static long hash64(final long value) {
+        return fmix64(value);
+    }
+
+    /**
+     * The MurmurHash3 64-bit finalizer. This is a cheap bijective mixer which can be used
+     * to hash a primitive long directly.
+     *
+     * @param k the value to mix
+     * @return the mixed value
+     */
+    public static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLong(final byte[] bytes, final int pos) {
+        return (bytes[pos] & 0xffL)
+                | (bytes[pos + 1] & 0xffL) << 8
+                | (bytes[pos + 2] & 0xffL) << 16
+                | (bytes[pos + 3] & 0xffL) << 24
+                | (bytes[pos + 4] & 0xffL) << 32
+                | (bytes[pos + 5] & 0xffL) << 40
+                | (bytes[pos + 6] & 0xffL) << 48
+                | (bytes[pos + 7] & 0xffL) << 56;
+    }
+
+}
@@ -0,0 +1,282 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.SegmentReader;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalCause;
+import org.elasticsearch.common.cache.RemovalListener;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+/**
+ * Node-wide cache of the tables which map each ordinal of a segment's datetime field
+ * to its rounded timestamp. Segments are immutable, and dashboards tend to ask for the
+ * same interval and time zone over and over, so the same table can be used by many
+ * queries instead of being rebuilt by each one.
+ * <p/>
+ * Tables are keyed by the segment's core cache key, the field name, and a key describing
+ * the rounding parameters, and are only used by segments with the same number of ordinals
+ * as when they were built. The cache holds up to <code>approx.date.ordinal_cache.size</code>
+ * bytes of tables (default 64mb; 0 disables it), evicting the least recently used ones first.
+ * A segment's tables are dropped as soon as it closes. This class is thread-safe.
+ */
+public class RoundedOrdinalCache extends AbstractComponent {
+
+    /** Default largest total size of the cached tables. */
+    public static final ByteSizeValue DEFAULT_SIZE = new ByteSizeValue(64, ByteSizeUnit.MB);
+
+    private final long _maxBytes;
+
+    private final Cache<Key, Table> _cache;
+
+    // The keys of each segment's tables, so they can be dropped without scanning the cache
+    private final ConcurrentMap<Object, Set<Key>> _segmentKeys = ConcurrentCollections.newConcurrentMap();
+
+    private final AtomicLong _sizeInBytes = new AtomicLong();
+
+    private final SegmentReader.CoreClosedListener _onClose = new SegmentReader.CoreClosedListener() {
+        @Override
+        public void onClose(final SegmentReader owner) {
+            invalidate(owner.getCoreCacheKey());
+        }
+    };
+
+    /**
+     * Create a new cache.
+     *
+     * @param settings the node settings
+     */
+    @Inject
+    public RoundedOrdinalCache(final Settings settings) {
+        this(settings, settings.getAsBytesSize("approx.date.ordinal_cache.size", DEFAULT_SIZE).bytes());
+    }
+
+    /**
+     * Create a new cache with an explicit size.
+     *
+     * @param settings the node settings
+     * @param maxBytes the largest total size of the cached tables, or 0 to disable caching
+     */
+    public RoundedOrdinalCache(final Settings settings, final long maxBytes) {
+        super(settings);
+        _maxBytes = maxBytes;
+        _cache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(maxBytes, 1))
+                .weigher(new Weigher<Key, Table>() {
+                    @Override
+                    public int weigh(final Key key, final Table table) {
+                        return table.sizeInBytes();
+                    }
+                })
+                .removalListener(new RemovalListener<Key, Table>() {
+                    @Override
+                    public void onRemoval(final RemovalNotification<Key, Table> notification) {
+                        // Called for replaced tables too, so racing puts of the same key add up
+                        _sizeInBytes.addAndGet(-notification.getValue().sizeInBytes());
+                        if(notification.getCause() != RemovalCause.REPLACED)
+                            forget(notification.getKey());
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Check whether caching has been enabled.
+     *
+     * @return true if tables should be looked up and stored
+     */
+    public boolean isEnabled() {
+        return _maxBytes > 0;
+    }
+
+    /**
+     * Look up the table for a segment.
+     *
+     * @param coreKey the segment's core cache key
+     * @param field the index name of the datetime field
+     * @param rounding a key describing the rounding parameters
+     * @param maxOrd the number of ordinals the segment's field data has now
+     * @return the table, or null if it isn't cached, or was built for a different number of ordinals
+     */
+    public Table get(final Object coreKey, final String field, final String rounding, final int maxOrd) {
+        final Table table = _cache.getIfPresent(new Key(coreKey, field, rounding));
+        return table == null || table.getMaxOrd() != maxOrd ? null : table;
+    }
+
+    /**
+     * Store the table for a segment, to be dropped when the segment closes.
+     * Nothing is stored if the segment has already been closed.
+     *
+     * @param reader the segment
+     * @param field the index name of the datetime field
+     * @param rounding a key describing the rounding parameters
+     * @param table the table, which must not be modified afterwards
+     */
+    public void put(final SegmentReader reader, final String field, final String rounding, final Table table) {
+        // A closed segment's listener has either fired already or never will
+        if(reader.getRefCount() <= 0)
+            return;
+        final Object coreKey = reader.getCoreCacheKey();
+        Set<Key> keys = _segmentKeys.get(coreKey);
+        if(keys == null) {
+            final Set<Key> created = ConcurrentCollections.newConcurrentSet();
+            keys = _segmentKeys.putIfAbsent(coreKey, created);
+            if(keys == null) {
+                keys = created;
+                reader.addCoreClosedListener(_onClose);
+            }
+        }
+        final Key key = new Key(coreKey, field, rounding);
+        keys.add(key);
+        _sizeInBytes.addAndGet(table.sizeInBytes());
+        _cache.put(key, table);
+
+        // If the segment closed while we were putting, invalidate() may have missed the key
+        if(_segmentKeys.get(coreKey) != keys)
+            _cache.invalidate(key);
+    }
+
+    /**
+     * Drop all the tables for a segment.
+     *
+     * @param coreKey the segment's core cache key
+     */
+    public void invalidate(final Object coreKey) {
+        final Set<Key> keys = _segmentKeys.remove(coreKey);
+        if(keys != null)
+            _cache.invalidateAll(keys);
+    }
+
+    /**
+     * Stop tracking the key of an evicted table, unless it has been stored again since.
+     *
+     * @param key the key
+     */
+    private void forget(final Key key) {
+        final Set<Key> keys = _segmentKeys.get(key.coreKey);
+        if(keys != null && !_cache.asMap().containsKey(key))
+            keys.remove(key);
+    }
+
+    /**
+     * Get the number of tables in the cache.
+     *
+     * @return the number of tables
+     */
+    public long size() {
+        return _cache.size();
+    }
+
+    /**
+     * Get the total size of the tables in the cache.
+     *
+     * @return the size in bytes
+     */
+    public long sizeInBytes() {
+        return _sizeInBytes.get();
+    }
+
+    /**
+     * The rounded timestamps of one segment's datetime field, indexed by ordinal.
+     */
+    public static final class Table {
+
+        private final long[] _timestamps;
+
+        private final int[] _ordToTimestampPointers;
+
+        private final int _maxOrd;
+
+        /**
+         * Create a table.
+         *
+         * @param timestamps the distinct rounded timestamps
+         * @param ordToTimestampPointers the index into timestamps of each ordinal's timestamp
+         * @param maxOrd the number of ordinals the table was built for
+         */
+        public Table(final long[] timestamps, final int[] ordToTimestampPointers, final int maxOrd) {
+            _timestamps = timestamps;
+            _ordToTimestampPointers = ordToTimestampPointers;
+            _maxOrd = maxOrd;
+        }
+
+        /**
+         * Get the distinct rounded timestamps.
+         *
+         * @return the timestamps, which must not be modified
+         */
+        public long[] getTimestamps() {
+            return _timestamps;
+        }
+
+        /**
+         * Get the index into {@link #getTimestamps()} of each ordinal's timestamp.
+         *
+         * @return the pointers, which must not be modified
+         */
+        public int[] getOrdToTimestampPointers() {
+            return _ordToTimestampPointers;
+        }
+
+        /**
+         * Get the number of ordinals the table was built for.
+         *
+         * @return the number of ordinals
+         */
+        public int getMaxOrd() {
+            return _maxOrd;
+        }
+
+        /**
+         * Get the memory taken by this table.
+         *
+         * @return the size in bytes
+         */
+        public int sizeInBytes() {
+            return _timestamps.length * 8 + _ordToTimestampPointers.length * 4;
+        }
+
+    }
+
+    private static final class Key {
+
+        final Object coreKey;
+
+        final String field;
+
+        final String rounding;
+
+        Key(final Object coreKey, final String field, final String rounding) {
+            this.coreKey = coreKey;
+            this.field = field;
+            this.rounding = rounding;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(coreKey) * 31 + field.hashCode()) * 31 + rounding.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if(this == obj)
+                return true;
+            if(!(obj instanceof Key))
+                return false;
+            final Key other = (Key) obj;
+            return coreKey == other.coreKey && field.equals(other.field) && rounding.equals(other.rounding);
+        }
+
+    }
+
+}
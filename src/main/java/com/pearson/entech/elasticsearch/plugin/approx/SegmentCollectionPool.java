@@ -0,0 +1,113 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
+
+/**
+ * Node-wide fork/join pool for collecting the segments of a single shard in parallel, for date facets
+ * which ask for it with <code>parallel_segments: true</code>. Requests which don't say use the node's
+ * <code>approx.date.parallel_segments</code> setting (default false). The pool runs at most
+ * <code>approx.date.parallel_segments.threads</code> tasks at a time (default: the number of processors),
+ * shared between all such facets on the node. Its threads are only started when needed, and
+ * the pool is shut down when the node is closed. This class is thread-safe.
+ */
+public class SegmentCollectionPool extends AbstractLifecycleComponent<SegmentCollectionPool> {
+
+    private final boolean _enabledByDefault;
+
+    private final int _threads;
+
+    private final ForkJoinPool _pool;
+
+    /**
+     * Create a new pool.
+     *
+     * @param settings the node settings
+     */
+    @Inject
+    public SegmentCollectionPool(final Settings settings) {
+        this(settings, settings.getAsBoolean("approx.date.parallel_segments", false),
+                settings.getAsInt("approx.date.parallel_segments.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Create a new pool with explicit configuration.
+     *
+     * @param settings the node settings
+     * @param enabledByDefault true if facets which don't say otherwise should collect segments in parallel
+     * @param threads the largest number of tasks to run at once
+     */
+    public SegmentCollectionPool(final Settings settings, final boolean enabledByDefault, final int threads) {
+        super(settings);
+        _enabledByDefault = enabledByDefault;
+        _threads = Math.max(threads, 1);
+        _pool = new ForkJoinPool(_threads);
+        if(enabledByDefault)
+            logger.info("Date facets will collect segments in parallel by default, on up to {} threads", _threads);
+    }
+
+    /**
+     * Check whether facets should collect segments in parallel when they don't say.
+     *
+     * @return true if they should
+     */
+    public boolean isEnabledByDefault() {
+        return _enabledByDefault;
+    }
+
+    /**
+     * Get the largest number of tasks the pool runs at once. There's no point splitting
+     * a facet's work into more tasks than this.
+     *
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return _threads;
+    }
+
+    /**
+     * Run some tasks in the pool, and wait for all of them to finish, even if some fail.
+     *
+     * @param tasks the tasks
+     * @return the result of each task, in the same order
+     * @throws ElasticSearchException if any task failed, or the calling thread was interrupted
+     */
+    public <T> List<T> invokeAll(final List<? extends Callable<T>> tasks) {
+        try {
+            final List<Future<T>> futures = _pool.invokeAll(tasks);
+            final List<T> results = new ArrayList<T>(futures.size());
+            for(final Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticSearchException("Interrupted while collecting segments in parallel", e);
+        } catch(final ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new ElasticSearchException("Unable to collect segments in parallel", e.getCause());
+        }
+    }
+
+    @Override
+    protected void doStart() throws ElasticSearchException {}
+
+    @Override
+    protected void doStop() throws ElasticSearchException {}
+
+    @Override
+    protected void doClose() throws ElasticSearchException {
+        _pool.shutdown();
+    }
+
+}
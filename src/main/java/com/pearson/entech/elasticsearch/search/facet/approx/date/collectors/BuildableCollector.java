@@ -16,4 +16,11 @@ public abstract class BuildableCollector extends Collector {
      */
     public abstract InternalFacet build(String facetName);
 
+    /**
+     * Give back any pooled resources held by this collector, when its facet is never going to be
+     * built, e.g. because the search failed. Calling this more than once has no effect, but it
+     * must not be called after build(), which hands them on to the facet.
+     */
+    public void release() {}
+
 }
@@ -1,14 +1,22 @@
 package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.NumericUtils;
 import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.joda.TimeZoneRounding;
 import org.elasticsearch.common.trove.map.hash.TLongIntHashMap;
 import org.elasticsearch.index.fielddata.AtomicFieldData;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.ordinals.Ordinals;
 import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
 import org.elasticsearch.search.facet.InternalFacet;
 
@@ -26,6 +34,40 @@ public class CountingCollector<V extends AtomicFieldData<? extends ScriptDocValu
      */
     private TLongIntHashMap _counts;
 
+    /**
+     * Counts for the current segment, indexed by datetime ordinal, when its datetime field has ordinals.
+     * These are rounded and folded into _counts at the end of each segment.
+     */
+    private int[] _ordCounts = new int[0];
+
+    /**
+     * Scratch space for folding _ordCounts, indexed by timestamp pointer.
+     */
+    private int[] _pointerCounts = new int[16];
+
+    /**
+     * Scratch space for the datetime ordinals of a block of documents.
+     */
+    private int[] _ordBlock = new int[0];
+
+    /**
+     * Whether anything has been added to _ordCounts since the last fold.
+     */
+    private boolean _ordsCounted = false;
+
+    /**
+     * Whether the current segment is expected to have few hits, so only the ordinals
+     * in _touchedOrds are folded, rather than all of them.
+     */
+    private boolean _sparse = false;
+
+    /**
+     * The ordinals counted in the current segment so far, when it is _sparse.
+     */
+    private int[] _touchedOrds = new int[16];
+
+    private int _touchedCount = 0;
+
     /**
      * Create a new collector.
      * 
@@ -53,39 +95,193 @@ public class CountingCollector<V extends AtomicFieldData<? extends ScriptDocValu
 
     @Override
     public void setNextReader(final AtomicReaderContext context) throws IOException {
+        // Ordinals are only valid within a segment
+        foldOrdCounts();
         super.setNextReader(context);
+        if(hasOrdinals() && _ordCounts.length < Math.max(maxOrd(), 1))
+            _ordCounts = new int[ArrayUtil.oversize(Math.max(maxOrd(), 1), 4)];
+        // Lazily rounded segments would lose most of the benefit to a pass over all their ordinals
+        _sparse = hasOrdinals() && roundsLazily();
     }
 
     @Override
     public void collect(final int doc) throws IOException {
         super.collect(doc);
 
-        if(!hasValueField()) {
+        if(hasOrdinals()) {
+            // Count by ordinal, leaving rounding and hash lookups until the end of the segment
+            _ordsCounted = true;
+            if(!hasValueField()) {
+                while(hasNextTimestamp()) {
+                    countOrd(nextOrd(), 1);
+                }
+            } else {
+                // As below, the values are all counted against the doc's first datetime
+                final int count = valueCount();
+                if(count > 0 && hasNextTimestamp())
+                    countOrd(nextOrd(), count);
+            }
+        } else if(!hasValueField()) {
             // We are only counting docs
             while(hasNextTimestamp()) {
                 final long time = nextTimestamp();
                 _counts.adjustOrPutValue(time, 1, 1);
             }
         } else {
-            while(hasNextTimestamp()) {
-                // We are counting each occurrence of valueField (regardless of its contents)
-                if(!hasNextValue())
-                    return;
+            // We are counting each occurrence of valueField (regardless of its contents),
+            // all against the doc's first datetime, without decoding the values
+            final int count = valueCount();
+            if(count > 0 && hasNextTimestamp())
+                _counts.adjustOrPutValue(nextTimestamp(), count, count);
+        }
+    }
 
-                final long time = nextTimestamp();
-                while(hasNextValue()) {
-                    nextValue();
-                    _counts.adjustOrPutValue(time, 1, 1);
+    @Override
+    public void collectBlock(final int[] docs, final int count) throws IOException {
+        // Sparse segments have few hits, so they go through collect() to keep track of their ordinals
+        if(!hasOrdinals() || hasValueField() || _sparse) {
+            super.collectBlock(docs, count);
+            return;
+        }
+
+        // Counting docs by ordinal needs nothing but the ordinals
+        addSegmentHits(count);
+        _ordsCounted = true;
+        final Ordinals.Docs ordinals = keyOrdinals();
+        if(ordinals.isMultiValued()) {
+            for(int i = 0; i < count; i++) {
+                final IntsRef ords = ordinals.getOrds(docs[i]);
+                final int end = ords.offset + ords.length;
+                for(int j = ords.offset; j < end; j++) {
+                    _ordCounts[ords.ints[j]]++;
                 }
             }
+        } else {
+            // Docs without a datetime have ordinal 0, which is never folded
+            if(_ordBlock.length < count)
+                _ordBlock = new int[count];
+            for(int i = 0; i < count; i++) {
+                _ordBlock[i] = ordinals.getOrd(docs[i]);
+            }
+            for(int i = 0; i < count; i++) {
+                _ordCounts[_ordBlock[i]]++;
+            }
+        }
+    }
+
+    @Override
+    public boolean collectAll(final AtomicReaderContext context) throws IOException {
+        if(!hasOrdinals() || hasValueField())
+            return false;
+
+        // Every doc matches, so each datetime's count is just its term's doc frequency
+        addSegmentHits(context.reader().maxDoc());
+        _sparse = false;
+        final Terms terms = context.reader().terms(keyFieldName());
+        if(terms == null)
+            return true;
+        _ordsCounted = true;
+        final TermsEnum termsEnum = terms.iterator(null);
+        final int maxOrd = maxOrd();
+        int ord = 1;
+        BytesRef term;
+        // Full precision terms come first, in the same order as the ordinals
+        while((term = termsEnum.next()) != null && NumericUtils.getPrefixCodedLongShift(term) == 0) {
+            final long datetime = NumericUtils.prefixCodedToLong(term);
+            // Field data may have left some terms out
+            while(ord < maxOrd && valueOfOrd(ord) < datetime) {
+                ord++;
+            }
+            if(ord == maxOrd)
+                break;
+            if(valueOfOrd(ord) == datetime)
+                _ordCounts[ord] += termsEnum.docFreq();
         }
+        return true;
+    }
+
+    /**
+     * Add to the count of an ordinal, keeping track of it if the segment is sparse.
+     * 
+     * @param ord the ordinal
+     * @param count the amount to add, greater than 0
+     */
+    private void countOrd(final int ord, final int count) {
+        if(_sparse && _ordCounts[ord] == 0) {
+            if(_touchedCount == _touchedOrds.length)
+                _touchedOrds = ArrayUtil.grow(_touchedOrds);
+            _touchedOrds[_touchedCount++] = ord;
+        }
+        _ordCounts[ord] += count;
+    }
+
+    /**
+     * Round the ordinals counted in the current segment, and add their counts to _counts.
+     */
+    private void foldOrdCounts() {
+        if(!_ordsCounted)
+            return;
+        // Ordinal 0 means no value
+        _ordCounts[0] = 0;
+        if(_sparse) {
+            // In ascending order, so that consecutive ordinals mostly share a timestamp
+            Arrays.sort(_touchedOrds, 0, _touchedCount);
+            for(int i = 0; i < _touchedCount; i++) {
+                foldOrd(_touchedOrds[i]);
+            }
+        } else {
+            final int maxOrd = maxOrd();
+            for(int ord = 1; ord < maxOrd; ord++) {
+                foldOrd(ord);
+            }
+        }
+        _touchedCount = 0;
+        final int timestampCount = Math.min(timestampCount(), _pointerCounts.length);
+        for(int i = 0; i < timestampCount; i++) {
+            final int count = _pointerCounts[i];
+            if(count != 0) {
+                _counts.adjustOrPutValue(timestampAt(i), count, count);
+                _pointerCounts[i] = 0;
+            }
+        }
+        _ordsCounted = false;
+    }
+
+    /**
+     * Move the count of an ordinal to the count of its timestamp pointer.
+     * 
+     * @param ord the ordinal
+     */
+    private void foldOrd(final int ord) {
+        final int count = _ordCounts[ord];
+        if(count != 0) {
+            final int pointer = timestampPointerOf(ord);
+            if(pointer >= _pointerCounts.length)
+                _pointerCounts = ArrayUtil.grow(_pointerCounts, pointer + 1);
+            _pointerCounts[pointer] += count;
+            _ordCounts[ord] = 0;
+        }
+    }
+
+    @Override
+    public void postCollection() {
+        foldOrdCounts();
+        super.postCollection();
     }
 
     @Override
     public InternalFacet build(final String facetName) {
+        foldOrdCounts();
         final InternalFacet facet = new InternalCountingFacet(facetName, _counts);
         _counts = null;
         return facet;
     }
 
+    @Override
+    public void release() {
+        if(_counts != null)
+            CacheRecycler.pushLongIntMap(_counts);
+        _counts = null;
+    }
+
 }
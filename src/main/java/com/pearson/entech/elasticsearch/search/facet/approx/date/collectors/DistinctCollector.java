@@ -1,24 +1,33 @@
 package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
 
-import static com.google.common.collect.Maps.newHashMap;
-
 import java.io.IOException;
-import java.util.Map;
+import java.util.Arrays;
 
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.IntsRef;
 import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.joda.TimeZoneRounding;
 import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
-import org.elasticsearch.common.trove.list.array.TIntArrayList;
+import org.elasticsearch.common.trove.map.hash.TLongIntHashMap;
 import org.elasticsearch.index.fielddata.AtomicFieldData;
+import org.elasticsearch.index.fielddata.BytesValues;
 import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
 import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.ordinals.Ordinals;
 import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
 import org.elasticsearch.search.facet.InternalFacet;
 
+import com.pearson.entech.elasticsearch.plugin.approx.DirectPagePool;
+import com.pearson.entech.elasticsearch.plugin.approx.LongHash;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.DistinctCountPayload;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalDistinctFacet;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.NarrowIntArray;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.RegisterArena;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.SparseHyperLogLog;
 
 /**
  * A Collector for distinct date facets.
@@ -35,15 +44,109 @@ public class DistinctCollector<V extends AtomicFieldData<? extends ScriptDocValu
     private final int _exactThreshold;
 
     /**
-     * A map from distinct field values to lists of timestamps.
+     * Shared storage for the registers of the approximate counters, which also fixes their precision.
+     */
+    private final RegisterArena _arena;
+
+    /**
+     * Whether to count exact distinct values by their hashes.
+     */
+    private final boolean _hashedExact;
+
+    /**
+     * The distinct field values seen so far, each identified by its ID in this hash. Null for numeric fields.
+     */
+    private BytesRefHash _values;
+
+    /**
+     * The hashes of the distinct field values seen so far, for numeric fields, each identified by its ID in this hash.
+     * Null for other fields.
+     */
+    private LongHash _hashes;
+
+    /**
+     * The value ID of each occurrence of a distinct field value.
+     */
+    private int[] _occurrenceValues = new int[16];
+
+    /**
+     * The bucket index of each occurrence of a distinct field value. Occurrences from the current
+     * segment hold timestamp pointers instead, if it has datetime ordinals, until the end of the segment.
+     * There are usually few buckets, so these are stored as narrowly as possible.
+     */
+    private NarrowIntArray _occurrenceBuckets = new NarrowIntArray(16);
+
+    /**
+     * The number of occurrences recorded.
+     */
+    private int _occurrenceCount = 0;
+
+    /**
+     * The first occurrence recorded in the current segment.
+     */
+    private int _segmentStart = 0;
+
+    /**
+     * Whether the current segment's occurrences hold timestamp pointers.
+     */
+    private boolean _pointerOccurrences = false;
+
+    /**
+     * A map from timestamps to their bucket indexes plus one.
+     */
+    private TLongIntHashMap _bucketIndexes;
+
+    /**
+     * The timestamp of each bucket index.
+     */
+    private long[] _bucketTimestamps = new long[16];
+
+    /**
+     * The number of buckets.
      */
-    private Map<BytesRef, TIntArrayList> _occurrences;
+    private int _bucketCount = 0;
+
+    /**
+     * Bucket indexes plus one for the current segment, indexed by timestamp pointer, or 0 if not looked up yet.
+     */
+    private int[] _pointerBuckets = new int[16];
+
+    /**
+     * The most recently looked-up timestamp, and its bucket index.
+     */
+    private long _lastTimestamp = 0;
+    private int _lastBucket = -1;
 
     /**
      * Iterator over the values of the distinct field.
      */
     private final BytesFieldIterator<AtomicFieldData<? extends ScriptDocValues>> _distinctFieldIter;
 
+    /**
+     * Field data for the distinct field.
+     */
+    private final IndexFieldData<D> _distinctFieldData;
+
+    /**
+     * Reader for the hashes of the distinct field's values if it's numeric, otherwise null.
+     */
+    private final NumericFieldHashes _distinctFieldHashes;
+
+    /**
+     * Values of the distinct field for the current segment if they have ordinals and aren't numeric, otherwise null.
+     */
+    private BytesValues.WithOrdinals _distinctOrdValues;
+
+    /**
+     * Ordinals of the distinct field for the current segment, or null if it has none.
+     */
+    private Ordinals.Docs _distinctOrds;
+
+    /**
+     * Value IDs plus one for the current segment, indexed by distinct field ordinal, or 0 if not looked up yet.
+     */
+    private int[] _ordValueIds;
+
     /**
      * Create a new collector.
      * 
@@ -51,88 +154,287 @@ public class DistinctCollector<V extends AtomicFieldData<? extends ScriptDocValu
      * @param distinctFieldData the distinct field data
      * @param tzRounding the timezone rounding to apply
      * @param exactThreshold The number of exact distinct field values to record before tipping into approximate counting
+     * @param rsd the relative standard deviation of the approximate counters
+     * @param hashedExact true to count exact distinct values by their 64-bit hashes
+     * @param pagePool pool of off-heap pages for the approximate counters, or null to use the heap
      */
     public DistinctCollector(final LongArrayIndexFieldData keyFieldData,
             final IndexFieldData<D> distinctFieldData,
             final TimeZoneRounding tzRounding,
-            final int exactThreshold) {
+            final int exactThreshold,
+            final double rsd,
+            final boolean hashedExact,
+            final DirectPagePool pagePool) {
         super(keyFieldData, tzRounding);
         _distinctFieldIter = new BytesFieldIterator(distinctFieldData); // TODO type safety?
+        _distinctFieldData = distinctFieldData;
         _exactThreshold = exactThreshold;
-        _occurrences = newHashMap();
+        _arena = new RegisterArena(SparseHyperLogLog.precisionFor(rsd), pagePool);
+        // Numeric values are counted by hash, as the hashes are exact anyway
+        if(NumericFieldHashes.isNumeric(distinctFieldData)) {
+            _distinctFieldHashes = new NumericFieldHashes((IndexNumericFieldData<?>) distinctFieldData);
+            _hashes = new LongHash();
+            _hashedExact = true;
+        } else {
+            _distinctFieldHashes = null;
+            // Not recycled: this holds every value in the shard, which is too big to pool
+            _values = new BytesRefHash();
+            _hashedExact = hashedExact;
+        }
+        _bucketIndexes = CacheRecycler.popLongIntMap();
     }
 
     @Override
     public void setNextReader(final AtomicReaderContext context) throws IOException {
+        // Ordinals are only valid within a segment
+        roundOccurrences();
         super.setNextReader(context);
-        _distinctFieldIter.setNextReader(context);
+        _pointerOccurrences = hasOrdinals();
+        _distinctOrdValues = null;
+        _distinctOrds = null;
+
+        // Numeric values are read as longs or doubles and hashed directly, without going through BytesRefs
+        if(_distinctFieldHashes != null) {
+            _distinctFieldHashes.setNextReader(context);
+            _distinctOrds = _distinctFieldHashes.ordinals();
+        } else {
+            final BytesValues distinctValues = _distinctFieldData.load(context).getBytesValues();
+            if(distinctValues instanceof BytesValues.WithOrdinals) {
+                _distinctOrdValues = (BytesValues.WithOrdinals) distinctValues;
+                _distinctOrds = _distinctOrdValues.ordinals();
+            } else {
+                _distinctFieldIter.setNextReader(context);
+            }
+        }
+
+        // If the distinct field has ordinals, we collect against those instead, so that each
+        // value only has to be looked up (and hashed) once per segment rather than once per doc.
+        if(_distinctOrds != null) {
+            final int maxOrd = _distinctOrds.getMaxOrd();
+            if(_ordValueIds == null || _ordValueIds.length < maxOrd) {
+                _ordValueIds = new int[maxOrd];
+            } else {
+                Arrays.fill(_ordValueIds, 0);
+            }
+        }
     }
 
     @Override
     public void collect(final int doc) throws IOException {
-        _distinctFieldIter.collect(doc);
-
         // Exit as early as possible in order to avoid unnecessary lookups/conversions
         super.collect(doc);
         if(!hasNextTimestamp())
             return;
 
-        // Strategy: compile a map from distinct field values to timestamps where those values occur.
-        // Later, at build time, we invert this into a map from timestamps to DistinctCountPayloads.
+        // Strategy: record a (value ID, bucket index) pair for each occurrence of a distinct field value.
+        // Later, at build time, we group these by bucket to build a DistinctCountPayload for each timestamp.
         // This avoids having to read, copy and store multiple BytesRefs containing the same distinct field values.
 
+        if(_distinctOrds != null) {
+            collectOrdinals(doc);
+            return;
+        }
+
+        if(_distinctFieldHashes != null) {
+            _distinctFieldHashes.collect(doc);
+            final int count = _distinctFieldHashes.count();
+            for(int i = 0; i < count; i++) {
+                addOccurrences(hashId(_distinctFieldHashes.hashAt(i)));
+            }
+            return;
+        }
+
+        _distinctFieldIter.collect(doc);
         while(_distinctFieldIter.hasNext()) {
-            // TODO this causes two conversions if the field's numeric
             final BytesRef unsafe = _distinctFieldIter.next();
-            TIntArrayList timestampList = _occurrences.get(unsafe);
-            if(timestampList == null) {
-                final BytesRef safe = BytesRef.deepCopyOf(unsafe);
-                timestampList = new TIntArrayList();
-                _occurrences.put(safe, timestampList);
+            addOccurrences(valueId(unsafe));
+        }
+    }
+
+    /**
+     * Collect a document whose distinct field values have ordinals.
+     * 
+     * @param doc the document ID
+     * @throws IOException
+     */
+    private void collectOrdinals(final int doc) throws IOException {
+        final IntsRef ords = _distinctOrds.getOrds(doc);
+        final int end = ords.offset + ords.length;
+        for(int i = ords.offset; i < end; i++) {
+            final int ord = ords.ints[i];
+            int valueId = _ordValueIds[ord] - 1;
+            if(valueId < 0) {
+                valueId = _distinctOrdValues != null
+                        ? valueId(_distinctOrdValues.getValueByOrd(ord))
+                        : hashId(_distinctFieldHashes.hashOfOrd(ord));
+                _ordValueIds[ord] = valueId + 1;
             }
+            addOccurrences(valueId);
+        }
+    }
+
+    /**
+     * Get the ID of a distinct field value, adding it if necessary.
+     * 
+     * @param unsafe the value -- this will be copied if it's new
+     * @return the ID
+     */
+    private int valueId(final BytesRef unsafe) {
+        final int id = _values.add(unsafe);
+        return id < 0 ? -id - 1 : id;
+    }
+
+    /**
+     * Get the ID of the hash of a numeric distinct field value, adding it if necessary.
+     * 
+     * @param hash the hash
+     * @return the ID
+     */
+    private int hashId(final long hash) {
+        final int id = _hashes.add(hash);
+        return id < 0 ? -id - 1 : id;
+    }
 
-            // To reduce memory usage, we store all timestamps at second resolution for now
+    /**
+     * Record an occurrence of a distinct field value for each timestamp of the current doc,
+     * then rewind the timestamps.
+     * 
+     * @param valueId the ID of the value
+     * @throws IOException
+     */
+    private void addOccurrences(final int valueId) {
+        if(_pointerOccurrences) {
+            // Record the segment's timestamp pointers for now, and look up their buckets at the end of the segment
+            while(hasNextTimestamp()) {
+                addOccurrence(valueId, nextTimestampPointer());
+            }
+        } else {
             while(hasNextTimestamp()) {
-                final long time = nextTimestamp();
-                timestampList.add((int) (time / 1000));
+                addOccurrence(valueId, bucketIndex(nextTimestamp()));
             }
+        }
+
+        // Go back over the same timestamps for the doc's next value
+        rewindTimestamps();
+    }
 
-            // Reset timestamp iterator for this doc
-            // TODO make this a standalone CollectableIterator like _distinctFieldIter
-            super.collect(doc);
+    private void addOccurrence(final int valueId, final int bucket) {
+        if(_occurrenceCount == _occurrenceValues.length)
+            _occurrenceValues = ArrayUtil.grow(_occurrenceValues);
+        _occurrenceValues[_occurrenceCount] = valueId;
+        _occurrenceBuckets.add(bucket);
+        _occurrenceCount++;
+    }
+
+    /**
+     * Get the bucket index of a timestamp, adding it if necessary.
+     * 
+     * @param timestamp the timestamp
+     * @return the bucket index
+     */
+    private int bucketIndex(final long timestamp) {
+        if(_lastBucket >= 0 && timestamp == _lastTimestamp)
+            return _lastBucket;
+        int bucket = _bucketIndexes.get(timestamp) - 1;
+        if(bucket < 0) {
+            bucket = _bucketCount++;
+            if(bucket == _bucketTimestamps.length)
+                _bucketTimestamps = ArrayUtil.grow(_bucketTimestamps);
+            _bucketTimestamps[bucket] = timestamp;
+            _bucketIndexes.put(timestamp, bucket + 1);
         }
+        _lastTimestamp = timestamp;
+        _lastBucket = bucket;
+        return bucket;
+    }
+
+    /**
+     * Replace the timestamp pointers of the current segment's occurrences with their bucket indexes.
+     */
+    private void roundOccurrences() {
+        if(_pointerOccurrences && _segmentStart < _occurrenceCount) {
+            for(int i = _segmentStart; i < _occurrenceCount; i++) {
+                final int pointer = _occurrenceBuckets.get(i);
+                if(pointer >= _pointerBuckets.length)
+                    _pointerBuckets = ArrayUtil.grow(_pointerBuckets, pointer + 1);
+                int bucket = _pointerBuckets[pointer] - 1;
+                if(bucket < 0) {
+                    bucket = bucketIndex(timestampAt(pointer));
+                    _pointerBuckets[pointer] = bucket + 1;
+                }
+                _occurrenceBuckets.set(i, bucket);
+            }
+            Arrays.fill(_pointerBuckets, 0);
+        }
+        _segmentStart = _occurrenceCount;
+        _pointerOccurrences = false;
     }
 
     @Override
     public void postCollection() {
+        roundOccurrences();
         super.postCollection();
         _distinctFieldIter.postCollection();
+        if(_distinctFieldHashes != null)
+            _distinctFieldHashes.postCollection();
+        _distinctOrdValues = null;
+        _distinctOrds = null;
+        _ordValueIds = null;
     }
 
     @Override
     public InternalFacet build(final String facetName) {
-        // This is where we invert the distinct value->timestamp map to build the actual facet object
+        roundOccurrences();
+
+        // This is where we group the occurrences by bucket, with a counting sort, to build the actual facet object
+        final int[] bucketStarts = new int[_bucketCount + 1];
+        for(int i = 0; i < _occurrenceCount; i++) {
+            bucketStarts[_occurrenceBuckets.get(i) + 1]++;
+        }
+        for(int b = 0; b < _bucketCount; b++) {
+            bucketStarts[b + 1] += bucketStarts[b];
+        }
+        final int[] bucketEnds = Arrays.copyOf(bucketStarts, _bucketCount);
+        final int[] groupedValues = new int[_occurrenceCount];
+        for(int i = 0; i < _occurrenceCount; i++) {
+            groupedValues[bucketEnds[_occurrenceBuckets.get(i)]++] = _occurrenceValues[i];
+        }
+        // Free these up for GC immediately
+        _occurrenceValues = null;
+        _occurrenceBuckets = null;
+
         final ExtTLongObjectHashMap<DistinctCountPayload> counts = CacheRecycler.popLongObjectMap();
-        for(final BytesRef fieldVal : _occurrences.keySet()) {
-            final TIntArrayList timestampList = _occurrences.get(fieldVal);
-            final int timestampCount = timestampList.size();
-            for(int i = 0; i < timestampCount; i++) {
-                final long timestampSecs = timestampList.get(i);
-                // Convert back to milliseconds resolution
-                final long timestamp = timestampSecs * 1000;
-                DistinctCountPayload payload = counts.get(timestamp);
-                if(payload == null) {
-                    payload = new DistinctCountPayload(_exactThreshold);
-                    counts.put(timestamp, payload);
+        final BytesRef scratch = new BytesRef();
+        for(int b = 0; b < _bucketCount; b++) {
+            final DistinctCountPayload payload = new DistinctCountPayload(_exactThreshold, _arena, _hashedExact);
+            if(_hashes != null) {
+                for(int i = bucketStarts[b]; i < bucketStarts[b + 1]; i++) {
+                    payload.updateHash(_hashes.get(groupedValues[i]));
+                }
+            } else {
+                for(int i = bucketStarts[b]; i < bucketStarts[b + 1]; i++) {
+                    payload.update(_values.get(groupedValues[i], scratch));
                 }
-                payload.update(fieldVal);
             }
-            _occurrences.put(fieldVal, null); // Free this up for GC immediately
+            counts.put(_bucketTimestamps[b], payload);
         }
 
-        _occurrences = null;
-        final InternalFacet facet = new InternalDistinctFacet(facetName, counts);
+        _values = null;
+        _hashes = null;
+        CacheRecycler.pushLongIntMap(_bucketIndexes);
+        _bucketIndexes = null;
+        final InternalFacet facet = new InternalDistinctFacet(facetName, counts, _arena);
         return facet;
     }
 
+    @Override
+    public void release() {
+        _arena.release();
+        if(_bucketIndexes != null)
+            CacheRecycler.pushLongIntMap(_bucketIndexes);
+        _bucketIndexes = null;
+        _values = null;
+        _hashes = null;
+    }
+
 }
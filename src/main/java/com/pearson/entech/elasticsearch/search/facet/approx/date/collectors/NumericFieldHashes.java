@@ -0,0 +1,175 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.ArrayUtil;
+import org.elasticsearch.index.fielddata.AtomicNumericFieldData;
+import org.elasticsearch.index.fielddata.DoubleValues;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.LongValues;
+import org.elasticsearch.index.fielddata.ordinals.Ordinals;
+import org.elasticsearch.search.facet.FacetExecutor.Collector;
+
+import com.pearson.entech.elasticsearch.plugin.approx.MurmurHash3;
+
+/**
+ * Reads the values of a numeric field as 64-bit hashes, straight from its long or double values,
+ * rather than converting each one to a BytesRef and hashing its bytes. The hashes come from a
+ * bijective mixer, so distinct values always have distinct hashes, and a set of hashes counts
+ * values exactly.
+ */
+public class NumericFieldHashes extends Collector {
+
+    private final IndexNumericFieldData<?> _fieldData;
+
+    private final boolean _floatingPoint;
+
+    private LongValues _longValues;
+
+    private DoubleValues _doubleValues;
+
+    private Ordinals.Docs _ordinals;
+
+    private long[] _hashes = new long[1];
+
+    private int _count = 0;
+
+    /**
+     * Create a new reader.
+     *
+     * @param fieldData the numeric field data to read
+     */
+    public NumericFieldHashes(final IndexNumericFieldData<?> fieldData) {
+        _fieldData = fieldData;
+        _floatingPoint = fieldData.getNumericType().isFloatingPoint();
+    }
+
+    /**
+     * Check whether a field can be read by this class.
+     *
+     * @param fieldData the field data
+     * @return true if the field is numeric
+     */
+    public static boolean isNumeric(final IndexFieldData<?> fieldData) {
+        return fieldData instanceof IndexNumericFieldData;
+    }
+
+    /**
+     * Hash a long value.
+     *
+     * @param value the value
+     * @return the hash
+     */
+    public static long hash(final long value) {
+        return MurmurHash3.hash64(value);
+    }
+
+    /**
+     * Hash a double value, by its bits.
+     *
+     * @param value the value
+     * @return the hash
+     */
+    public static long hash(final double value) {
+        return MurmurHash3.hash64(Double.doubleToLongBits(value));
+    }
+
+    @Override
+    public void setNextReader(final AtomicReaderContext context) throws IOException {
+        final AtomicNumericFieldData data = _fieldData.load(context);
+        if(_floatingPoint) {
+            _doubleValues = data.getDoubleValues();
+            _longValues = null;
+            _ordinals = _doubleValues instanceof DoubleValues.WithOrdinals
+                    ? ((DoubleValues.WithOrdinals) _doubleValues).ordinals() : null;
+        } else {
+            _longValues = data.getLongValues();
+            _doubleValues = null;
+            _ordinals = _longValues instanceof LongValues.WithOrdinals
+                    ? ((LongValues.WithOrdinals) _longValues).ordinals() : null;
+        }
+        _count = 0;
+    }
+
+    /**
+     * Get the ordinals of the field in the current segment, if it has any.
+     *
+     * @return the ordinals, or null
+     */
+    public Ordinals.Docs ordinals() {
+        return _ordinals;
+    }
+
+    /**
+     * Get the hash of an ordinal's value, only if the current segment has {@link #ordinals()}.
+     *
+     * @param ord the ordinal
+     * @return the hash
+     */
+    public long hashOfOrd(final int ord) {
+        return _floatingPoint
+                ? hash(((DoubleValues.WithOrdinals) _doubleValues).getValueByOrd(ord))
+                : hash(((LongValues.WithOrdinals) _longValues).getValueByOrd(ord));
+    }
+
+    @Override
+    public void collect(final int doc) throws IOException {
+        _count = 0;
+        if(_floatingPoint) {
+            if(!_doubleValues.isMultiValued()) {
+                if(_doubleValues.hasValue(doc))
+                    _hashes[_count++] = hash(_doubleValues.getValue(doc));
+            } else {
+                final DoubleValues.Iter iter = _doubleValues.getIter(doc);
+                while(iter.hasNext()) {
+                    add(hash(iter.next()));
+                }
+            }
+        } else {
+            if(!_longValues.isMultiValued()) {
+                if(_longValues.hasValue(doc))
+                    _hashes[_count++] = hash(_longValues.getValue(doc));
+            } else {
+                final LongValues.Iter iter = _longValues.getIter(doc);
+                while(iter.hasNext()) {
+                    add(hash(iter.next()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of values of the current doc.
+     *
+     * @return the number of values
+     */
+    public int count() {
+        return _count;
+    }
+
+    /**
+     * Get the hash of one of the values of the current doc.
+     *
+     * @param i the index of the value, less than {@link #count()}
+     * @return the hash
+     */
+    public long hashAt(final int i) {
+        return _hashes[i];
+    }
+
+    @Override
+    public void postCollection() {
+        _longValues = null;
+        _doubleValues = null;
+        _ordinals = null;
+    }
+
+    private void add(final long hash) {
+        if(_count == _hashes.length)
+            _hashes = ArrayUtil.grow(_hashes);
+        _hashes[_count++] = hash;
+    }
+
+}
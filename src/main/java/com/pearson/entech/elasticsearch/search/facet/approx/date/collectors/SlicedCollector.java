@@ -4,11 +4,15 @@ import java.io.IOException;
 
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
 import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.joda.TimeZoneRounding;
 import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
+import org.elasticsearch.common.trove.iterator.TLongIntIterator;
 import org.elasticsearch.common.trove.map.TLongObjectMap;
+import org.elasticsearch.common.trove.map.hash.TLongIntHashMap;
 import org.elasticsearch.common.trove.map.hash.TObjectIntHashMap;
+import org.elasticsearch.common.trove.procedure.TObjectProcedure;
 import org.elasticsearch.index.fielddata.AtomicFieldData;
 import org.elasticsearch.index.fielddata.BytesValues;
 import org.elasticsearch.index.fielddata.IndexFieldData;
@@ -37,6 +41,18 @@ public class SlicedCollector<V extends AtomicFieldData<? extends ScriptDocValues
      */
     private BytesValues _sliceFieldValues;
 
+    /**
+     * Field data values for the slice field, if both it and the datetime field have ordinals in the current segment.
+     */
+    private BytesValues.WithOrdinals _sliceOrdValues;
+
+    /**
+     * Counts for the current segment when both fields have ordinals, keyed by datetime ordinal
+     * in the high int and slice ordinal in the low int. These are rounded, resolved to slice labels
+     * and folded into _counts at the end of each segment.
+     */
+    private TLongIntHashMap _ordCounts;
+
     /**
      * A nested map from timestamps to slice labels to counts.  
      */
@@ -57,6 +73,7 @@ public class SlicedCollector<V extends AtomicFieldData<? extends ScriptDocValues
         super(keyFieldData, valueFieldData, tzRounding);
         _sliceFieldData = sliceFieldData;
         _counts = CacheRecycler.popLongObjectMap();
+        _ordCounts = CacheRecycler.popLongIntMap();
     }
 
     /**
@@ -72,12 +89,17 @@ public class SlicedCollector<V extends AtomicFieldData<? extends ScriptDocValues
         super(keyFieldData, tzRounding);
         _sliceFieldData = sliceFieldData;
         _counts = CacheRecycler.popLongObjectMap();
+        _ordCounts = CacheRecycler.popLongIntMap();
     }
 
     @Override
     public void setNextReader(final AtomicReaderContext context) throws IOException {
+        // Ordinals are only valid within a segment
+        foldOrdCounts();
         super.setNextReader(context);
         _sliceFieldValues = _sliceFieldData.load(context).getBytesValues();
+        _sliceOrdValues = hasOrdinals() && _sliceFieldValues instanceof BytesValues.WithOrdinals
+                ? (BytesValues.WithOrdinals) _sliceFieldValues : null;
     }
 
     @Override
@@ -87,6 +109,11 @@ public class SlicedCollector<V extends AtomicFieldData<? extends ScriptDocValues
         if(!hasNextTimestamp())
             return;
 
+        if(_sliceOrdValues != null) {
+            collectOrdinals(doc);
+            return;
+        }
+
         if(!hasValueField()) {
             // We are only counting docs for each slice
             while(hasNextTimestamp()) {
@@ -97,59 +124,127 @@ public class SlicedCollector<V extends AtomicFieldData<? extends ScriptDocValues
                 final long time = nextTimestamp();
 
                 while(sliceIter.hasNext()) {
-                    incrementSafely(_counts, time, sliceIter.next());
+                    incrementSafely(_counts, time, sliceIter.next(), 1);
                 }
             }
         } else {
-            // We are counting each occurrence of value_field in each slice (regardless of its contents)
-            while(hasNextTimestamp()) {
-                final BytesValues.Iter sliceIter = getSliceIter(doc);
-                if(!sliceIter.hasNext())
-                    return;
+            // We are counting each occurrence of value_field in each slice (regardless of its contents),
+            // all against the doc's first datetime, without decoding the values
+            final int valueCount = valueCount();
+            if(valueCount == 0)
+                return;
 
-                final long time = nextTimestamp();
+            final long time = nextTimestamp();
+            final BytesValues.Iter sliceIter = getSliceIter(doc);
+            while(sliceIter.hasNext()) {
+                incrementSafely(_counts, time, sliceIter.next(), valueCount);
+            }
+        }
 
-                while(sliceIter.hasNext()) {
-                    while(hasNextValue()) {
-                        final BytesRef unsafe = sliceIter.next();
-                        incrementSafely(_counts, time, unsafe);
-                    }
-                }
+    }
+
+    /**
+     * Collect a document when both the datetime and slice fields have ordinals,
+     * counting by ordinal pair.
+     * 
+     * @param doc the document ID
+     */
+    private void collectOrdinals(final int doc) {
+        final IntsRef sliceOrds = _sliceOrdValues.ordinals().getOrds(doc);
+        if(sliceOrds.length == 0)
+            return;
+        final int end = sliceOrds.offset + sliceOrds.length;
+        if(hasValueField()) {
+            // The values are all counted against the doc's first datetime, as in collect()
+            final int count = valueCount();
+            if(count == 0)
+                return;
+            final long keyOrd = (long) nextOrd() << 32;
+            for(int i = sliceOrds.offset; i < end; i++) {
+                _ordCounts.adjustOrPutValue(keyOrd | sliceOrds.ints[i], count, count);
             }
+            return;
         }
 
+        while(hasNextTimestamp()) {
+            final long keyOrd = (long) nextOrd() << 32;
+            for(int i = sliceOrds.offset; i < end; i++) {
+                _ordCounts.adjustOrPutValue(keyOrd | sliceOrds.ints[i], 1, 1);
+            }
+        }
+    }
+
+    /**
+     * Round the datetime ordinals counted in the current segment, resolve their slice labels,
+     * and add their counts to _counts.
+     */
+    private void foldOrdCounts() {
+        if(_ordCounts.isEmpty())
+            return;
+        for(final TLongIntIterator iter = _ordCounts.iterator(); iter.hasNext();) {
+            iter.advance();
+            final long time = timestampAt(timestampPointerOf((int) (iter.key() >>> 32)));
+            final BytesRef unsafe = _sliceOrdValues.getValueByOrd((int) iter.key());
+            incrementSafely(_counts, time, unsafe, iter.value());
+        }
+        _ordCounts.clear();
     }
 
     @Override
     public void postCollection() {
+        foldOrdCounts();
         super.postCollection();
         _sliceFieldValues = null;
+        _sliceOrdValues = null;
     }
 
     @Override
     public InternalFacet build(final String facetName) {
+        foldOrdCounts();
+        CacheRecycler.pushLongIntMap(_ordCounts);
+        _ordCounts = null;
         final InternalFacet facet = new InternalSlicedFacet(facetName, _counts);
         _counts = null;
         return facet;
     }
 
+    @Override
+    public void release() {
+        if(_ordCounts != null)
+            CacheRecycler.pushLongIntMap(_ordCounts);
+        _ordCounts = null;
+        if(_counts != null) {
+            _counts.forEachValue(new TObjectProcedure<TObjectIntHashMap<BytesRef>>() {
+                @Override
+                public boolean execute(final TObjectIntHashMap<BytesRef> subMap) {
+                    CacheRecycler.pushObjectIntMap(subMap);
+                    return true;
+                }
+            });
+            CacheRecycler.pushLongObjectMap(_counts);
+        }
+        _counts = null;
+    }
+
     /**
      * Retrieve a slice labels->count map by timestamp, creating it if it doesn't exist already,
-     * and increment the count for a given slice label.
+     * and add to the count for a given slice label.
      * 
      * @param counts the timestamp->slice label->count map
      * @param key the timestamp required
      * @param unsafe a BytesRef holding the newly-seen slice label -- this will be made safe automatically
+     * @param count the amount to add
      */
     private void incrementSafely(final TLongObjectMap<TObjectIntHashMap<BytesRef>> counts,
-            final long key, final BytesRef unsafe) {
+            final long key, final BytesRef unsafe, final int count) {
         TObjectIntHashMap<BytesRef> subMap = counts.get(key);
         if(subMap == null) {
             subMap = CacheRecycler.popObjectIntMap();
             counts.put(key, subMap);
         }
-        final BytesRef safe = BytesRef.deepCopyOf(unsafe);
-        subMap.adjustOrPutValue(safe, 1, 1);
+        // Only copy the label the first time it's seen for this timestamp
+        if(!subMap.adjustValue(unsafe, count))
+            subMap.put(BytesRef.deepCopyOf(unsafe), count);
     }
 
     /**
@@ -9,15 +9,20 @@ import org.elasticsearch.common.joda.TimeZoneRounding;
 import org.elasticsearch.common.trove.ExtTHashMap;
 import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
 import org.elasticsearch.common.trove.map.TLongObjectMap;
+import org.elasticsearch.common.trove.procedure.TObjectProcedure;
 import org.elasticsearch.index.fielddata.AtomicFieldData;
 import org.elasticsearch.index.fielddata.BytesValues;
 import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
 import org.elasticsearch.index.fielddata.ScriptDocValues;
 import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
 import org.elasticsearch.search.facet.InternalFacet;
 
+import com.pearson.entech.elasticsearch.plugin.approx.DirectPagePool;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.DistinctCountPayload;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalSlicedDistinctFacet;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.RegisterArena;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.SparseHyperLogLog;
 
 /**
  * A Collector for sliced distinct date facets.
@@ -34,6 +39,16 @@ public class SlicedDistinctCollector<V extends AtomicFieldData<? extends ScriptD
      */
     private final int _exactThreshold;
 
+    /**
+     * Shared storage for the registers of the approximate counters, which also fixes their precision.
+     */
+    private final RegisterArena _arena;
+
+    /**
+     * Whether to count exact distinct values by their hashes.
+     */
+    private final boolean _hashedExact;
+
     /**
      * Field data for the slice field.
      */
@@ -54,10 +69,15 @@ public class SlicedDistinctCollector<V extends AtomicFieldData<? extends ScriptD
      */
     private BytesValues _distinctFieldValues;
 
+    /**
+     * Reader for the hashes of the distinct field's values if it's numeric, otherwise null.
+     */
+    private final NumericFieldHashes _distinctFieldHashes;
+
     /**
      * A nested map from timestamps to slice labels to distinct counts.  
      */
-    private final ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> _counts;
+    private ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> _counts;
 
     /**
      * Create a new Collector.
@@ -67,23 +87,41 @@ public class SlicedDistinctCollector<V extends AtomicFieldData<? extends ScriptD
      * @param distinctFieldData the distinct field data
      * @param tzRounding the timezone rounding to apply
      * @param exactThreshold The number of exact distinct field values to record before tipping into approximate counting
+     * @param rsd the relative standard deviation of the approximate counters
+     * @param hashedExact true to count exact distinct values by their 64-bit hashes
+     * @param pagePool pool of off-heap pages for the approximate counters, or null to use the heap
      */
     public SlicedDistinctCollector(final LongArrayIndexFieldData keyFieldData,
             final IndexFieldData<S> sliceFieldData,
             final IndexFieldData<D> distinctFieldData,
             final TimeZoneRounding tzRounding,
-            final int exactThreshold) {
+            final int exactThreshold,
+            final double rsd,
+            final boolean hashedExact,
+            final DirectPagePool pagePool) {
         super(keyFieldData, tzRounding);
         _sliceFieldData = sliceFieldData;
         _distinctFieldData = distinctFieldData;
         _exactThreshold = exactThreshold;
+        _arena = new RegisterArena(SparseHyperLogLog.precisionFor(rsd), pagePool);
+        // Numeric values are counted by hash, as the hashes are exact anyway
+        if(NumericFieldHashes.isNumeric(distinctFieldData)) {
+            _distinctFieldHashes = new NumericFieldHashes((IndexNumericFieldData<?>) distinctFieldData);
+            _hashedExact = true;
+        } else {
+            _distinctFieldHashes = null;
+            _hashedExact = hashedExact;
+        }
         _counts = CacheRecycler.popLongObjectMap();
     }
 
     @Override
     public void setNextReader(final AtomicReaderContext context) throws IOException {
         super.setNextReader(context);
-        _distinctFieldValues = _distinctFieldData.load(context).getBytesValues();
+        if(_distinctFieldHashes != null)
+            _distinctFieldHashes.setNextReader(context);
+        else
+            _distinctFieldValues = _distinctFieldData.load(context).getBytesValues();
         _sliceFieldValues = _sliceFieldData.load(context).getBytesValues();
     }
 
@@ -94,16 +132,20 @@ public class SlicedDistinctCollector<V extends AtomicFieldData<? extends ScriptD
         if(!hasNextTimestamp())
             return;
 
-        final org.elasticsearch.index.fielddata.BytesValues.Iter distinctIter =
-                _distinctFieldValues.getIter(doc);
-        final org.elasticsearch.index.fielddata.BytesValues.Iter sliceIter =
-                _sliceFieldValues.getIter(doc);
+        if(_distinctFieldHashes != null) {
+            collectHashes(doc);
+            return;
+        }
 
+        // Every distinct value is counted in every slice of every timestamp of the doc,
+        // so the iterators are fetched afresh for each pass over them
         while(hasNextTimestamp()) {
             final long time = nextTimestamp();
+            final BytesValues.Iter sliceIter = _sliceFieldValues.getIter(doc);
             while(sliceIter.hasNext()) {
                 final BytesRef unsafeSlice = sliceIter.next();
                 final DistinctCountPayload count = getSafely(_counts, time, unsafeSlice);
+                final BytesValues.Iter distinctIter = _distinctFieldValues.getIter(doc);
                 while(distinctIter.hasNext()) {
                     final BytesRef unsafeTerm = distinctIter.next();
                     // Unsafe because the BytesRef may be changed if we continue reading,
@@ -114,19 +156,63 @@ public class SlicedDistinctCollector<V extends AtomicFieldData<? extends ScriptD
         }
     }
 
+    /**
+     * Collect a document whose distinct field is numeric, counting each value by its hash.
+     * 
+     * @param doc the document ID
+     * @throws IOException
+     */
+    private void collectHashes(final int doc) throws IOException {
+        // As in collect(), every value is counted in every slice of every timestamp
+        _distinctFieldHashes.collect(doc);
+        final int count = _distinctFieldHashes.count();
+        while(hasNextTimestamp()) {
+            final long time = nextTimestamp();
+            final BytesValues.Iter sliceIter = _sliceFieldValues.getIter(doc);
+            while(sliceIter.hasNext()) {
+                final DistinctCountPayload payload = getSafely(_counts, time, sliceIter.next());
+                for(int i = 0; i < count; i++) {
+                    payload.updateHash(_distinctFieldHashes.hashAt(i));
+                }
+            }
+        }
+    }
+
     @Override
     public void postCollection() {
         super.postCollection();
+        if(_distinctFieldHashes != null)
+            _distinctFieldHashes.postCollection();
         _distinctFieldValues = null;
         _sliceFieldValues = null;
     }
 
     @Override
     public InternalFacet build(final String facetName) {
-        final InternalFacet facet = new InternalSlicedDistinctFacet(facetName, _counts);
+        final InternalFacet facet = new InternalSlicedDistinctFacet(facetName, _counts, _arena);
+        _counts = null;
         return facet;
     }
 
+    @Override
+    public void release() {
+        _arena.release();
+        if(_counts != null) {
+            _counts.forEachValue(new TObjectProcedure<ExtTHashMap<BytesRef, DistinctCountPayload>>() {
+                @Override
+                public boolean execute(final ExtTHashMap<BytesRef, DistinctCountPayload> slices) {
+                    for(final DistinctCountPayload payload : slices.values()) {
+                        payload.release();
+                    }
+                    CacheRecycler.pushHashMap(slices);
+                    return true;
+                }
+            });
+            CacheRecycler.pushLongObjectMap(_counts);
+        }
+        _counts = null;
+    }
+
     /**
      * Retrieve a slice labels->distinct count map by timestamp,
      * creating it if it doesn't exist already,
@@ -147,7 +233,7 @@ public class SlicedDistinctCollector<V extends AtomicFieldData<? extends ScriptD
         DistinctCountPayload payload = subMap.get(unsafe);
         if(payload == null) {
             final BytesRef safe = BytesRef.deepCopyOf(unsafe);
-            payload = new DistinctCountPayload(_exactThreshold);
+            payload = new DistinctCountPayload(_exactThreshold, _arena, _hashedExact);
             subMap.put(safe, payload);
         }
         return payload;
@@ -1,22 +1,29 @@
 package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
 
 import java.io.IOException;
+import java.util.Arrays;
 
+import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IntsRef;
 import org.elasticsearch.common.joda.TimeZoneRounding;
-import org.elasticsearch.common.trove.list.array.TIntArrayList;
-import org.elasticsearch.common.trove.list.array.TLongArrayList;
+import org.elasticsearch.common.trove.map.hash.TLongIntHashMap;
 import org.elasticsearch.index.fielddata.AtomicFieldData;
+import org.elasticsearch.index.fielddata.AtomicNumericFieldData;
 import org.elasticsearch.index.fielddata.BytesValues;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.fielddata.LongValues;
 import org.elasticsearch.index.fielddata.LongValues.Iter;
 import org.elasticsearch.index.fielddata.LongValues.WithOrdinals;
 import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.ordinals.Ordinals;
 import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
 
+import com.pearson.entech.elasticsearch.plugin.approx.RoundedOrdinalCache;
+
 /**
  * A buildable collector which iterates through value of a long datetime field, applying timezone rounding to them.
  *  
@@ -29,20 +36,53 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
      */
     protected static final Iter EMPTY = new Iter.Empty();
 
+    /**
+     * Segments with no more ordinals than this always have their timestamps rounded up front,
+     * as the pass is too cheap to be worth avoiding.
+     */
+    private static final int MIN_LAZY_ORDS = 4096;
+
+    /**
+     * Timestamp pointer for an ordinal which hasn't been rounded yet.
+     */
+    private static final int NOT_ROUNDED = -1;
+
     private LongValues _keyFieldValues;
-    private IntsRef _docOrds;
-    private int _docOrdPointer;
-    private final TLongArrayList _timestamps = new TLongArrayList();
-    private final TIntArrayList _ordToTimestampPointers = new TIntArrayList();
-    private Iter _docIter;
+    private Ordinals.Docs _keyOrdinals;
+    private boolean _ordinals = false;
+    private KeyLoader _keyLoader;
+    private final int[] _singleOrd = new int[1];
+    private int[] _docOrdBuffer = _singleOrd;
+    private long[] _docDatetimes = new long[1];
+    private int _docStart = 0;
+    private int _docPointer = 0;
+    private int _docEnd = 0;
+    private long[] _timestamps = new long[16];
+    private int _timestampCount = 0;
+    private int[] _ordToTimestampPointers = new int[0];
+    private boolean _cachedTable = false;
+    private boolean _lazy = false;
+    private TLongIntHashMap _lazyPointers;
+    private RoundedOrdinalCache _ordinalCache;
+    private String _roundingKey;
     private long _lastNonOrdDatetime = 0;
     private long _lastNonOrdTimestamp = 0;
+    private long _lastOrdDatetime = 0;
+    private long _lastOrdTimestamp = 0;
+    private int _lastOrdPointer = 0;
+    private long _previousHits = 0;
+    private long _previousDocs = 0;
+    private int _segmentHits = 0;
+    private int _segmentDocs = 0;
     private final TimeZoneRounding _tzRounding;
     private final LongArrayIndexFieldData _keyFieldData;
     private final IndexFieldData<V> _valueFieldData;
 
     private BytesValues _valueFieldValues;
     private BytesValues.Iter _valueFieldIter;
+    private Ordinals.Docs _valueOrdinals;
+    private LongValues _valueLongValues;
+    private int _valueDoc = -1;
 
     /**
      * Create a new collector.
@@ -69,80 +109,260 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
         this(keyFieldData, null, tzRounding);
     }
 
+    /**
+     * Share the ordinal to timestamp tables of each segment with other queries, through a node-level cache.
+     * 
+     * @param ordinalCache the cache
+     * @param roundingKey a key describing the time zone rounding, which must differ between roundings that could give different results
+     */
+    public void setOrdinalCache(final RoundedOrdinalCache ordinalCache, final String roundingKey) {
+        _ordinalCache = ordinalCache;
+        _roundingKey = roundingKey;
+    }
+
     @Override
     public void collect(final int doc) throws IOException {
-        // If the datetime field has ordinals available, we can take a bunch of shortcuts later
-        if(_keyFieldValues instanceof WithOrdinals) {
-            _docOrds = ((WithOrdinals) _keyFieldValues).ordinals().getOrds(doc);
-            _docOrdPointer = _docOrds.offset;
-        } else {
-            _docIter = _keyFieldValues.getIter(doc);
+        _segmentHits++;
+        // The loader for this segment fills _docOrdBuffer or _docDatetimes, and sets the pointers
+        _keyLoader.load(doc);
+        if(hasValueField()) {
+            // The value field's iterator is only fetched if a subclass asks for the values themselves
+            _valueDoc = doc;
+            _valueFieldIter = null;
+        }
+    }
+
+    /**
+     * Collect a block of documents from the current segment, in ascending order, as in post mode.
+     * Subclasses can override this with a tighter loop than calling {@link #collect(int)} for each.
+     * 
+     * @param docs the document IDs
+     * @param count the number of document IDs in docs to collect
+     * @throws IOException
+     */
+    public void collectBlock(final int[] docs, final int count) throws IOException {
+        for(int i = 0; i < count; i++) {
+            collect(docs[i]);
         }
-        if(hasValueField())
-            _valueFieldIter = _valueFieldValues.getIter(doc);
+    }
+
+    /**
+     * Collect every document in the current segment, without visiting them one by one, if possible.
+     * The segment must not have any deletions. By default this isn't possible.
+     * 
+     * @param context the current segment
+     * @return true if all documents were collected, false if the caller should collect them itself
+     * @throws IOException
+     */
+    public boolean collectAll(final AtomicReaderContext context) throws IOException {
+        return false;
+    }
+
+    /**
+     * Get the index name of the datetime field.
+     * 
+     * @return the field name
+     */
+    protected String keyFieldName() {
+        return _keyFieldData.getFieldNames().indexName();
+    }
+
+    /**
+     * Record documents collected by a subclass without calling {@link #collect(int)}.
+     * 
+     * @param hits the number of documents
+     */
+    protected void addSegmentHits(final int hits) {
+        _segmentHits += hits;
+    }
+
+    /**
+     * Go back to the first timestamp of the current doc, so that its timestamps can be read again.
+     */
+    protected void rewindTimestamps() {
+        _docPointer = _docStart;
     }
 
     @Override
     public void setNextReader(final AtomicReaderContext context) throws IOException {
         _keyFieldValues = _keyFieldData.load(context).getLongValues();
+        _docStart = _docPointer = _docEnd = 0;
+
+        // If the datetime field has ordinals available, we can take a bunch of shortcuts later.
+        // Either way, pick a loader specialized for this segment's values, so collect() makes a
+        // single call that the JIT can inline rather than checking types and using iterators.
+        _ordinals = _keyFieldValues instanceof WithOrdinals;
+        if(_ordinals) {
+            _keyOrdinals = ((WithOrdinals) _keyFieldValues).ordinals();
+            _keyLoader = _keyOrdinals.isMultiValued() ? new MultiOrdinals(_keyOrdinals) : new SingleOrdinals(_keyOrdinals);
+        } else {
+            _keyOrdinals = null;
+            _keyLoader = _keyFieldValues.isMultiValued() ? new MultiLongs(_keyFieldValues) : new SingleLongs(_keyFieldValues);
+        }
         if(hasValueField())
-            _valueFieldValues = _valueFieldData.load(context).getBytesValues();
+            loadValueField(context);
 
-        // If we have ordinals avilable, we can do most of the work up front.
-        // We build a mapping from ords to rounded timestamps, so we never
-        // have to retrieve the field values for a given document. We just
-        // see which ordinals it has and then get the rounded timestamps they
-        // correspond to.
+        // Keep track of how selective the query has been so far
+        _previousHits += _segmentHits;
+        _previousDocs += _segmentDocs;
+        _segmentHits = 0;
+        _segmentDocs = context.reader().maxDoc();
 
-        // One drawback of this approach is that if we have a very aggressively
-        // filtered query, there might be many ordinals which are never used by
-        // any of the documents we will be looking at. So we'd be wasting effort
-        // by calculating timestamps for all of the ordinals up front.
-        // TODO come up with a heuristic to avoid falling into this trap.
+        // If we have ordinals available, we build a mapping from ords to rounded
+        // timestamps, so we never have to retrieve the field values for a given
+        // document. We just see which ordinals it has and then get the rounded
+        // timestamps they correspond to.
 
-        if(_keyFieldValues instanceof WithOrdinals) {
-            final int maxOrd = ((WithOrdinals) _keyFieldValues).ordinals().getMaxOrd();
-            int tsPointer = 0;
+        // If the query is heavily filtered, most ordinals may never be used by any
+        // of the documents we will be looking at, so rounding them all up front
+        // would be wasted effort. In that case each ordinal is rounded the first
+        // time a matching document refers to it instead.
+
+        // Tables rounded up front can be shared with later queries on the same segment,
+        // as long as we can find out when the segment closes.
+
+        if(_ordinals) {
+            final int maxOrd = _keyOrdinals.getMaxOrd();
+            final AtomicReader reader = context.reader();
+            final boolean cacheable = _ordinalCache != null && reader instanceof SegmentReader;
+            final String field = _keyFieldData.getFieldNames().indexName();
+
+            if(cacheable) {
+                final RoundedOrdinalCache.Table table = _ordinalCache.get(reader.getCoreCacheKey(), field, _roundingKey, maxOrd);
+                if(table != null) {
+                    _timestamps = table.getTimestamps();
+                    _timestampCount = _timestamps.length;
+                    _ordToTimestampPointers = table.getOrdToTimestampPointers();
+                    _cachedTable = true;
+                    _lazy = false;
+                    return;
+                }
+            }
+
+            final boolean lazy = roundLazily(maxOrd);
+            _lazy = lazy;
+
+            // Cached tables belong to the cache, so we can't reuse their arrays
+            if(_cachedTable || (cacheable && !lazy)) {
+                _timestamps = new long[16];
+                _ordToTimestampPointers = new int[maxOrd];
+            } else if(_ordToTimestampPointers.length < maxOrd) {
+                _ordToTimestampPointers = new int[ArrayUtil.oversize(maxOrd, 4)];
+            }
+            _cachedTable = false;
 
             // _timestamps holds the rounded timestamps
-            _timestamps.resetQuick();
-            _timestamps.add(0);
+            _timestamps[0] = 0;
+            _timestampCount = 1;
 
             // _ordToTimestampPointers has one entry for every ord
-            _ordToTimestampPointers.resetQuick();
-            _ordToTimestampPointers.add(0);
-
-            // We cache these for some small optimizations
-            long lastDateTime = 0;
-            long lastTimestamp = 0;
-            for(int i = 1; i < maxOrd; i++) {
-                // Get the next ordinal's value so we can calculate its timestamp
-                final long datetime = ((WithOrdinals) _keyFieldValues).getValueByOrd(i);
-
-                // If this datetime is less than a second after the previously-seen timestamp, it will have the same timestamp
-                // (true because we don't support granularity less than 1 sec)
-                if(datetime == lastDateTime || (datetime > lastTimestamp && datetime - lastTimestamp < 1000)) {
-                    // Just add another instance of the same timestamp pointer
-                    _ordToTimestampPointers.add(tsPointer);
-                } else {
-                    // We may or may not have a new timestamp
-                    final long newTimestamp = _tzRounding.calc(datetime);
-                    if(newTimestamp != lastTimestamp) {
-                        // We do -- save it and update pointer
-                        lastTimestamp = newTimestamp;
-                        _timestamps.add(newTimestamp);
-                        tsPointer++;
-                        // Otherwise this ord will have the same pointer as the last one
-                    }
+            Arrays.fill(_ordToTimestampPointers, 0, maxOrd, NOT_ROUNDED);
+            if(maxOrd > 0)
+                _ordToTimestampPointers[0] = 0;
+
+            _lastOrdDatetime = 0;
+            _lastOrdTimestamp = 0;
+            _lastOrdPointer = 0;
+            if(lazy) {
+                // Ordinals rounded on demand come in any order, so the same timestamp can come up
+                // again after others, and must get the same pointer as before
+                if(_lazyPointers == null)
+                    _lazyPointers = new TLongIntHashMap(64, 0.5f, Long.MIN_VALUE, NOT_ROUNDED);
+                else
+                    _lazyPointers.clear();
+                _lazyPointers.put(0, 0);
+            } else {
+                for(int i = 1; i < maxOrd; i++) {
+                    roundOrd(i);
                 }
-                lastDateTime = datetime;
+                if(cacheable) {
+                    _timestamps = Arrays.copyOf(_timestamps, _timestampCount);
+                    _ordinalCache.put((SegmentReader) reader, field, _roundingKey,
+                            new RoundedOrdinalCache.Table(_timestamps, _ordToTimestampPointers, maxOrd));
+                    _cachedTable = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the value field for a segment, along with the cheapest way of counting its values
+     * per doc: by ordinal if it has ordinals, otherwise as longs if it's numeric.
+     * 
+     * @param context the segment
+     */
+    private void loadValueField(final AtomicReaderContext context) {
+        final AtomicFieldData<?> data = _valueFieldData.load(context);
+        _valueFieldValues = data.getBytesValues();
+        _valueFieldIter = null;
+        _valueDoc = -1;
+        _valueOrdinals = null;
+        _valueLongValues = null;
+        if(_valueFieldValues instanceof BytesValues.WithOrdinals) {
+            _valueOrdinals = ((BytesValues.WithOrdinals) _valueFieldValues).ordinals();
+        } else if(data instanceof AtomicNumericFieldData) {
+            _valueLongValues = ((AtomicNumericFieldData) data).getLongValues();
+            if(_valueLongValues instanceof WithOrdinals)
+                _valueOrdinals = ((WithOrdinals) _valueLongValues).ordinals();
+        }
+    }
+
+    /**
+     * Decide whether to round the current segment's ordinals on demand, rather than up front.
+     * This is worthwhile if the query is expected to match fewer docs in the segment than
+     * there are ordinals, going by how many it matched in the previous segments. Until
+     * we have seen a segment, we assume it will.
+     * 
+     * @param maxOrd the number of ordinals in the segment
+     * @return true to round ordinals on demand
+     */
+    private boolean roundLazily(final int maxOrd) {
+        if(maxOrd <= MIN_LAZY_ORDS)
+            return false;
+        if(_previousDocs == 0)
+            return true;
+        final double estimatedHits = (double) _previousHits / _previousDocs * _segmentDocs;
+        return estimatedHits < maxOrd;
+    }
+
+    /**
+     * Round the datetime of an ordinal, and record a pointer to the rounded timestamp.
+     * 
+     * @param ord the ordinal
+     * @return the pointer into _timestamps
+     */
+    private int roundOrd(final int ord) {
+        // Get the ordinal's value so we can calculate its timestamp
+        final long datetime = ((WithOrdinals) _keyFieldValues).getValueByOrd(ord);
 
-                // Add timestamp pointer for this ord -- could be the same as the previous ord, or a new one
-                _ordToTimestampPointers.add(tsPointer);
+        // If this datetime is less than a second after the previously-seen timestamp, it will have the same timestamp
+        // (true because we don't support granularity less than 1 sec)
+        if(datetime != _lastOrdDatetime && !(datetime > _lastOrdTimestamp && datetime - _lastOrdTimestamp < 1000)) {
+            // We may or may not have a new timestamp
+            final long newTimestamp = _tzRounding.calc(datetime);
+            if(newTimestamp != _lastOrdTimestamp) {
+                _lastOrdTimestamp = newTimestamp;
+                // Up front, ordinals are rounded in ascending order, so a different timestamp is always a new one
+                final int seen = _lazy ? _lazyPointers.get(newTimestamp) : NOT_ROUNDED;
+                if(seen != NOT_ROUNDED) {
+                    _lastOrdPointer = seen;
+                } else {
+                    // We do -- save it and update pointer
+                    if(_timestampCount == _timestamps.length)
+                        _timestamps = ArrayUtil.grow(_timestamps);
+                    _timestamps[_timestampCount] = newTimestamp;
+                    _lastOrdPointer = _timestampCount++;
+                    if(_lazy)
+                        _lazyPointers.put(newTimestamp, _lastOrdPointer);
+                }
+                // Otherwise this ord will have the same pointer as the last one
             }
-        } else {
-            _docIter = EMPTY;
         }
+        _lastOrdDatetime = datetime;
+
+        // Save timestamp pointer for this ord -- could be the same as the previous ord, or a new one
+        _ordToTimestampPointers[ord] = _lastOrdPointer;
+        return _lastOrdPointer;
     }
 
     @Override
@@ -154,11 +374,109 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
      * @return true/false
      */
     protected boolean hasNextTimestamp() {
-        if(_keyFieldValues instanceof WithOrdinals) {
-            return _docOrdPointer < _docOrds.length;
-        } else {
-            return _docIter.hasNext();
-        }
+        return _docPointer < _docEnd;
+    }
+
+    /**
+     * Does the datetime field of the current segment have ordinals? If so, each of its
+     * values can be identified by an ordinal, see {@link #nextOrd()}, and each of its
+     * timestamps by a pointer, see {@link #nextTimestampPointer()}.
+     * 
+     * @return true/false
+     */
+    protected boolean hasOrdinals() {
+        return _ordinals;
+    }
+
+    /**
+     * Get the number of ordinals of the datetime field in the current segment, only if it {@link #hasOrdinals()}.
+     * 
+     * @return the number of ordinals
+     */
+    protected int maxOrd() {
+        return keyOrdinals().getMaxOrd();
+    }
+
+    /**
+     * Check whether the ordinals of the current segment are being rounded on demand, as the query
+     * is expected to match few of its docs, only if it {@link #hasOrdinals()}.
+     * 
+     * @return true/false
+     */
+    protected boolean roundsLazily() {
+        return _lazy;
+    }
+
+    /**
+     * Get the ordinals of the datetime field in the current segment, only if it {@link #hasOrdinals()}.
+     * 
+     * @return the ordinals
+     */
+    protected Ordinals.Docs keyOrdinals() {
+        return _keyOrdinals;
+    }
+
+    /**
+     * Get the datetime of an ordinal in the current segment, only if it {@link #hasOrdinals()}.
+     * 
+     * @param ord the ordinal
+     * @return the unrounded datetime
+     */
+    protected long valueOfOrd(final int ord) {
+        return ((WithOrdinals) _keyFieldValues).getValueByOrd(ord);
+    }
+
+    /**
+     * Get the ordinal of the next datetime, only if the current segment {@link #hasOrdinals()}.
+     * This doesn't round the datetime, so collectors can count by ordinal and round
+     * each ordinal once at the end of the segment, with {@link #timestampPointerOf(int)}.
+     * 
+     * @return the ordinal
+     */
+    protected int nextOrd() {
+        return _docOrdBuffer[_docPointer++];
+    }
+
+    /**
+     * Get a pointer to the timestamp of an ordinal in the current segment, rounding it if necessary.
+     * Pointers are small ints, which are equal for equal timestamps within a segment.
+     * 
+     * @param ord the ordinal
+     * @return the pointer, less than {@link #timestampCount()}
+     */
+    protected int timestampPointerOf(final int ord) {
+        final int pointer = _ordToTimestampPointers[ord];
+        return pointer == NOT_ROUNDED ? roundOrd(ord) : pointer;
+    }
+
+    /**
+     * Get a pointer to the next timestamp, only if the current segment {@link #hasOrdinals()}.
+     * 
+     * @return the pointer, less than {@link #timestampCount()}
+     */
+    protected int nextTimestampPointer() {
+        // We can bypass getting the raw datetime value, and go from ord to timestamp directly (well, directly-ish)
+        return timestampPointerOf(nextOrd());
+    }
+
+    /**
+     * Get the number of timestamps in the current segment that pointers can refer to so far.
+     * This may grow as more docs are collected.
+     * 
+     * @return the number of timestamps
+     */
+    protected int timestampCount() {
+        return _timestampCount;
+    }
+
+    /**
+     * Get the timestamp that a pointer refers to, in the current segment.
+     * 
+     * @param pointer the pointer
+     * @return the timestamp
+     */
+    protected long timestampAt(final int pointer) {
+        return _timestamps[pointer];
     }
 
     /**
@@ -167,14 +485,13 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
      * @return the timestamp
      */
     protected long nextTimestamp() {
-        if(_keyFieldValues instanceof WithOrdinals) {
-            // We can bypass getting the raw datetime value, and go from ord to timestamp directly (well, directly-ish)
-            final long ts = _timestamps.get(_ordToTimestampPointers.get(_docOrds.ints[_docOrdPointer]));
-            _docOrdPointer++;
-            return ts;
+        if(_ordinals) {
+            // Rounding on demand may grow _timestamps, so the pointer has to be found first
+            final int pointer = nextTimestampPointer();
+            return _timestamps[pointer];
         } else {
             // Get the next raw datetime, and if necessary, round it
-            final long datetime = _docIter.next();
+            final long datetime = _docDatetimes[_docPointer++];
             // If this datetime is less than a second after the previously-seen timestamp, it will have the same timestamp
             // (true because we don't support granularity less than 1 sec)
             if(datetime == _lastNonOrdDatetime || (datetime > _lastNonOrdTimestamp && datetime - _lastNonOrdTimestamp < 1000)) {
@@ -206,7 +523,7 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
      * @return true/false
      */
     protected boolean hasNextValue() {
-        return _valueFieldIter != null && _valueFieldIter.hasNext();
+        return valueFieldIter() != null && _valueFieldIter.hasNext();
     }
 
     /**
@@ -215,7 +532,150 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
      * @return the next value as a BytesRef, or null
      */
     protected BytesRef nextValue() {
-        return _valueFieldIter == null ? null : _valueFieldIter.next();
+        return valueFieldIter() == null ? null : _valueFieldIter.next();
+    }
+
+    /**
+     * Get the number of values of the value field for the current doc, or 0 if we're not using a value field.
+     * Unlike {@link #nextValue()}, this doesn't decode the values or consume them, so collectors
+     * which only count occurrences should use it instead.
+     * 
+     * @return the number of values
+     */
+    protected int valueCount() {
+        if(_valueDoc < 0)
+            return 0;
+        if(_valueOrdinals != null) {
+            if(!_valueOrdinals.isMultiValued())
+                return _valueOrdinals.getOrd(_valueDoc) == 0 ? 0 : 1;
+            return _valueOrdinals.getOrds(_valueDoc).length;
+        }
+        if(_valueLongValues != null) {
+            if(!_valueLongValues.isMultiValued())
+                return _valueLongValues.hasValue(_valueDoc) ? 1 : 0;
+            int count = 0;
+            for(final Iter iter = _valueLongValues.getIter(_valueDoc); iter.hasNext(); iter.next()) {
+                count++;
+            }
+            return count;
+        }
+        if(!_valueFieldValues.isMultiValued())
+            return _valueFieldValues.hasValue(_valueDoc) ? 1 : 0;
+        // There's no other way to count these
+        int count = 0;
+        for(final BytesValues.Iter iter = _valueFieldValues.getIter(_valueDoc); iter.hasNext(); iter.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the value field's iterator for the current doc, fetching it the first time it's needed.
+     * 
+     * @return the iterator, or null if we're not using a value field
+     */
+    private BytesValues.Iter valueFieldIter() {
+        if(_valueFieldIter == null && _valueDoc >= 0)
+            _valueFieldIter = _valueFieldValues.getIter(_valueDoc);
+        return _valueFieldIter;
+    }
+
+    /**
+     * Loads the datetimes of a doc from one segment. There is one implementation for each combination
+     * of ordinals or raw longs, single-valued or multi-valued, each with no type checks or iterators.
+     */
+    private abstract class KeyLoader {
+
+        /**
+         * Load the datetimes of a doc, ready for {@link TimestampFirstCollector#hasNextTimestamp()}.
+         * 
+         * @param doc the document ID
+         */
+        abstract void load(int doc);
+
+    }
+
+    private final class SingleOrdinals extends KeyLoader {
+
+        private final Ordinals.Docs _ords;
+
+        SingleOrdinals(final Ordinals.Docs ords) {
+            _ords = ords;
+            _docOrdBuffer = _singleOrd;
+        }
+
+        @Override
+        void load(final int doc) {
+            // Docs without a datetime have ordinal 0
+            final int ord = _ords.getOrd(doc);
+            _singleOrd[0] = ord;
+            _docStart = _docPointer = 0;
+            _docEnd = ord == 0 ? 0 : 1;
+        }
+
+    }
+
+    private final class MultiOrdinals extends KeyLoader {
+
+        private final Ordinals.Docs _ords;
+
+        MultiOrdinals(final Ordinals.Docs ords) {
+            _ords = ords;
+        }
+
+        @Override
+        void load(final int doc) {
+            final IntsRef ords = _ords.getOrds(doc);
+            _docOrdBuffer = ords.ints;
+            _docStart = _docPointer = ords.offset;
+            _docEnd = ords.offset + ords.length;
+        }
+
+    }
+
+    private final class SingleLongs extends KeyLoader {
+
+        private final LongValues _values;
+
+        SingleLongs(final LongValues values) {
+            _values = values;
+        }
+
+        @Override
+        void load(final int doc) {
+            _docStart = _docPointer = 0;
+            if(_values.hasValue(doc)) {
+                _docDatetimes[0] = _values.getValue(doc);
+                _docEnd = 1;
+            } else {
+                _docEnd = 0;
+            }
+        }
+
+    }
+
+    private final class MultiLongs extends KeyLoader {
+
+        private final LongValues _values;
+
+        MultiLongs(final LongValues values) {
+            _values = values;
+        }
+
+        @Override
+        void load(final int doc) {
+            // There's no bulk accessor, so copy the values out once, which also lets them be rewound
+            final Iter iter = _values.getIter(doc);
+            int count = 0;
+            while(iter.hasNext()) {
+                if(count == _docDatetimes.length)
+                    _docDatetimes = ArrayUtil.grow(_docDatetimes);
+                _docDatetimes[count++] = iter.next();
+            }
+            _docStart = _docPointer = 0;
+            _docEnd = count;
+        }
+
     }
 
 }
@@ -114,6 +114,15 @@ public abstract class DateFacet<P extends ToXContent> extends InternalFacet {
      */
     protected abstract void releaseCache();
 
+    /**
+     * Give back this facet's data structures without serializing it, when it is not going to be
+     * used after all, e.g. because building another part of the result failed. The facet must not
+     * be used afterwards.
+     */
+    public void release() {
+        releaseCache();
+    }
+
     /**
      * Serialize the facet data to a stream.
      * 
@@ -44,6 +44,9 @@ public class DateFacetBuilder extends FacetBuilder {
     private String postZone = null;
     private Boolean preZoneAdjustLargeInterval;
     private int exactThreshold = -1;
+    private double precision = -1;
+    private String exactMode = null;
+    private Boolean parallelSegments;
     private long preOffset = 0;
     private long postOffset = 0;
     private float factor = 1.0f;
@@ -257,6 +260,44 @@ public class DateFacetBuilder extends FacetBuilder {
         return this;
     }
 
+    /**
+     * How should distinct values be stored below the exact threshold? "bytes" (the default)
+     * stores the values themselves. "hashed" stores 64-bit hashes of them, which saves
+     * memory for long values but allows a very small chance of collisions. (Distinct mode only)
+     * 
+     * @param exactMode "bytes" or "hashed"
+     * @return the builder
+     */
+    public DateFacetBuilder exactMode(final String exactMode) {
+        this.exactMode = exactMode;
+        return this;
+    }
+
+    /**
+     * The relative standard deviation of approximate distinct counts, e.g. 0.01 for
+     * estimates which are usually within about 1% of the true count. Lower values are
+     * more accurate but use more memory. (Distinct mode only)
+     * 
+     * @param precision the relative standard deviation, between 0 and 1
+     * @return the builder
+     */
+    public DateFacetBuilder precision(final double precision) {
+        this.precision = precision;
+        return this;
+    }
+
+    /**
+     * Should the shard's segments be collected in parallel, on the node's segment pool? This only
+     * applies in post mode. Defaults to the node's <tt>approx.date.parallel_segments</tt> setting.
+     * 
+     * @param parallelSegments true to collect segments in parallel
+     * @return the builder
+     */
+    public DateFacetBuilder parallelSegments(final boolean parallelSegments) {
+        this.parallelSegments = parallelSegments;
+        return this;
+    }
+
     /**
      * Should the facet run in global mode (not bounded by the search query) or not (bounded by
      * the search query). Defaults to <tt>false</tt>.
@@ -349,6 +390,15 @@ public class DateFacetBuilder extends FacetBuilder {
         if(exactThreshold != -1) {
             builder.field("exact_threshold", exactThreshold);
         }
+        if(exactMode != null) {
+            builder.field("exact_mode", exactMode);
+        }
+        if(precision != -1) {
+            builder.field("precision", precision);
+        }
+        if(parallelSegments != null) {
+            builder.field("parallel_segments", parallelSegments);
+        }
         builder.endObject();
 
         addFilterFacetAndGlobal(builder, params);
@@ -0,0 +1,18 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import org.elasticsearch.common.joda.TimeZoneRounding;
+
+/**
+ * An interface for roundings which can provide an equivalent rounding for another thread.
+ */
+public interface CopyableRounding {
+
+    /**
+     * Get a rounding which gives the same results as this one, and is safe to use on another
+     * thread alongside it. Immutable roundings can return themselves.
+     * 
+     * @return the rounding
+     */
+    TimeZoneRounding copy();
+
+}
@@ -15,8 +15,11 @@ import java.util.Arrays;
 import java.util.List;
 
 import org.apache.lucene.codecs.bloom.MurmurHash2;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
 
 import com.clearspring.analytics.stream.cardinality.AdaptiveCounting;
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
@@ -28,6 +31,9 @@ import com.clearspring.analytics.stream.cardinality.LogLog;
 import com.clearspring.analytics.util.ExternalizableUtil;
 import com.clearspring.analytics.util.IBuilder;
 import com.pearson.entech.elasticsearch.plugin.approx.BytesRefUtils.Procedure;
+import com.pearson.entech.elasticsearch.plugin.approx.EstimatorRecycler;
+import com.pearson.entech.elasticsearch.plugin.approx.LongHash;
+import com.pearson.entech.elasticsearch.plugin.approx.MurmurHash3;
 
 /**
  * Exact -> Estimator cardinality counting
@@ -37,13 +43,31 @@ import com.pearson.entech.elasticsearch.plugin.approx.BytesRefUtils.Procedure;
  * a specified "tipping point" cardinality is reached.
  * </p>
  * <p/>
- * Currently supports serialization with LinearCounting or AdaptiveCounting
+ * Currently supports serialization with LinearCounting, AdaptiveCounting,
+ * HyperLogLog, HyperLogLogPlus and SparseHyperLogLog
+ * </p>
+ * <p/>
+ * <p>
+ * Within Elasticsearch, use {@link #writeTo(StreamOutput)} and the matching
+ * StreamInput constructor rather than Java serialization. They write straight
+ * to the stream, without class descriptors or the builder, which the reader
+ * must supply.
+ * </p>
+ * <p/>
+ * <p>
+ * In hashed exact mode, the exact counter stores 64-bit MurmurHash3 hashes of
+ * the values instead of the values themselves. This takes a fixed 8 bytes per
+ * value, and tipping doesn't have to hash anything again, at the cost of a
+ * negligible chance of two values colliding. The hashes are offered straight to
+ * the estimator, so this mode should only be used with SparseHyperLogLog.
+ * </p>
  */
 public class CountThenEstimateBytes implements ICardinality, Externalizable
 {
 
     /**
-     *  Hash function used when adding bytesrefs to the estimator, not used in exact counting.
+     *  Hash function used when adding bytesrefs to 32-bit estimators, not used in exact counting.
+     *  SparseHyperLogLog estimators use 64-bit MurmurHash3 instead.
      */
     private static final MurmurHash2 __luceneMurmurHash = MurmurHash2.INSTANCE;
 
@@ -62,6 +86,9 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
     /** HyperLogLog Plus constant for serialization. */
     protected final static byte HLPC = 5;
 
+    /** Sparse HyperLogLog++ constant for serialization. */
+    protected final static byte SHLLC = 6;
+
     /**
      * Cardinality after which exact counting gives way to estimation.
      */
@@ -93,6 +120,12 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
      */
     protected BytesRefHash _counter;
 
+    /**
+     * Cardinality counter for hashed exact mode: null after tipping point is reached,
+     * or if we are storing exact values in _counter
+     */
+    protected LongHash _hashCounter;
+
     /**
      * Size of the longest BytesRef that the counter object has seen
      */
@@ -106,14 +139,29 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
      * @param builder      Factory for instantiating estimator after the tipping point is reached
      */
     public CountThenEstimateBytes(final int tippingPoint, final IBuilder<ICardinality> builder) {
+        this(tippingPoint, builder, false);
+    }
+
+    /**
+     * Create a new count-then-estimate cardinality object with the tipping point provided,
+     * optionally storing hashes rather than values until this has been reached.
+     * After this has been reached, the provided builder will be used to create an estimator.
+     * 
+     * @param tippingPoint Cardinality at which exact counting gives way to estimation
+     * @param builder      Factory for instantiating estimator after the tipping point is reached
+     * @param hashed       True to use hashed exact mode
+     */
+    public CountThenEstimateBytes(final int tippingPoint, final IBuilder<ICardinality> builder, final boolean hashed) {
         _tippingPoint = tippingPoint;
         _builder = builder;
         if(tippingPoint == 0) {
             _counter = null;
             _estimator = builder.build();
             _tipped = true;
+        } else if(hashed) {
+            _hashCounter = new LongHash();
         } else {
-            _counter = new BytesRefHash();
+            _counter = EstimatorRecycler.popBytesRefHash();
         }
     }
 
@@ -131,15 +179,74 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
         this(tippingPoint, builder);
         readExternal(new ObjectInputStream(new ByteArrayInputStream(bytes)));
 
-        if(!_tipped && _counter.size() > tippingPoint)
+        if(!_tipped && cardinality() > tippingPoint)
             tip();
     }
 
+    /**
+     * Deserialization constructor. Reads an object written by {@link #writeTo(StreamOutput)}.
+     *
+     * @param in the stream to read from
+     * @param tippingPoint Cardinality at which exact counting gives way to estimation
+     * @param builder      Factory for instantiating estimator after the tipping point is reached
+     * @throws IOException
+     */
+    public CountThenEstimateBytes(final StreamInput in, final int tippingPoint,
+            final IBuilder<ICardinality> builder) throws IOException {
+        _tippingPoint = tippingPoint;
+        _builder = builder;
+        _tipped = in.readBoolean();
+        if(_tipped) {
+
+            final byte type = in.readByte();
+            if(type == SHLLC) {
+                _estimator = SparseHyperLogLog.Builder.build(in);
+            } else {
+                final byte[] bytes = new byte[in.readVInt()];
+                in.readBytes(bytes, 0, bytes.length);
+                _estimator = readEstimator(type, bytes);
+            }
+            _builder = null;
+            _compacted = true;
+
+        } else if(in.readBoolean()) {
+
+            final int count = in.readVInt();
+            _hashCounter = new LongHash(count);
+            for(int i = 0; i < count; i++) {
+                _hashCounter.add(in.readLong());
+            }
+            if(_hashCounter.size() > tippingPoint)
+                tip();
+
+        } else {
+
+            final int count = in.readVInt();
+            _counter = EstimatorRecycler.popBytesRefHash();
+            final BytesRef scratch = new BytesRef();
+            for(int i = 0; i < count; i++) {
+                final int length = in.readVInt();
+                scratch.bytes = ArrayUtil.grow(scratch.bytes, length);
+                in.readBytes(scratch.bytes, 0, length);
+                scratch.length = length;
+                _counter.add(scratch);
+                if(length > _longestBytesRefSize)
+                    _longestBytesRefSize = length;
+            }
+            if(_counter.size() > tippingPoint)
+                tip();
+
+        }
+    }
+
     @Override
     public long cardinality() {
         if(_tipped) {
             return _estimator.cardinality();
         }
+        if(_hashCounter != null) {
+            return _hashCounter.size();
+        }
         return _counter.size();
     }
 
@@ -164,10 +271,11 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
      * @return true if an equivalent string of bytes had not previously been offered
      */
     public boolean offerBytesRef(final BytesRef ref) {
+        if(_hashCounter != null)
+            return offerHash(MurmurHash3.hash64(ref));
         boolean modified = false;
         if(_tipped) {
-            // The _estimator just needs the hash of the current bytes of the BytesRef
-            modified = _estimator.offerHashed(__luceneMurmurHash.hash(ref));
+            modified = offerToEstimator(ref);
         } else {
             if(_compacted)
                 throw new IllegalStateException("Counter has already been compacted -- cannot add new data");
@@ -184,6 +292,58 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
         return modified;
     }
 
+    /**
+     * Add the 64-bit MurmurHash3 hash of a value to the underlying counter or estimator,
+     * tipping into approx mode if the tipping point has been reached. This is only
+     * possible in hashed exact mode, or once the tipping point has been reached.
+     * 
+     * @param hash the hash, from {@link MurmurHash3}
+     * @return true if the hash had not previously been offered
+     */
+    public boolean offerHash(final long hash) {
+        if(_tipped)
+            return _estimator.offerHashed(hash);
+        if(_hashCounter == null)
+            throw new IllegalStateException("Counter is not in hashed mode -- cannot add hashes");
+        if(_hashCounter.add(hash) >= 0) {
+            if(_hashCounter.size() > _tippingPoint)
+                tip();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether this instance is in hashed exact mode.
+     * 
+     * @return true if exact counting is being done on hashes rather than values
+     */
+    public boolean hashed() {
+        return _hashCounter != null;
+    }
+
+    /**
+     * Switch from exact counting on values to exact counting on hashes.
+     * Does nothing if we are already counting hashes, or have tipped into approx mode.
+     */
+    private void toHashed() {
+        if(_tipped || _hashCounter != null)
+            return;
+        if(_compacted)
+            throw new IllegalStateException("Counter has already been compacted -- cannot convert to hashes");
+        final LongHash hashCounter = new LongHash(_counter.size());
+        process(_counter, new Procedure() {
+            @Override
+            public void consume(final BytesRef ref) {
+                hashCounter.add(MurmurHash3.hash64(ref));
+            }
+        });
+        _hashCounter = hashCounter;
+        EstimatorRecycler.pushBytesRefHash(_counter);
+        _counter = null;
+        _longestBytesRefSize = 0;
+    }
+
     @Override
     public boolean offer(final Object o)
     {
@@ -216,12 +376,21 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
     private void tip() {
         if(!_tipped) {
             _estimator = _builder.build();
-            process(_counter, new Procedure() {
-                @Override
-                public void consume(final BytesRef ref) {
-                    _estimator.offerHashed(__luceneMurmurHash.hash(ref));
+            if(_hashCounter != null) {
+                final int size = _hashCounter.size();
+                for(int i = 0; i < size; i++) {
+                    _estimator.offerHashed(_hashCounter.get(i));
                 }
-            });
+                _hashCounter = null;
+            } else {
+                process(_counter, new Procedure() {
+                    @Override
+                    public void consume(final BytesRef ref) {
+                        offerToEstimator(ref);
+                    }
+                });
+                EstimatorRecycler.pushBytesRefHash(_counter);
+            }
             _counter = null;
             _longestBytesRefSize = 0;
             _builder = null;
@@ -230,6 +399,32 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
         }
     }
 
+    /**
+     * Give the exact counter back to the {@link EstimatorRecycler}, once this object is
+     * finished with. Its cardinality can't be read or written any more afterwards, unless
+     * it has tipped into approx mode. Calling this more than once has no effect.
+     */
+    public void release() {
+        if(_counter != null) {
+            EstimatorRecycler.pushBytesRefHash(_counter);
+            _counter = null;
+            _compacted = true;
+        }
+    }
+
+    /**
+     * Add a BytesRef to the estimator. The estimator just needs the hash of the current bytes
+     * of the BytesRef, so it doesn't have to be made safe.
+     * 
+     * @param ref the BytesRef to add
+     * @return true if the estimator was modified
+     */
+    private boolean offerToEstimator(final BytesRef ref) {
+        if(_estimator instanceof SparseHyperLogLog)
+            return _estimator.offerHashed(MurmurHash3.hash64(ref));
+        return _estimator.offerHashed(__luceneMurmurHash.hash(ref));
+    }
+
     /**
      * Check the tipped status.
      * 
@@ -254,35 +449,31 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
             final byte[] bytes = new byte[in.readInt()];
             in.readFully(bytes);
 
-            switch(type)
-            {
-            case LC:
-                _estimator = new LinearCounting(bytes);
-                break;
-            case AC:
-                _estimator = new AdaptiveCounting(bytes);
-                break;
-            case HLC:
-                _estimator = HyperLogLog.Builder.build(bytes);
-                break;
-            case HLPC:
-                _estimator = HyperLogLogPlus.Builder.build(bytes);
-                break;
-            case LLC:
-                _estimator = new LinearCounting(bytes);
-                break;
-            default:
-                throw new IOException("Unrecognized estimator type: " + type);
-            }
+            _estimator = readEstimator(type, bytes);
 
         } else {
 
             _tippingPoint = in.readInt();
             _builder = (IBuilder) in.readObject();
+            final boolean hashed = in.readBoolean();
             final int count = in.readInt();
 
             assert (count <= _tippingPoint) : String.format("Invalid serialization: count (%d) > _tippingPoint (%d)", count, _tippingPoint);
 
+            if(hashed) {
+                _counter = null;
+                _hashCounter = new LongHash(count);
+                for(int i = 0; i < count; i++) {
+                    _hashCounter.add(in.readLong());
+                }
+                return;
+            }
+
+            _hashCounter = null;
+            if(_counter == null) {
+                _counter = EstimatorRecycler.popBytesRefHash();
+            }
+
             // Just in case some muppet tries to deserialize into an already-used counter
             if(_compacted || _counter.size() > 0) {
                 _counter.clear();
@@ -305,19 +496,7 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
         out.writeBoolean(_tipped);
         if(_tipped) {
 
-            if(_estimator instanceof LinearCounting)
-                out.writeByte(LC);
-            else if(_estimator instanceof AdaptiveCounting)
-                out.writeByte(AC);
-            else if(_estimator instanceof HyperLogLog)
-                out.writeByte(HLC);
-            else if(_estimator instanceof HyperLogLogPlus)
-                out.writeByte(HLPC);
-            else if(_estimator instanceof LogLog)
-                out.writeByte(LLC);
-            else
-                throw new IOException("Estimator unsupported for serialization: " + _estimator.getClass().getName());
-
+            out.writeByte(estimatorType(_estimator));
             final byte[] bytes = _estimator.getBytes();
             out.writeInt(bytes.length);
             out.write(bytes);
@@ -326,6 +505,17 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
 
             out.writeInt(_tippingPoint);
             out.writeObject(_builder);
+            out.writeBoolean(_hashCounter != null);
+
+            if(_hashCounter != null) {
+                final int size = _hashCounter.size();
+                out.writeInt(size);
+                for(int i = 0; i < size; i++) {
+                    out.writeLong(_hashCounter.get(i));
+                }
+                return;
+            }
+
             out.writeInt(_counter.size());
             out.writeInt(_longestBytesRefSize);
 
@@ -341,6 +531,159 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
         }
     }
 
+    /**
+     * Write this object directly to a stream. The tipping point and builder are not written,
+     * as the caller has to supply them again on reading. When counting exact values rather
+     * than hashes, this compacts the counter, so no more data can be added afterwards.
+     *
+     * @param out the stream to write to
+     * @throws IOException
+     */
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeBoolean(_tipped);
+        if(_tipped) {
+
+            final byte type = estimatorType(_estimator);
+            out.writeByte(type);
+            if(type == SHLLC) {
+                ((SparseHyperLogLog) _estimator).writeTo(out);
+            } else {
+                final byte[] bytes = _estimator.getBytes();
+                out.writeVInt(bytes.length);
+                out.writeBytes(bytes);
+            }
+
+        } else if(_hashCounter != null) {
+
+            out.writeBoolean(true);
+            final int size = _hashCounter.size();
+            out.writeVInt(size);
+            for(int i = 0; i < size; i++) {
+                out.writeLong(_hashCounter.get(i));
+            }
+
+        } else {
+
+            out.writeBoolean(false);
+            out.writeVInt(_counter.size());
+            process(_counter, new Procedure() {
+                @Override
+                public void consume(final BytesRef ref) throws IOException {
+                    out.writeVInt(ref.length);
+                    out.writeBytes(ref.bytes, ref.offset, ref.length);
+                }
+            });
+            _compacted = true;
+
+        }
+    }
+
+    /**
+     * Merge an object written by {@link #writeTo(StreamOutput)} into this one, reading it
+     * straight from the stream rather than deserializing it first. If both sides are
+     * SparseHyperLogLog estimators, the other side's registers are folded into ours as they
+     * are read, so no copy of them is ever built.
+     *
+     * @param in the stream to read from
+     * @throws IOException
+     * @throws CardinalityMergeException if the estimators are not mergeable
+     */
+    public void mergeFrom(final StreamInput in) throws IOException, CardinalityMergeException {
+        if(in.readBoolean()) {
+
+            final byte type = in.readByte();
+            if(!_tipped)
+                tip();
+            if(type == SHLLC && _estimator instanceof SparseHyperLogLog) {
+                ((SparseHyperLogLog) _estimator).addAll(in);
+            } else {
+                final ICardinality other;
+                if(type == SHLLC) {
+                    other = SparseHyperLogLog.Builder.build(in);
+                } else {
+                    final byte[] bytes = new byte[in.readVInt()];
+                    in.readBytes(bytes, 0, bytes.length);
+                    other = readEstimator(type, bytes);
+                }
+                _estimator = _estimator.merge(other);
+            }
+
+        } else if(in.readBoolean()) {
+
+            // Hashes can't be turned back into values, so we have to count hashes too
+            toHashed();
+            final int count = in.readVInt();
+            for(int i = 0; i < count; i++) {
+                offerHash(in.readLong());
+            }
+
+        } else {
+
+            final int count = in.readVInt();
+            final BytesRef scratch = new BytesRef();
+            for(int i = 0; i < count; i++) {
+                final int length = in.readVInt();
+                scratch.bytes = ArrayUtil.grow(scratch.bytes, length);
+                in.readBytes(scratch.bytes, 0, length);
+                scratch.length = length;
+                offerBytesRef(scratch);
+            }
+
+        }
+    }
+
+    /**
+     * Get the serialization constant for an estimator.
+     *
+     * @param estimator the estimator
+     * @return the constant
+     * @throws IOException if the estimator type is not supported
+     */
+    private static byte estimatorType(final ICardinality estimator) throws IOException {
+        if(estimator instanceof LinearCounting)
+            return LC;
+        else if(estimator instanceof AdaptiveCounting)
+            return AC;
+        else if(estimator instanceof HyperLogLog)
+            return HLC;
+        else if(estimator instanceof HyperLogLogPlus)
+            return HLPC;
+        else if(estimator instanceof LogLog)
+            return LLC;
+        else if(estimator instanceof SparseHyperLogLog)
+            return SHLLC;
+        else
+            throw new IOException("Estimator unsupported for serialization: " + estimator.getClass().getName());
+    }
+
+    /**
+     * Deserialize an estimator from its serialization constant and bytes.
+     *
+     * @param type the serialization constant
+     * @param bytes the serialized estimator
+     * @return the estimator
+     * @throws IOException if the type is not recognized
+     */
+    private static ICardinality readEstimator(final byte type, final byte[] bytes) throws IOException {
+        switch(type)
+        {
+        case LC:
+            return new LinearCounting(bytes);
+        case AC:
+            return new AdaptiveCounting(bytes);
+        case HLC:
+            return HyperLogLog.Builder.build(bytes);
+        case HLPC:
+            return HyperLogLogPlus.Builder.build(bytes);
+        case SHLLC:
+            return SparseHyperLogLog.Builder.build(bytes);
+        case LLC:
+            return new LinearCounting(bytes);
+        default:
+            throw new IOException("Unrecognized estimator type: " + type);
+        }
+    }
+
     @Override
     public ICardinality merge(final ICardinality... estimators) throws CardinalityMergeException {
         if(estimators == null)
@@ -380,13 +723,22 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
                 merged = untipped.get(0);
                 for(int i = 1; i < untippedSize; i++) {
                     final CountThenEstimateBytes cte = untipped.get(i);
-                    process(cte._counter, new Procedure() {
-                        @Override
-                        public void consume(final BytesRef ref) throws Exception {
-                            merged.offerBytesRef(ref);
+                    if(cte._hashCounter != null) {
+                        // Hashes can't be turned back into values, so the merged counter has to count hashes too
+                        merged.toHashed();
+                        final int size = cte._hashCounter.size();
+                        for(int j = 0; j < size; j++) {
+                            merged.offerHash(cte._hashCounter.get(j));
                         }
-                    });
-                    cte._compacted = true;
+                    } else {
+                        process(cte._counter, new Procedure() {
+                            @Override
+                            public void consume(final BytesRef ref) throws Exception {
+                                merged.offerBytesRef(ref);
+                            }
+                        });
+                        cte._compacted = true;
+                    }
                 }
 
             } else {
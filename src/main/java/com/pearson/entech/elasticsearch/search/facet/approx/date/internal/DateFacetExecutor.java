@@ -1,26 +1,100 @@
 package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.collect.ImmutableSet;
 import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.lucene.docset.AllDocIdSet;
+import org.elasticsearch.common.lucene.docset.ContextDocIdSet;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
+import org.elasticsearch.search.facet.Facet;
 import org.elasticsearch.search.facet.FacetExecutor;
 import org.elasticsearch.search.facet.FacetPhaseExecutionException;
 import org.elasticsearch.search.facet.InternalFacet;
 
+import com.pearson.entech.elasticsearch.plugin.approx.DirectPagePool;
+import com.pearson.entech.elasticsearch.plugin.approx.RoundedOrdinalCache;
+import com.pearson.entech.elasticsearch.plugin.approx.SegmentCollectionPool;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.CountingCollector;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.DistinctCollector;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.NullFieldData;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.SlicedCollector;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.SlicedDistinctCollector;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.TimestampFirstCollector;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DateFacet;
 
 /**
  * Executor for all date facets.
  */
 public class DateFacetExecutor extends FacetExecutor {
 
+    /**
+     * Number of documents handed to the collector at a time in post mode.
+     */
+    private static final int POST_BLOCK_SIZE = 1024;
+
+    /**
+     * Orders segments by size, largest first, for sharing them out between tasks.
+     */
+    private static final Comparator<ContextDocIdSet> LARGEST_FIRST = new Comparator<ContextDocIdSet>() {
+        @Override
+        public int compare(final ContextDocIdSet a, final ContextDocIdSet b) {
+            final int aDocs = a.context.reader().maxDoc();
+            final int bDocs = b.context.reader().maxDoc();
+            return aDocs > bDocs ? -1 : aDocs < bDocs ? 1 : 0;
+        }
+    };
+
+    /**
+     * The classes of the roundings built by {@link TimeZoneRounding.Builder} in Elasticsearch 0.90, which are all
+     * immutable. They aren't visible from here, so they're identified by name; the last two only ever wrap the others.
+     */
+    private static final Set<String> IMMUTABLE_ROUNDINGS = ImmutableSet.of(
+            "org.elasticsearch.common.joda.TimeZoneRounding$UTCTimeZoneRoundingFloor",
+            "org.elasticsearch.common.joda.TimeZoneRounding$UTCIntervalTimeZoneRounding",
+            "org.elasticsearch.common.joda.TimeZoneRounding$TimeTimeZoneRoundingFloor",
+            "org.elasticsearch.common.joda.TimeZoneRounding$TimeIntervalTimeZoneRounding",
+            "org.elasticsearch.common.joda.TimeZoneRounding$DayTimeZoneRoundingFloor",
+            "org.elasticsearch.common.joda.TimeZoneRounding$DayIntervalTimeZoneRounding",
+            "org.elasticsearch.common.joda.TimeZoneRounding$FactorTimeZoneRounding",
+            "org.elasticsearch.common.joda.TimeZoneRounding$PrePostTimeZoneRounding");
+
     private final TimestampFirstCollector<?> _collector;
 
+    private final LongArrayIndexFieldData _keyFieldData;
+    private final IndexFieldData<?> _valueFieldData;
+    private final IndexFieldData<?> _distinctFieldData;
+    private final IndexFieldData<?> _sliceFieldData;
+    private final TimeZoneRounding _tzRounding;
+    private final int _exactThreshold;
+    private final double _rsd;
+    private final boolean _hashedExact;
+    private final DirectPagePool _pagePool;
+    private final RoundedOrdinalCache _ordinalCache;
+    private final String _roundingKey;
+    private final SegmentCollectionPool _segmentPool;
+
+    /**
+     * One collector per task, if segments were collected in parallel, otherwise null.
+     */
+    private List<TimestampFirstCollector<?>> _taskCollectors;
+
+    /**
+     * True once the collectors' pooled resources have been handed on to a facet, or released.
+     */
+    private boolean _finished;
+
     // TODO proper use of generics
 
     /**
@@ -32,35 +106,137 @@ public class DateFacetExecutor extends FacetExecutor {
      * @param sliceFieldData field data for the optional slice field, can be null
      * @param tzRounding a timezone rounding object
      * @param exactThreshold exact count threshold when doing distincts
+     * @param rsd relative standard deviation of approximate counts when doing distincts
+     * @param hashedExact count exact distinct values by their hashes rather than storing them
+     * @param pagePool pool of off-heap pages for approximate counts when doing distincts, or null to use the heap
+     * @param ordinalCache node-level cache of rounded timestamps for each segment, or null to round them for every query
+     * @param roundingKey a key describing tzRounding, for looking up rounded timestamps in ordinalCache
+     * @param segmentPool pool for collecting segments in parallel in post mode, or null to collect them one by one
      */
     public DateFacetExecutor(final LongArrayIndexFieldData keyFieldData, final IndexFieldData<?> valueFieldData,
             final IndexFieldData<?> distinctFieldData, final IndexFieldData<?> sliceFieldData,
-            final TimeZoneRounding tzRounding, final int exactThreshold) {
+            final TimeZoneRounding tzRounding, final int exactThreshold, final double rsd, final boolean hashedExact,
+            final DirectPagePool pagePool, final RoundedOrdinalCache ordinalCache, final String roundingKey,
+            final SegmentCollectionPool segmentPool) {
+        _keyFieldData = keyFieldData;
+        _valueFieldData = valueFieldData;
+        _distinctFieldData = distinctFieldData;
+        _sliceFieldData = sliceFieldData;
+        _tzRounding = tzRounding;
+        _exactThreshold = exactThreshold;
+        _rsd = rsd;
+        _hashedExact = hashedExact;
+        _pagePool = pagePool;
+        _ordinalCache = ordinalCache;
+        _roundingKey = roundingKey;
+        _segmentPool = segmentPool;
+        _collector = newCollector(tzRounding);
+    }
 
-        if(distinctFieldData == null && sliceFieldData == null)
-            if(valueFieldData == null)
-                _collector = new CountingCollector<NullFieldData>(keyFieldData, tzRounding);
+    /**
+     * Create a collector for this facet.
+     * 
+     * @param tzRounding the timezone rounding for the collector to use
+     * @return the collector
+     */
+    private TimestampFirstCollector<?> newCollector(final TimeZoneRounding tzRounding) {
+        final TimestampFirstCollector<?> collector;
+
+        if(_distinctFieldData == null && _sliceFieldData == null)
+            if(_valueFieldData == null)
+                collector = new CountingCollector<NullFieldData>(_keyFieldData, tzRounding);
             else
-                _collector = new CountingCollector(keyFieldData, valueFieldData, tzRounding);
-        else if(distinctFieldData == null)
-            if(valueFieldData == null)
-                _collector = new SlicedCollector(keyFieldData, sliceFieldData, tzRounding);
+                collector = new CountingCollector(_keyFieldData, _valueFieldData, tzRounding);
+        else if(_distinctFieldData == null)
+            if(_valueFieldData == null)
+                collector = new SlicedCollector(_keyFieldData, _sliceFieldData, tzRounding);
             else
-                _collector = new SlicedCollector(keyFieldData, valueFieldData, sliceFieldData, tzRounding);
-        else if(sliceFieldData == null)
-            if(valueFieldData == null)
-                _collector = new DistinctCollector(keyFieldData, distinctFieldData, tzRounding, exactThreshold);
+                collector = new SlicedCollector(_keyFieldData, _valueFieldData, _sliceFieldData, tzRounding);
+        else if(_sliceFieldData == null)
+            if(_valueFieldData == null)
+                collector = new DistinctCollector(_keyFieldData, _distinctFieldData, tzRounding, _exactThreshold, _rsd, _hashedExact, _pagePool);
             else
                 throw new FacetPhaseExecutionException("unknown date_facet", "Can't use distinct_field and value_field together");
-        else if(valueFieldData == null)
-            _collector = new SlicedDistinctCollector(keyFieldData, sliceFieldData, distinctFieldData, tzRounding, exactThreshold);
+        else if(_valueFieldData == null)
+            collector = new SlicedDistinctCollector(_keyFieldData, _sliceFieldData, _distinctFieldData, tzRounding, _exactThreshold, _rsd, _hashedExact, _pagePool);
         else
             throw new FacetPhaseExecutionException("unknown date_facet", "Can't use distinct_field and value_field together");
+
+        if(_ordinalCache != null)
+            collector.setOrdinalCache(_ordinalCache, _roundingKey);
+        return collector;
+    }
+
+    /**
+     * Get a rounding which gives the same results as another, and is safe to use on another thread
+     * alongside it. Our own roundings know how to copy themselves; those built by {@link TimeZoneRounding.Builder}
+     * only have final fields holding immutable Joda zones and fields, so they can be shared.
+     * 
+     * @param tzRounding the rounding
+     * @return a rounding for another thread to use, or null if the rounding isn't one we know how to share
+     */
+    static TimeZoneRounding roundingForTask(final TimeZoneRounding tzRounding) {
+        if(tzRounding instanceof CopyableRounding)
+            return ((CopyableRounding) tzRounding).copy();
+        if(IMMUTABLE_ROUNDINGS.contains(tzRounding.getClass().getName()))
+            return tzRounding;
+        return null;
     }
 
     @Override
     public InternalFacet buildFacet(final String facetName) {
-        return _collector.build(facetName);
+        _finished = true;
+        if(_taskCollectors == null)
+            return _collector.build(facetName);
+
+        // Build each task's facet in parallel too, then merge them as if they came from different shards
+        final List<TimestampFirstCollector<?>> collectors = _taskCollectors;
+        final InternalFacet[] built = new InternalFacet[collectors.size()];
+        final List<Callable<Facet>> builds = new ArrayList<Callable<Facet>>(collectors.size());
+        for(int i = 0; i < collectors.size(); i++) {
+            final int task = i;
+            builds.add(new Callable<Facet>() {
+                @Override
+                public Facet call() {
+                    built[task] = collectors.get(task).build(facetName);
+                    return built[task];
+                }
+            });
+        }
+        _taskCollectors = null;
+        final List<Facet> facets;
+        try {
+            facets = _segmentPool.invokeAll(builds);
+        } catch(final RuntimeException e) {
+            // The facets which were built will never be serialized, and the other collectors never built
+            for(int i = 0; i < built.length; i++) {
+                if(built[i] != null)
+                    ((DateFacet<?>) built[i]).release();
+                else
+                    collectors.get(i).release();
+            }
+            throw e;
+        }
+        return (InternalFacet) ((InternalFacet) facets.get(0)).reduce(facets);
+    }
+
+    /**
+     * Give back the pooled resources held by the collectors, if the facet was never built, e.g. because
+     * the search failed after collection. Once the facet is built they belong to it instead, and this
+     * has no effect; nor does calling it more than once.
+     */
+    public void release() {
+        if(_finished)
+            return;
+        _finished = true;
+        if(_taskCollectors == null) {
+            _collector.release();
+        } else {
+            for(final TimestampFirstCollector<?> collector : _taskCollectors) {
+                collector.release();
+            }
+            _taskCollectors = null;
+        }
     }
 
     @Override
@@ -68,4 +244,121 @@ public class DateFacetExecutor extends FacetExecutor {
         return _collector;
     }
 
+    @Override
+    public Post post() {
+        return new PostExecutor();
+    }
+
+    /**
+     * Executor for post mode, which feeds the collector blocks of matching documents from each segment.
+     */
+    final class PostExecutor extends FacetExecutor.Post {
+
+        @Override
+        public void executePost(final List<ContextDocIdSet> docSets) throws IOException {
+            if(_segmentPool != null && docSets.size() > 1 && roundingForTask(_tzRounding) != null)
+                executeParallel(docSets);
+            else
+                collect(_collector, docSets);
+        }
+
+        /**
+         * Split the segments between tasks with roughly equal numbers of documents, and collect
+         * each task's segments on the segment pool, with a collector and rounding of its own.
+         * 
+         * @param docSets the doc sets of the segments
+         */
+        private void executeParallel(final List<ContextDocIdSet> docSets) {
+            final List<ContextDocIdSet> sorted = new ArrayList<ContextDocIdSet>(docSets);
+            Collections.sort(sorted, LARGEST_FIRST);
+            final int taskCount = Math.min(_segmentPool.getThreads(), sorted.size());
+            final List<List<ContextDocIdSet>> groups = new ArrayList<List<ContextDocIdSet>>(taskCount);
+            final long[] groupDocs = new long[taskCount];
+            for(int i = 0; i < taskCount; i++) {
+                groups.add(new ArrayList<ContextDocIdSet>());
+            }
+            for(final ContextDocIdSet docSet : sorted) {
+                int smallest = 0;
+                for(int i = 1; i < taskCount; i++) {
+                    if(groupDocs[i] < groupDocs[smallest])
+                        smallest = i;
+                }
+                groups.get(smallest).add(docSet);
+                groupDocs[smallest] += docSet.context.reader().maxDoc();
+            }
+
+            final List<TimestampFirstCollector<?>> collectors = new ArrayList<TimestampFirstCollector<?>>(taskCount);
+            final List<Callable<TimestampFirstCollector<?>>> tasks = new ArrayList<Callable<TimestampFirstCollector<?>>>(taskCount);
+            for(int i = 0; i < taskCount; i++) {
+                final TimestampFirstCollector<?> collector = i == 0 ? _collector : newCollector(roundingForTask(_tzRounding));
+                final List<ContextDocIdSet> group = groups.get(i);
+                collectors.add(collector);
+                tasks.add(new Callable<TimestampFirstCollector<?>>() {
+                    @Override
+                    public TimestampFirstCollector<?> call() throws IOException {
+                        collect(collector, group);
+                        return collector;
+                    }
+                });
+            }
+            // If any task failed, the others' collectors would never be built, so release them all
+            _taskCollectors = collectors;
+            try {
+                _segmentPool.invokeAll(tasks);
+            } catch(final RuntimeException e) {
+                release();
+                throw e;
+            }
+        }
+
+        /**
+         * Feed a collector blocks of matching documents from each of some segments.
+         * 
+         * @param collector the collector
+         * @param docSets the doc sets of the segments
+         * @throws IOException
+         */
+        private void collect(final TimestampFirstCollector<?> collector, final List<ContextDocIdSet> docSets) throws IOException {
+            final int[] docs = new int[POST_BLOCK_SIZE];
+            for(final ContextDocIdSet docSet : docSets) {
+                final DocIdSetIterator iter = docSet.docSet.iterator();
+                if(iter == null)
+                    continue;
+                collector.setNextReader(docSet.context);
+                if(matchesAll(docSet) && collector.collectAll(docSet.context))
+                    continue;
+                int count = 0;
+                for(int doc = iter.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iter.nextDoc()) {
+                    docs[count++] = doc;
+                    if(count == docs.length) {
+                        collector.collectBlock(docs, count);
+                        count = 0;
+                    }
+                }
+                if(count > 0)
+                    collector.collectBlock(docs, count);
+            }
+            collector.postCollection();
+        }
+
+        /**
+         * Check whether a doc set holds every document in its segment, e.g. for a match_all query.
+         * 
+         * @param docSet the doc set
+         * @return true if it definitely does, and the segment has no deletions
+         */
+        private boolean matchesAll(final ContextDocIdSet docSet) {
+            final AtomicReader reader = docSet.context.reader();
+            if(reader.hasDeletions())
+                return false;
+            final DocIdSet set = docSet.docSet;
+            if(set instanceof AllDocIdSet)
+                return true;
+            if(set instanceof FixedBitSet)
+                return ((FixedBitSet) set).cardinality() == reader.maxDoc();
+            return false;
+        }
+
+    }
+
 }
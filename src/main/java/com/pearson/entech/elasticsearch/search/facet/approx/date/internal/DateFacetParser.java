@@ -26,6 +26,10 @@ import org.elasticsearch.search.facet.FacetParser;
 import org.elasticsearch.search.facet.FacetPhaseExecutionException;
 import org.elasticsearch.search.internal.SearchContext;
 
+import com.pearson.entech.elasticsearch.plugin.approx.DirectPagePool;
+import com.pearson.entech.elasticsearch.plugin.approx.RoundedOrdinalCache;
+import com.pearson.entech.elasticsearch.plugin.approx.SegmentCollectionPool;
+
 /**
  * This class is responsible for parsing a date facet request, and creating a
  * correctly-configured DateFacetExecutor for actually handling the query.
@@ -33,16 +37,26 @@ import org.elasticsearch.search.internal.SearchContext;
 public class DateFacetParser extends AbstractComponent implements FacetParser {
 
     private final ImmutableMap<String, DateFieldParser> dateFieldParsers;
+    private final DirectPagePool pagePool;
+    private final RoundedOrdinalCache ordinalCache;
+    private final SegmentCollectionPool segmentPool;
     private final TObjectIntHashMap<String> rounding = new TObjectIntHashMap<String>(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
 
     /**
      * Create a new parser.
      * 
      * @param settings any extra settings -- not currently used.
+     * @param pagePool the pool of off-heap pages for distinct counts
+     * @param ordinalCache the cache of rounded timestamps for each segment
+     * @param segmentPool the pool for collecting segments in parallel
      */
     @Inject
-    public DateFacetParser(final Settings settings) {
+    public DateFacetParser(final Settings settings, final DirectPagePool pagePool, final RoundedOrdinalCache ordinalCache,
+            final SegmentCollectionPool segmentPool) {
         super(settings);
+        this.pagePool = pagePool;
+        this.ordinalCache = ordinalCache;
+        this.segmentPool = segmentPool;
 
         dateFieldParsers = MapBuilder.<String, DateFieldParser> newMapBuilder()
                 .put("year", new DateFieldParser.YearOfCentury())
@@ -109,6 +123,9 @@ public class DateFacetParser extends AbstractComponent implements FacetParser {
         XContentParser.Token token;
         String fieldName = null;
         int exactThreshold = 1000;
+        double rsd = DistinctCountPayload.DEFAULT_RSD;
+        String exactMode = "bytes";
+        boolean parallelSegments = segmentPool.isEnabledByDefault();
 
         while((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
             if(token == XContentParser.Token.FIELD_NAME) {
@@ -152,6 +169,12 @@ public class DateFacetParser extends AbstractComponent implements FacetParser {
                     //                    scriptLang = parser.text();
                 } else if("exact_threshold".equals(fieldName) || "exactThreshold".equals(fieldName)) {
                     exactThreshold = parser.intValue();
+                } else if("precision".equals(fieldName) || "rsd".equals(fieldName)) {
+                    rsd = parser.doubleValue();
+                } else if("exact_mode".equals(fieldName) || "exactMode".equals(fieldName)) {
+                    exactMode = parser.text();
+                } else if("parallel_segments".equals(fieldName) || "parallelSegments".equals(fieldName)) {
+                    parallelSegments = parser.booleanValue();
                 }
             }
         }
@@ -159,25 +182,45 @@ public class DateFacetParser extends AbstractComponent implements FacetParser {
         if(valueField != null && distinctField != null)
             throw new FacetPhaseExecutionException(facetName, "[value_field] and [distinct_field] may not be used together");
 
+        if(rsd <= 0 || rsd >= 1)
+            throw new FacetPhaseExecutionException(facetName, "[precision] must be greater than 0 and less than 1, got " + rsd);
+
+        final boolean hashedExact;
+        if("hashed".equals(exactMode))
+            hashedExact = true;
+        else if("bytes".equals(exactMode))
+            hashedExact = false;
+        else
+            throw new FacetPhaseExecutionException(facetName, "[exact_mode] must be one of [bytes, hashed], got " + exactMode);
+
         if(interval == null) {
             throw new FacetPhaseExecutionException(facetName, "[interval] is required to be set for histogram facet");
         }
 
-        TimeZoneRounding.Builder tzRoundingBuilder;
+        // Fixed offset zones with fixed length buckets can be rounded arithmetically
+        TimeZoneRounding tzRounding;
         final DateFieldParser fieldParser = dateFieldParsers.get(interval);
         if(fieldParser != null) {
-            tzRoundingBuilder = TimeZoneRounding.builder(fieldParser.parse(chronology));
+            final DateTimeField field = fieldParser.parse(chronology);
+            tzRounding = FixedOffsetRounding.forField(field, preZone, postZone,
+                    preZoneAdjustLargeInterval, preOffset, postOffset, factor);
+            // Otherwise time zone transitions are precomputed
+            if(tzRounding == null)
+                tzRounding = new ZoneTransitionRounding(field, preZone, postZone,
+                        preZoneAdjustLargeInterval, preOffset, postOffset, factor);
         } else {
             // the interval is a time value?
-            tzRoundingBuilder = TimeZoneRounding.builder(TimeValue.parseTimeValue(interval, null));
+            final TimeValue timeValue = TimeValue.parseTimeValue(interval, null);
+            tzRounding = FixedOffsetRounding.forInterval(timeValue.millis(), preZone, postZone,
+                    preZoneAdjustLargeInterval, preOffset, postOffset, factor);
+            if(tzRounding == null)
+                tzRounding = buildRounding(TimeZoneRounding.builder(timeValue),
+                        preZone, postZone, preZoneAdjustLargeInterval, preOffset, postOffset, factor);
         }
 
-        final TimeZoneRounding tzRounding = tzRoundingBuilder
-                .preZone(preZone).postZone(postZone)
-                .preZoneAdjustLargeInterval(preZoneAdjustLargeInterval)
-                .preOffset(preOffset).postOffset(postOffset)
-                .factor(factor)
-                .build();
+        // Everything that went into the rounding, for sharing rounded timestamps between queries
+        final String roundingKey = interval + '|' + preZone.getID() + '|' + postZone.getID() + '|' + preZoneAdjustLargeInterval
+                + '|' + preOffset + '|' + postOffset + '|' + factor;
 
         final LongArrayIndexFieldData keyFieldData = getKeyFieldData(facetName, keyField, context);
 
@@ -188,8 +231,31 @@ public class DateFacetParser extends AbstractComponent implements FacetParser {
         if(exactThreshold < 0)
             exactThreshold = Integer.MAX_VALUE;
 
-        return new DateFacetExecutor(keyFieldData, valueFieldData, distinctFieldData, sliceFieldData,
-                tzRounding, exactThreshold);
+        final DateFacetExecutor executor = new DateFacetExecutor(keyFieldData, valueFieldData, distinctFieldData, sliceFieldData,
+                tzRounding, exactThreshold, rsd, hashedExact, pagePool.isEnabled() ? pagePool : null,
+                ordinalCache.isEnabled() ? ordinalCache : null, roundingKey,
+                parallelSegments ? segmentPool : null);
+        // If the search fails before the facet is built, its pages are given back when the context is freed
+        context.addRewrite(new SearchContext.Rewrite() {
+            @Override
+            public void contextRewrite(final SearchContext searchContext) {}
+
+            @Override
+            public void contextClear() {
+                executor.release();
+            }
+        });
+        return executor;
+    }
+
+    private TimeZoneRounding buildRounding(final TimeZoneRounding.Builder builder, final DateTimeZone preZone, final DateTimeZone postZone,
+            final boolean preZoneAdjustLargeInterval, final long preOffset, final long postOffset, final float factor) {
+        return builder
+                .preZone(preZone).postZone(postZone)
+                .preZoneAdjustLargeInterval(preZoneAdjustLargeInterval)
+                .preOffset(preOffset).postOffset(postOffset)
+                .factor(factor)
+                .build();
     }
 
     @SuppressWarnings("unchecked")
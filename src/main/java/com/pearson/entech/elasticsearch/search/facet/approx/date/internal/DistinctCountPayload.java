@@ -10,36 +10,66 @@ import org.elasticsearch.common.trove.ExtTHashMap;
 import org.elasticsearch.common.trove.map.TLongObjectMap;
 
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
-import com.clearspring.analytics.stream.cardinality.HyperLogLog;
-import com.clearspring.analytics.stream.cardinality.HyperLogLog.Builder;
 
 public class DistinctCountPayload {
 
-    private final Builder _stdBuilder = new HyperLogLog.Builder(0.0025);
+    /**
+     * The relative standard deviation used when a request doesn't specify one.
+     */
+    public static final double DEFAULT_RSD = 0.0025;
+
+    /**
+     * Precision of the approximate counter, i.e. log2 of the number of registers.
+     */
+    private final int _precision;
+
+    private final SparseHyperLogLog.Builder _stdBuilder;
 
     private long _count;
 
     private CountThenEstimateBytes _cardinality;
 
     public DistinctCountPayload(final int entryLimit) {
+        this(entryLimit, DEFAULT_RSD);
+    }
+
+    public DistinctCountPayload(final int entryLimit, final double rsd) {
+        this(entryLimit, rsd, false);
+    }
+
+    public DistinctCountPayload(final int entryLimit, final double rsd, final boolean hashedExact) {
+        _precision = SparseHyperLogLog.precisionFor(rsd);
+        _stdBuilder = SparseHyperLogLog.Builder.withPrecision(_precision);
         _count = 0;
-        _cardinality = new CountThenEstimateBytes(entryLimit, _stdBuilder);
+        _cardinality = new CountThenEstimateBytes(entryLimit, _stdBuilder, hashedExact);
+    }
+
+    /**
+     * Create a payload whose approximate counter, if it ever needs its full set of
+     * registers, takes them from an arena shared with the other buckets of the facet.
+     * 
+     * @param entryLimit the number of exact distinct values to record before tipping into approximate counting
+     * @param arena the arena, which also determines the precision
+     * @param hashedExact true to count exact distinct values by their 64-bit hashes
+     */
+    public DistinctCountPayload(final int entryLimit, final RegisterArena arena, final boolean hashedExact) {
+        _precision = arena.getPrecision();
+        _stdBuilder = SparseHyperLogLog.Builder.withArena(arena);
+        _count = 0;
+        _cardinality = new CountThenEstimateBytes(entryLimit, _stdBuilder, hashedExact);
     }
 
     DistinctCountPayload(final StreamInput in) throws IOException {
         _count = in.readVLong();
         final int entryLimit = in.readVInt();
-        final int payloadSize = in.readVInt();
-        final byte[] payloadBytes = new byte[payloadSize];
-        in.readBytes(payloadBytes, 0, payloadSize);
-        try {
-            _cardinality = new CountThenEstimateBytes(payloadBytes, entryLimit, _stdBuilder);
-        } catch(final ClassNotFoundException e) {
-            throw new IOException(e);
-        }
+        _precision = in.readVInt();
+        _stdBuilder = SparseHyperLogLog.Builder.withPrecision(_precision);
+        _cardinality = new CountThenEstimateBytes(in, entryLimit, _stdBuilder);
     }
 
-    DistinctCountPayload(final long count, final CountThenEstimateBytes cardinality) {
+    DistinctCountPayload(final long count, final CountThenEstimateBytes cardinality, final int precision) {
+        _precision = precision;
+        _stdBuilder = SparseHyperLogLog.Builder.withPrecision(precision);
         _count = count;
         _cardinality = cardinality;
     }
@@ -49,6 +79,17 @@ public class DistinctCountPayload {
         return _cardinality.offerBytesRef(ref);
     }
 
+    /**
+     * Count a value by its 64-bit hash. The payload must have been created in hashed exact mode.
+     * 
+     * @param hash the hash, from {@link com.pearson.entech.elasticsearch.plugin.approx.MurmurHash3}
+     * @return true if the hash had not been seen before
+     */
+    public boolean updateHash(final long hash) {
+        _count++;
+        return _cardinality.offerHash(hash);
+    }
+
     byte[] cardinalityBytes() throws IOException {
         return _cardinality.getBytes();
     }
@@ -61,12 +102,60 @@ public class DistinctCountPayload {
         return _cardinality;
     }
 
+    public int getPrecision() {
+        return _precision;
+    }
+
     DistinctCountPayload merge(final DistinctCountPayload other) throws CardinalityMergeException {
+        if(_precision != other._precision)
+            throw new CountThenEstimateBytes.CountThenEstimateMergeException(
+                    "Cannot merge distinct counts with different precisions: " + _precision + " and " + other._precision);
         _count += other._count;
         _cardinality = CountThenEstimateBytes.mergeEstimators(this._cardinality, other._cardinality);
+        // The other side's exact values are all in ours now
+        if(other._cardinality != _cardinality)
+            other._cardinality.release();
         return this;
     }
 
+    /**
+     * Give this payload's exact counter back to be reused, once it is finished with.
+     */
+    public void release() {
+        _cardinality.release();
+    }
+
+    /**
+     * Merge a payload written by {@link #writeTo(StreamOutput)} into this one, straight from the stream.
+     */
+    DistinctCountPayload mergeFrom(final StreamInput in) throws IOException, CardinalityMergeException {
+        final long count = in.readVLong();
+        in.readVInt(); // Entry limit: ours wins, as in merge()
+        final int precision = in.readVInt();
+        if(_precision != precision)
+            throw new CountThenEstimateBytes.CountThenEstimateMergeException(
+                    "Cannot merge distinct counts with different precisions: " + _precision + " and " + precision);
+        _count += count;
+        _cardinality.mergeFrom(in);
+        return this;
+    }
+
+    /**
+     * Read a payload written by {@link #writeTo(StreamOutput)} into a map, merging it
+     * straight from the stream into any payload already there for the same key.
+     */
+    static void readInto(final StreamInput in, final TLongObjectMap<DistinctCountPayload> map, final long key) throws IOException {
+        final DistinctCountPayload existing = map.get(key);
+        if(existing == null)
+            map.put(key, new DistinctCountPayload(in));
+        else
+            try {
+                existing.mergeFrom(in);
+            } catch(final CardinalityMergeException e) {
+                throw new ElasticSearchException("Unable to merge two facet cardinality objects", e);
+            }
+    }
+
     DistinctCountPayload mergeInto(final TLongObjectMap<DistinctCountPayload> map, final long key) {
         if(map.containsKey(key))
             try {
@@ -103,9 +192,8 @@ public class DistinctCountPayload {
     public void writeTo(final StreamOutput output) throws IOException {
         output.writeVLong(_count);
         output.writeVInt(_cardinality.getTippingPoint());
-        final byte[] bytes = _cardinality.getBytes();
-        output.writeVInt(bytes.length);
-        output.writeBytes(bytes);
+        output.writeVInt(_precision);
+        _cardinality.writeTo(output);
     }
 
 }
\ No newline at end of file
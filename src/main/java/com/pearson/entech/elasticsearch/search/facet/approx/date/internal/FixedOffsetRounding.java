@@ -0,0 +1,131 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.DateTimeField;
+import org.elasticsearch.common.joda.time.DateTimeZone;
+import org.elasticsearch.common.joda.time.DurationField;
+
+/**
+ * Time zone rounding for the common case where both time zones have a fixed offset from UTC,
+ * and the buckets have a fixed length. Rounding is then plain arithmetic on longs, so this
+ * gives the same results as the equivalent {@link TimeZoneRounding} without going through
+ * any Joda time zone or chronology objects.
+ * <p/>
+ * Use {@link #forField(DateTimeField, DateTimeZone, DateTimeZone, boolean, long, long, float)} or
+ * {@link #forInterval(long, DateTimeZone, DateTimeZone, boolean, long, long, float)} to get an
+ * instance, falling back to {@link TimeZoneRounding#builder(DateTimeField)} if they return null.
+ */
+public class FixedOffsetRounding extends TimeZoneRounding implements CopyableRounding {
+
+    private static final long MILLIS_PER_HOUR = 3600 * 1000L;
+
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    /**
+     * Bucket length, in millis.
+     */
+    private final long _length;
+
+    /**
+     * True to round down towards minus infinity, false to round towards zero.
+     */
+    private final boolean _floor;
+
+    /**
+     * Added to each (scaled) datetime before rounding.
+     */
+    private final long _shift;
+
+    /**
+     * Added to each rounded datetime.
+     */
+    private final long _unshift;
+
+    /**
+     * Datetimes are multiplied by this before anything else, unless it's 1.
+     */
+    private final float _factor;
+
+    private FixedOffsetRounding(final long length, final boolean floor, final long shift, final long unshift, final float factor) {
+        _length = length;
+        _floor = floor;
+        _shift = shift;
+        _unshift = unshift;
+        _factor = factor;
+    }
+
+    /**
+     * Create a rounding to a datetime field of the UTC ISO chronology, if possible.
+     * The parameters are those of {@link TimeZoneRounding.Builder}.
+     *
+     * @param field the field to round to
+     * @param preZone the time zone to round in
+     * @param postZone the time zone to shift the results into
+     * @param preZoneAdjustLargeInterval false to leave intervals of 12 hours or more in preZone after rounding
+     * @param preOffset offset applied before rounding, in millis
+     * @param postOffset offset applied after rounding, in millis
+     * @param factor factor to multiply datetimes by before rounding
+     * @return the rounding, or null if either zone isn't fixed, or the field doesn't have a fixed length of a day or less
+     */
+    public static FixedOffsetRounding forField(final DateTimeField field, final DateTimeZone preZone, final DateTimeZone postZone,
+            final boolean preZoneAdjustLargeInterval, final long preOffset, final long postOffset, final float factor) {
+        final DurationField duration = field.getDurationField();
+        if(!duration.isPrecise() || duration.getUnitMillis() > MILLIS_PER_DAY)
+            return null;
+        // Fields of precise length in the UTC chronology are aligned with the epoch, and round down
+        return create(duration.getUnitMillis(), true, preZone, postZone, preZoneAdjustLargeInterval, preOffset, postOffset, factor);
+    }
+
+    /**
+     * Create a rounding to a fixed interval, if possible.
+     * The parameters are those of {@link TimeZoneRounding.Builder}.
+     *
+     * @param interval the interval to round to, in millis
+     * @param preZone the time zone to round in
+     * @param postZone the time zone to shift the results into
+     * @param preZoneAdjustLargeInterval false to leave intervals of 12 hours or more in preZone after rounding
+     * @param preOffset offset applied before rounding, in millis
+     * @param postOffset offset applied after rounding, in millis
+     * @param factor factor to multiply datetimes by before rounding
+     * @return the rounding, or null if either zone isn't fixed
+     */
+    public static FixedOffsetRounding forInterval(final long interval, final DateTimeZone preZone, final DateTimeZone postZone,
+            final boolean preZoneAdjustLargeInterval, final long preOffset, final long postOffset, final float factor) {
+        // Intervals are rounded by integer division, i.e. towards zero
+        return create(interval, false, preZone, postZone, preZoneAdjustLargeInterval, preOffset, postOffset, factor);
+    }
+
+    private static FixedOffsetRounding create(final long length, final boolean floor, final DateTimeZone preZone, final DateTimeZone postZone,
+            final boolean preZoneAdjustLargeInterval, final long preOffset, final long postOffset, final float factor) {
+        if(length <= 0 || !preZone.isFixed() || !postZone.isFixed())
+            return null;
+        final long pre = preZone.getOffset(0L);
+        final long post = postZone.getOffset(0L);
+        // As in TimeZoneRounding, unadjusted large intervals stay in the pre zone after rounding, so they start at its midnight
+        final boolean stayInPreZone = !preZoneAdjustLargeInterval && length >= 12 * MILLIS_PER_HOUR;
+        final long shift = preOffset + pre;
+        final long unshift = postOffset + post - (stayInPreZone ? 0 : pre);
+        return new FixedOffsetRounding(length, floor, shift, unshift, factor);
+    }
+
+    /**
+     * Get this rounding, which is immutable, so it can be shared between threads.
+     * 
+     * @return this rounding
+     */
+    @Override
+    public FixedOffsetRounding copy() {
+        return this;
+    }
+
+    @Override
+    public long calc(final long utcMillis) {
+        final long scaled = _factor == 1.0f ? utcMillis : (long) (utcMillis * _factor);
+        final long shifted = scaled + _shift;
+        long rounded = shifted / _length * _length;
+        if(_floor && rounded > shifted)
+            rounded -= _length;
+        return rounded + _unshift;
+    }
+
+}
@@ -6,13 +6,16 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
+import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.bytes.HashedBytesArray;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
 import org.elasticsearch.common.trove.procedure.TLongObjectProcedure;
+import org.elasticsearch.common.trove.procedure.TObjectProcedure;
 import org.elasticsearch.search.facet.Facet;
 
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
@@ -25,6 +28,16 @@ public class InternalDistinctFacet extends DistinctDateFacet<DistinctTimePeriod<
 
     private ExtTLongObjectHashMap<DistinctCountPayload> _counts;
 
+    /**
+     * Counts as received from a shard, not yet decoded into _counts. Null once decoded.
+     */
+    private BytesReference _serialized;
+
+    /**
+     * Arenas holding the registers of our payloads, released along with _counts.
+     */
+    private final List<RegisterArena> _arenas = newArrayListWithCapacity(1);
+
     private long _total;
     private List<DistinctTimePeriod<NullEntry>> _periods;
     private long _distinctCount;
@@ -64,6 +77,13 @@ public class InternalDistinctFacet extends DistinctDateFacet<DistinctTimePeriod<
         _debug = false;
     }
 
+    public InternalDistinctFacet(final String name, final ExtTLongObjectHashMap<DistinctCountPayload> counts, final RegisterArena arena) {
+        super(name);
+        _counts = counts;
+        _arenas.add(arena);
+        _debug = false;
+    }
+
     public InternalDistinctFacet(final String name, final ExtTLongObjectHashMap<DistinctCountPayload> counts, final boolean debug) {
         super(name);
         _counts = counts;
@@ -101,29 +121,66 @@ public class InternalDistinctFacet extends DistinctDateFacet<DistinctTimePeriod<
     @SuppressWarnings("unchecked")
     @Override
     protected ExtTLongObjectHashMap<DistinctCountPayload> peekCounts() {
-        return _counts;
+        return counts();
     }
 
+    // The counts are kept as raw bytes until they are needed, so that reduce() can
+    // merge them straight from the stream instead of decoding every shard's copy first
     @Override
     protected void readData(final StreamInput in) throws IOException {
-        _counts = CacheRecycler.popLongObjectMap();
-        final int size = in.readVInt();
-        for(int i = 0; i < size; i++) {
-            final long key = in.readVLong();
-            _counts.put(key, new DistinctCountPayload(in));
-        }
+        _counts = null;
+        _serialized = in.readBytesReference();
     }
 
     @Override
     protected void writeData(final StreamOutput out) throws IOException {
-        if(_counts == null) {
-            out.writeVInt(0);
+        if(_counts == null && _serialized != null) {
+            out.writeBytesReference(_serialized);
             return;
         }
-        final int size = _counts.size();
-        _serialize.init(out, size);
-        _counts.forEachEntry(_serialize);
-        _serialize.clear();
+        final BytesStreamOutput buffer = new BytesStreamOutput();
+        if(_counts == null) {
+            buffer.writeVInt(0);
+        } else {
+            _serialize.init(buffer, _counts.size());
+            _counts.forEachEntry(_serialize);
+            _serialize.clear();
+        }
+        out.writeBytesReference(buffer.bytes());
+    }
+
+    /**
+     * Decode the counts received from a shard, if that hasn't been done yet.
+     * 
+     * @return the counts
+     */
+    private ExtTLongObjectHashMap<DistinctCountPayload> counts() {
+        if(_counts == null && _serialized != null) {
+            _counts = CacheRecycler.popLongObjectMap();
+            readInto(_serialized, _counts);
+            _serialized = null;
+        }
+        return _counts;
+    }
+
+    /**
+     * Read serialized counts into a map, merging each payload straight from the stream
+     * into any payload already in the map for the same period.
+     * 
+     * @param serialized the output of writeData()
+     * @param target the map to read into
+     */
+    private static void readInto(final BytesReference serialized, final ExtTLongObjectHashMap<DistinctCountPayload> target) {
+        try {
+            final StreamInput in = serialized.streamInput();
+            final int size = in.readVInt();
+            for(int i = 0; i < size; i++) {
+                final long key = in.readVLong();
+                DistinctCountPayload.readInto(in, target, key);
+            }
+        } catch(final IOException e) {
+            throw new ElasticSearchException("Unable to read distinct counts", e);
+        }
     }
 
     @Override
@@ -131,13 +188,24 @@ public class InternalDistinctFacet extends DistinctDateFacet<DistinctTimePeriod<
         if(facets.size() > 0) {
             // Reduce into the first facet; we will release its _counts on rendering into XContent
             final InternalDistinctFacet target = (InternalDistinctFacet) facets.get(0);
+            if(target.counts() == null)
+                target._counts = CacheRecycler.popLongObjectMap();
             for(int i = 1; i < facets.size(); i++) {
                 final InternalDistinctFacet source = (InternalDistinctFacet) facets.get(i);
-                _mergePeriods.target = target;
-                source._counts.forEachEntry(_mergePeriods);
-                _mergePeriods.target = null; // Avoid risk of garbage leaks
-                // Release contents of source facet; no longer needed
-                source.releaseCache();
+                if(source._counts == null && source._serialized != null) {
+                    // Fold this shard's buckets into the target as we read them, without decoding them first
+                    readInto(source._serialized, target._counts);
+                    source._serialized = null;
+                } else if(source._counts != null) {
+                    _mergePeriods.target = target;
+                    source._counts.forEachEntry(_mergePeriods);
+                    _mergePeriods.target = null; // Avoid risk of garbage leaks
+                    // The source's payloads may now be in the target, so it takes over their registers
+                    target._arenas.addAll(source._arenas);
+                    source._arenas.clear();
+                    // Release contents of source facet, apart from the payloads; no longer needed
+                    source.releaseCache(false);
+                }
             }
             return target;
         } else {
@@ -148,6 +216,7 @@ public class InternalDistinctFacet extends DistinctDateFacet<DistinctTimePeriod<
     private synchronized void materialize() {
         if(_periods != null)
             return;
+        counts();
         if(_counts == null || _counts.size() == 0) {
             _total = 0;
             _distinctCount = 0;
@@ -166,7 +235,35 @@ public class InternalDistinctFacet extends DistinctDateFacet<DistinctTimePeriod<
 
     @Override
     protected void releaseCache() {
-        CacheRecycler.pushLongObjectMap(_counts);
+        releaseCache(true);
+    }
+
+    /**
+     * Free up data structures for reuse.
+     * 
+     * @param payloads true to release the payloads too, false if they have been moved to another facet
+     */
+    private void releaseCache(final boolean payloads) {
+        for(final RegisterArena arena : _arenas) {
+            arena.release();
+        }
+        _arenas.clear();
+        _serialized = null;
+        if(_counts != null) {
+            if(payloads)
+                _counts.forEachValue(_releasePayloads);
+            CacheRecycler.pushLongObjectMap(_counts);
+        }
+    }
+
+    private final PayloadReleaser _releasePayloads = new PayloadReleaser();
+
+    private static class PayloadReleaser implements TObjectProcedure<DistinctCountPayload> {
+        @Override
+        public boolean execute(final DistinctCountPayload payload) {
+            payload.release();
+            return true;
+        }
     }
 
     private final PeriodMerger _mergePeriods = new PeriodMerger();
@@ -37,6 +37,11 @@ public class InternalSlicedDistinctFacet
     private List<DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>> _periods;
     private long _distinctCount;
 
+    /**
+     * Arenas holding the registers of our payloads, released along with _counts.
+     */
+    private final List<RegisterArena> _arenas = newArrayListWithCapacity(1);
+
     private static final ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> EMPTY = CacheRecycler.popLongObjectMap();
     static final String TYPE = "sliced_distinct_date_facet";
     private static final BytesReference STREAM_TYPE = new HashedBytesArray(TYPE.getBytes());
@@ -69,6 +74,13 @@ public class InternalSlicedDistinctFacet
         _counts = counts;
     }
 
+    public InternalSlicedDistinctFacet(final String facetName,
+            final ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> counts, final RegisterArena arena) {
+        super(facetName);
+        _counts = counts;
+        _arenas.add(arena);
+    }
+
     @Override
     public long getDistinctCount() {
         materialize();
@@ -142,8 +154,11 @@ public class InternalSlicedDistinctFacet
                 _mergePeriods.target = target;
                 source._counts.forEachEntry(_mergePeriods);
                 _mergePeriods.target = null; // Avoid risk of garbage leaks
-                // Release contents of source facet; no longer needed
-                source.releaseCache();
+                // The source's payloads may now be in the target, so it takes over their registers
+                target._arenas.addAll(source._arenas);
+                source._arenas.clear();
+                // Release contents of source facet, apart from the payloads; no longer needed
+                source.releaseCache(false);
             }
             return target;
         } else {
@@ -172,6 +187,20 @@ public class InternalSlicedDistinctFacet
 
     @Override
     protected void releaseCache() {
+        releaseCache(true);
+    }
+
+    /**
+     * Free up data structures for reuse.
+     * 
+     * @param payloads true to release the payloads too, false if they have been moved to another facet
+     */
+    private void releaseCache(final boolean payloads) {
+        for(final RegisterArena arena : _arenas) {
+            arena.release();
+        }
+        _arenas.clear();
+        _releaseCachedMaps.payloads = payloads;
         _counts.forEachValue(_releaseCachedMaps);
         CacheRecycler.pushLongObjectMap(_counts);
     }
@@ -179,8 +208,15 @@ public class InternalSlicedDistinctFacet
     private final CacheReleaser _releaseCachedMaps = new CacheReleaser();
 
     private static class CacheReleaser implements TObjectProcedure<ExtTHashMap<BytesRef, DistinctCountPayload>> {
+
+        boolean payloads;
+
         @Override
         public boolean execute(final ExtTHashMap<BytesRef, DistinctCountPayload> map) {
+            if(payloads)
+                for(final DistinctCountPayload payload : map.values()) {
+                    payload.release();
+                }
             CacheRecycler.pushHashMap(map);
             return true;
         }
@@ -0,0 +1,150 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * A growable array of non-negative ints, stored in the narrowest width that fits the largest
+ * value so far: one byte each for values up to 255, two up to 65535, otherwise four.
+ * The array is widened in place the first time a value needs it.
+ */
+public class NarrowIntArray {
+
+    private static final int BYTE_MAX = 0xFF;
+
+    private static final int SHORT_MAX = 0xFFFF;
+
+    private byte[] _bytes;
+
+    private short[] _shorts;
+
+    private int[] _ints;
+
+    private int _width = 1;
+
+    private int _size = 0;
+
+    /**
+     * Create a new array.
+     *
+     * @param initialCapacity the number of values to allocate space for up front
+     */
+    public NarrowIntArray(final int initialCapacity) {
+        _bytes = new byte[Math.max(initialCapacity, 1)];
+    }
+
+    /**
+     * Append a value.
+     *
+     * @param value the value, which must not be negative
+     */
+    public void add(final int value) {
+        switch(_width) {
+        case 1:
+            if(value > BYTE_MAX) {
+                widen(value);
+                add(value);
+                return;
+            }
+            if(_size == _bytes.length)
+                _bytes = ArrayUtil.grow(_bytes);
+            _bytes[_size++] = (byte) value;
+            return;
+        case 2:
+            if(value > SHORT_MAX) {
+                widen(value);
+                add(value);
+                return;
+            }
+            if(_size == _shorts.length)
+                _shorts = ArrayUtil.grow(_shorts);
+            _shorts[_size++] = (short) value;
+            return;
+        default:
+            if(_size == _ints.length)
+                _ints = ArrayUtil.grow(_ints);
+            _ints[_size++] = value;
+        }
+    }
+
+    /**
+     * Get a value.
+     *
+     * @param index the index of the value, less than {@link #size()}
+     * @return the value
+     */
+    public int get(final int index) {
+        switch(_width) {
+        case 1:
+            return _bytes[index] & BYTE_MAX;
+        case 2:
+            return _shorts[index] & SHORT_MAX;
+        default:
+            return _ints[index];
+        }
+    }
+
+    /**
+     * Replace a value.
+     *
+     * @param index the index of the value, less than {@link #size()}
+     * @param value the new value, which must not be negative
+     */
+    public void set(final int index, final int value) {
+        if(value > maxValue())
+            widen(value);
+        switch(_width) {
+        case 1:
+            _bytes[index] = (byte) value;
+            return;
+        case 2:
+            _shorts[index] = (short) value;
+            return;
+        default:
+            _ints[index] = value;
+        }
+    }
+
+    /**
+     * Get the number of values.
+     *
+     * @return the number of values
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Get the number of bytes used to store each value.
+     *
+     * @return 1, 2 or 4
+     */
+    public int width() {
+        return _width;
+    }
+
+    private int maxValue() {
+        return _width == 1 ? BYTE_MAX : _width == 2 ? SHORT_MAX : Integer.MAX_VALUE;
+    }
+
+    private void widen(final int value) {
+        if(value <= SHORT_MAX) {
+            final short[] shorts = new short[_bytes.length];
+            for(int i = 0; i < _size; i++) {
+                shorts[i] = (short) (_bytes[i] & BYTE_MAX);
+            }
+            _shorts = shorts;
+            _bytes = null;
+            _width = 2;
+        } else {
+            final int[] ints = new int[_width == 1 ? _bytes.length : _shorts.length];
+            for(int i = 0; i < _size; i++) {
+                ints[i] = get(i);
+            }
+            _ints = ints;
+            _bytes = null;
+            _shorts = null;
+            _width = 4;
+        }
+    }
+
+}
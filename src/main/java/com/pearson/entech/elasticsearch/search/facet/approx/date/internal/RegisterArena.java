@@ -0,0 +1,235 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+
+import com.pearson.entech.elasticsearch.plugin.approx.DirectPagePool;
+import com.pearson.entech.elasticsearch.plugin.approx.EstimatorRecycler;
+
+/**
+ * Dense HyperLogLog registers for all the buckets of a facet, packed into a few large pages
+ * instead of a separate array per bucket.
+ * <p/>
+ * Each {@link SparseHyperLogLog} built with an arena is given the next free slot in the current
+ * page when it switches to the dense representation. Pages start small and double in size up
+ * to {@link #MAX_PAGE_SIZE}, so a facet where only a few buckets tip doesn't pay for a whole page.
+ * Slots are never freed individually: the arena is dropped along with the facet. An arena is
+ * not thread-safe, so it should only be shared by the estimators of a single collector.
+ * <p/>
+ * Full-size heap pages come from the {@link EstimatorRecycler}, and go back to it when
+ * {@link #release()} is called once the arena's estimators are finished with. An arena created
+ * with a {@link DirectPagePool} takes fixed-size off-heap pages from the pool instead, and must
+ * always be released, or they will never be reused.
+ */
+public class RegisterArena {
+
+    /** Largest page size, in ints (1MB). Pages always have room for at least one slot. */
+    public static final int MAX_PAGE_SIZE = EstimatorRecycler.INT_PAGE_SIZE;
+
+    /**
+     * Log2 of the number of registers in each slot.
+     */
+    private final int _precision;
+
+    /**
+     * Number of ints in each slot.
+     */
+    private final int _slotSize;
+
+    /**
+     * Largest number of slots to put in one page.
+     */
+    private final int _maxSlotsPerPage;
+
+    /**
+     * Pool of off-heap pages, or null to allocate pages on the heap.
+     */
+    private final DirectPagePool _pool;
+
+    /**
+     * Off-heap pages taken from the pool so far.
+     */
+    private final List<ByteBuffer> _directPages;
+
+    /**
+     * Full-size heap pages taken from the recycler so far.
+     */
+    private final List<int[]> _recycledPages = newArrayList();
+
+    /**
+     * The page slots are currently being allocated from, if on the heap.
+     */
+    private int[] _page;
+
+    /**
+     * The page slots are currently being allocated from, if off the heap.
+     */
+    private IntBuffer _directPage;
+
+    /**
+     * Number of ints in the current page.
+     */
+    private int _pageSize;
+
+    /**
+     * Number of ints of the current page in use.
+     */
+    private int _used;
+
+    /**
+     * Number of slots allocated so far.
+     */
+    private int _slots;
+
+    /**
+     * Total number of ints in all pages.
+     */
+    private long _allocated;
+
+    /**
+     * Create a new, empty arena.
+     *
+     * @param precision log2 of the number of registers in each estimator
+     */
+    public RegisterArena(final int precision) {
+        this(precision, null);
+    }
+
+    /**
+     * Create a new, empty arena.
+     *
+     * @param precision log2 of the number of registers in each estimator
+     * @param pool the pool to take off-heap pages from, or null to allocate pages on the heap
+     */
+    public RegisterArena(final int precision, final DirectPagePool pool) {
+        if(precision < SparseHyperLogLog.MIN_PRECISION || precision > SparseHyperLogLog.MAX_PRECISION)
+            throw new IllegalArgumentException("Precision must be between " + SparseHyperLogLog.MIN_PRECISION
+                    + " and " + SparseHyperLogLog.MAX_PRECISION + ", got " + precision);
+        _precision = precision;
+        _slotSize = SparseHyperLogLog.wordCount(precision);
+        _maxSlotsPerPage = Math.max(1, MAX_PAGE_SIZE / _slotSize);
+        _pool = pool;
+        _directPages = pool == null ? null : newArrayList();
+    }
+
+    /**
+     * Get the precision of the estimators this arena holds registers for.
+     *
+     * @return log2 of the number of registers in each slot
+     */
+    public int getPrecision() {
+        return _precision;
+    }
+
+    /**
+     * Check where the pages are.
+     *
+     * @return true if the registers are held off the heap
+     */
+    public boolean isDirect() {
+        return _pool != null;
+    }
+
+    /**
+     * Get the number of ints in each slot.
+     *
+     * @return the slot size
+     */
+    public int getSlotSize() {
+        return _slotSize;
+    }
+
+    /**
+     * Get the number of slots allocated so far.
+     *
+     * @return the number of slots
+     */
+    public int size() {
+        return _slots;
+    }
+
+    /**
+     * Get the memory allocated to pages so far.
+     *
+     * @return the size in bytes
+     */
+    public long sizeInBytes() {
+        return _allocated * 4;
+    }
+
+    /**
+     * Allocate a new, zeroed slot. Call {@link #currentPage()} or {@link #currentDirectPage()}
+     * straight afterwards to get the page it is in.
+     *
+     * @return the offset of the slot within the current page
+     */
+    int allocate() {
+        if(_used + _slotSize > _pageSize) {
+            if(_pool != null) {
+                final ByteBuffer page = _pool.acquire();
+                _directPages.add(page);
+                _directPage = page.asIntBuffer();
+                _pageSize = _directPage.capacity() / _slotSize * _slotSize;
+            } else {
+                final int slotsInPage = _pageSize / _slotSize;
+                final int newSlots = Math.min(Math.max(1, slotsInPage * 2), _maxSlotsPerPage);
+                if(newSlots == _maxSlotsPerPage) {
+                    _page = EstimatorRecycler.popIntPage();
+                    _recycledPages.add(_page);
+                } else {
+                    _page = new int[newSlots * _slotSize];
+                }
+                _pageSize = newSlots * _slotSize;
+            }
+            _allocated += _pageSize;
+            _used = 0;
+        }
+        final int offset = _used;
+        _used += _slotSize;
+        _slots++;
+        return offset;
+    }
+
+    /**
+     * Get the page the last slot was allocated from, if on the heap.
+     *
+     * @return the page
+     */
+    int[] currentPage() {
+        return _page;
+    }
+
+    /**
+     * Get the page the last slot was allocated from, if off the heap.
+     *
+     * @return the page
+     */
+    IntBuffer currentDirectPage() {
+        return _directPage;
+    }
+
+    /**
+     * Give any full-size or off-heap pages back to be reused. The estimators using this
+     * arena must not be used afterwards. Calling this more than once has no effect.
+     */
+    public void release() {
+        for(final int[] page : _recycledPages) {
+            EstimatorRecycler.pushIntPage(page);
+        }
+        _recycledPages.clear();
+        _page = null;
+        if(_pool != null) {
+            for(final ByteBuffer page : _directPages) {
+                _pool.release(page);
+            }
+            _directPages.clear();
+            _directPage = null;
+        }
+        _pageSize = 0;
+        _used = 0;
+    }
+
+}
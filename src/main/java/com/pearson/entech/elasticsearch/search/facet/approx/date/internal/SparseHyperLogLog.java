@@ -0,0 +1,801 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.clearspring.analytics.stream.cardinality.ICardinality;
+import com.clearspring.analytics.util.IBuilder;
+import com.pearson.entech.elasticsearch.plugin.approx.MurmurHash3;
+
+/**
+ * HyperLogLog++ cardinality estimator over 64-bit hashes, after Heule, Nunkesser and Hall (2013).
+ * <p/>
+ * A new estimator starts out in a sparse representation: a list of encoded (index, rank) pairs
+ * at a much higher precision of 2^24 registers, whose cardinality is estimated by linear counting.
+ * While the cardinality is low this is both far smaller and far more accurate than a full set of
+ * registers. The list is converted into dense 5-bit registers, packed six to an int, once it
+ * would take up more memory than they do.
+ * <p/>
+ * The sparse list is kept sorted and compressed: each entry is stored as a variable-length
+ * delta from the previous index, with the rank in a separate byte only when it can't be derived
+ * from the index. Most entries take two bytes, so the list covers roughly twice the range of
+ * cardinalities it could as plain ints before it has to be converted. New entries go into a
+ * small unsorted buffer first, and are merged into the list when it fills up.
+ * <p/>
+ * The empirical bias correction tables from the paper are not included. In the dense
+ * representation small cardinalities are corrected with linear counting, as in classic
+ * HyperLogLog; the 64-bit hash makes a large-range correction unnecessary.
+ * <p/>
+ * Offer hashes from {@link MurmurHash3}: every estimator that is going to be merged must
+ * have been fed with the same hash function.
+ */
+public class SparseHyperLogLog implements ICardinality {
+
+    /** Lowest supported precision (log2 of the number of dense registers). */
+    public static final int MIN_PRECISION = 4;
+
+    /** Highest supported precision (log2 of the number of dense registers). */
+    public static final int MAX_PRECISION = 18;
+
+    /** Precision of the sparse representation. */
+    static final int SPARSE_PRECISION = 24;
+
+    /** Number of low bits of a sparse entry holding the rank (0 means "derive it from the index"). */
+    private static final int RANK_BITS = 6;
+
+    private static final int RANK_MASK = (1 << RANK_BITS) - 1;
+
+    private static final int REGISTER_SIZE = 5;
+
+    private static final int REGISTERS_PER_WORD = 32 / REGISTER_SIZE;
+
+    private static final int REGISTER_MASK = (1 << REGISTER_SIZE) - 1;
+
+    /** Largest rank a 5-bit register can hold; anything above this has probability < 2^-31. */
+    private static final int MAX_RANK = REGISTER_MASK;
+
+    private static final int INITIAL_SPARSE_CAPACITY = 16;
+
+    /** Most bytes a compressed sparse entry can take: a 4-byte varint and a rank byte. */
+    private static final int MAX_SPARSE_ENTRY_BYTES = 5;
+
+    /** Lookup table for 2^-rank. */
+    private static final double[] INVERSE_POWERS_OF_TWO = new double[MAX_RANK + 1];
+
+    static {
+        for(int i = 0; i <= MAX_RANK; i++) {
+            INVERSE_POWERS_OF_TWO[i] = 1.0 / (1L << i);
+        }
+    }
+
+    /**
+     * Log2 of the number of dense registers.
+     */
+    private final int _precision;
+
+    /**
+     * Number of dense registers.
+     */
+    private final int _registerCount;
+
+    /**
+     * Number of bytes of compressed sparse entries above which the dense representation is smaller.
+     */
+    private final int _sparseLimit;
+
+    /**
+     * Largest number of entries to buffer before merging them into the sparse list.
+     */
+    private final int _tailLimit;
+
+    /**
+     * Sparse entries, sorted, deduplicated and compressed. Null once dense.
+     */
+    private byte[] _sparse;
+
+    /**
+     * Number of bytes of _sparse in use.
+     */
+    private int _sparseBytes;
+
+    /**
+     * Number of entries in _sparse.
+     */
+    private int _sparseCount;
+
+    /**
+     * Sparse index of the last entry appended to _sparse.
+     */
+    private int _lastSparseIndex;
+
+    /**
+     * Unsorted sparse entries which have not been merged into _sparse yet. Null once dense.
+     */
+    private int[] _tail;
+
+    /**
+     * Number of entries in _tail.
+     */
+    private int _tailSize;
+
+    /**
+     * Number of ints holding the dense registers.
+     */
+    private final int _wordCount;
+
+    /**
+     * Dense registers, packed six to an int, starting at _wordOffset. Null while sparse,
+     * or if the registers are off the heap. This may be a page shared with other
+     * estimators in the same arena.
+     */
+    private int[] _words;
+
+    /**
+     * Dense registers as for _words, if they are in an off-heap arena page; otherwise null.
+     */
+    private IntBuffer _directWords;
+
+    /**
+     * Offset of our registers within _words or _directWords.
+     */
+    private int _wordOffset;
+
+    /**
+     * Arena to allocate dense registers from, or null to give them their own array.
+     */
+    private final RegisterArena _arena;
+
+    /**
+     * Create a new, empty estimator.
+     *
+     * @param precision log2 of the number of dense registers, between {@link #MIN_PRECISION} and {@link #MAX_PRECISION}
+     */
+    public SparseHyperLogLog(final int precision) {
+        this(precision, null);
+    }
+
+    /**
+     * Create a new, empty estimator whose dense registers will be allocated from an arena.
+     *
+     * @param arena the arena, which also determines the precision
+     */
+    public SparseHyperLogLog(final RegisterArena arena) {
+        this(arena.getPrecision(), arena);
+    }
+
+    private SparseHyperLogLog(final int precision, final RegisterArena arena) {
+        if(precision < MIN_PRECISION || precision > MAX_PRECISION)
+            throw new IllegalArgumentException("Precision must be between " + MIN_PRECISION
+                    + " and " + MAX_PRECISION + ", got " + precision);
+        _precision = precision;
+        _registerCount = 1 << precision;
+        _wordCount = wordCount(precision);
+        _tailLimit = Math.max(INITIAL_SPARSE_CAPACITY, _wordCount / 4);
+        _sparseLimit = (_wordCount - _tailLimit) * 4;
+        _sparse = new byte[INITIAL_SPARSE_CAPACITY];
+        _tail = new int[INITIAL_SPARSE_CAPACITY];
+        _arena = arena;
+    }
+
+    /**
+     * Work out the precision needed to achieve a given relative standard deviation.
+     *
+     * @param rsd the relative standard deviation
+     * @return the precision, clamped to the supported range
+     */
+    public static int precisionFor(final double rsd) {
+        final double registers = (1.04 / rsd) * (1.04 / rsd);
+        final int precision = (int) (Math.log(registers) / Math.log(2));
+        return Math.max(MIN_PRECISION, Math.min(MAX_PRECISION, precision));
+    }
+
+    /**
+     * Number of ints needed to hold the packed dense registers at a given precision.
+     *
+     * @param precision the precision
+     * @return the number of ints
+     */
+    static int wordCount(final int precision) {
+        return (1 << precision) / REGISTERS_PER_WORD + 1;
+    }
+
+    /**
+     * Get the precision.
+     *
+     * @return log2 of the number of dense registers
+     */
+    public int getPrecision() {
+        return _precision;
+    }
+
+    /**
+     * Check the representation.
+     *
+     * @return true if this estimator is still using the sparse representation
+     */
+    public boolean isSparse() {
+        return _sparse != null;
+    }
+
+    @Override
+    public boolean offer(final Object o) {
+        final BytesRef ref = o instanceof BytesRef ? (BytesRef) o : new BytesRef(o.toString());
+        return offerHashed(MurmurHash3.hash64(ref));
+    }
+
+    /**
+     * Offer a 32-bit hash. These are spread to 64 bits, but there can only ever be 2^32
+     * distinct values, so prefer {@link #offerHashed(long)}.
+     *
+     * @param hashedInt the hash
+     * @return true if the estimator may have changed
+     */
+    @Override
+    public boolean offerHashed(final int hashedInt) {
+        return offerHashed(MurmurHash3.fmix64(hashedInt & 0xffffffffL));
+    }
+
+    @Override
+    public boolean offerHashed(final long hashedLong) {
+        if(_sparse != null) {
+            return offerSparse(encode(hashedLong));
+        }
+        final int index = (int) (hashedLong >>> (64 - _precision));
+        final int rank = Long.numberOfLeadingZeros((hashedLong << _precision) | (1L << (_precision - 1))) + 1;
+        return updateRegister(index, rank);
+    }
+
+    @Override
+    public long cardinality() {
+        if(_sparse != null) {
+            compactSparse();
+        }
+        if(_sparse != null) {
+            // Linear counting over the sparse registers
+            final double m = 1 << SPARSE_PRECISION;
+            return Math.round(m * Math.log(m / (m - _sparseCount)));
+        }
+
+        double sum = 0;
+        int zeros = 0;
+        for(int i = 0; i < _registerCount; i++) {
+            final int rank = getRegister(i);
+            sum += INVERSE_POWERS_OF_TWO[rank];
+            if(rank == 0)
+                zeros++;
+        }
+        final double m = _registerCount;
+        final double estimate = alpha(_registerCount) * m * m / sum;
+        if(estimate <= 2.5 * m && zeros > 0) {
+            return Math.round(m * Math.log(m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    @Override
+    public int sizeof() {
+        return _sparse != null ? _sparse.length + _tail.length * 4 : _wordCount * 4;
+    }
+
+    @Override
+    public byte[] getBytes() throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(_precision);
+        if(_sparse != null) {
+            compactSparse();
+        }
+        if(_sparse != null) {
+            out.writeBoolean(true);
+            out.writeInt(_sparseCount);
+            final SparseCursor cursor = new SparseCursor(_sparse, _sparseBytes);
+            while(cursor.hasNext()) {
+                out.writeInt(cursor.next());
+            }
+        } else {
+            out.writeBoolean(false);
+            out.writeInt(_wordCount);
+            for(int i = _wordOffset; i < _wordOffset + _wordCount; i++) {
+                out.writeInt(getWord(i));
+            }
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Write this estimator directly to a stream. This is much more compact than {@link #getBytes()}:
+     * sparse entries are written in their compressed form, and the number of dense registers
+     * is implied by the precision.
+     *
+     * @param out the stream to write to
+     * @throws IOException
+     */
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeVInt(_precision);
+        if(_sparse != null) {
+            compactSparse();
+        }
+        if(_sparse != null) {
+            out.writeBoolean(true);
+            out.writeVInt(_sparseCount);
+            out.writeVInt(_sparseBytes);
+            out.writeBytes(_sparse, 0, _sparseBytes);
+        } else {
+            out.writeBoolean(false);
+            for(int i = _wordOffset; i < _wordOffset + _wordCount; i++) {
+                out.writeInt(getWord(i));
+            }
+        }
+    }
+
+    @Override
+    public ICardinality merge(final ICardinality... estimators) throws CardinalityMergeException {
+        final SparseHyperLogLog merged = new SparseHyperLogLog(_precision);
+        merged.addAll(this);
+        if(estimators != null) {
+            for(final ICardinality estimator : estimators) {
+                if(!(estimator instanceof SparseHyperLogLog))
+                    throw new SparseHyperLogLogMergeException("Cannot merge estimators of different class");
+                merged.addAll((SparseHyperLogLog) estimator);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Merge another estimator into this one, in place. The other estimator is not modified.
+     *
+     * @param other the estimator to merge
+     * @throws CardinalityMergeException if the estimators have different precisions
+     */
+    public void addAll(final SparseHyperLogLog other) throws CardinalityMergeException {
+        if(other._precision != _precision)
+            throw new SparseHyperLogLogMergeException("Cannot merge estimators of different precision ("
+                    + _precision + " and " + other._precision + ")");
+
+        if(other._sparse != null) {
+            final SparseCursor cursor = new SparseCursor(other._sparse, other._sparseBytes);
+            while(cursor.hasNext()) {
+                offerSparse(cursor.next());
+            }
+            final int[] tail = other._tail;
+            final int tailSize = other._tailSize;
+            for(int i = 0; i < tailSize; i++) {
+                offerSparse(tail[i]);
+            }
+        } else {
+            if(_sparse != null)
+                toDense();
+            for(int i = 0; i < _registerCount; i++) {
+                updateRegister(i, other.getRegister(i));
+            }
+        }
+    }
+
+    /**
+     * Merge an estimator written by {@link #writeTo(StreamOutput)} into this one, in place,
+     * without building an intermediate estimator. Sparse entries are offered as they are read,
+     * and dense registers are folded in word by word.
+     *
+     * @param in the stream to read from
+     * @throws IOException
+     * @throws CardinalityMergeException if the estimators have different precisions
+     */
+    public void addAll(final StreamInput in) throws IOException, CardinalityMergeException {
+        final int precision = in.readVInt();
+        if(precision != _precision)
+            throw new SparseHyperLogLogMergeException("Cannot merge estimators of different precision ("
+                    + _precision + " and " + precision + ")");
+
+        if(in.readBoolean()) {
+            in.readVInt(); // Entry count
+            final byte[] bytes = new byte[in.readVInt()];
+            in.readBytes(bytes, 0, bytes.length);
+            final SparseCursor cursor = new SparseCursor(bytes, bytes.length);
+            while(cursor.hasNext()) {
+                offerSparse(cursor.next());
+            }
+        } else {
+            if(_sparse != null)
+                toDense();
+            for(int i = 0; i < _wordCount; i++) {
+                final int word = in.readInt();
+                final int base = i * REGISTERS_PER_WORD;
+                final int limit = Math.min(REGISTERS_PER_WORD, _registerCount - base);
+                for(int j = 0; j < limit; j++) {
+                    updateRegister(base + j, (word >>> (j * REGISTER_SIZE)) & REGISTER_MASK);
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode a hash as a sparse entry: the top 24 bits as the sparse index, followed by 6 bits
+     * for the rank. If the bits of the sparse index below the dense index are not all zero,
+     * they already determine the dense rank, so we store 0 instead.
+     */
+    private int encode(final long hash) {
+        final int sparseIndex = (int) (hash >>> (64 - SPARSE_PRECISION));
+        final int belowDense = sparseIndex & ((1 << (SPARSE_PRECISION - _precision)) - 1);
+        if(belowDense != 0)
+            return sparseIndex << RANK_BITS;
+        final int rank = Long.numberOfLeadingZeros((hash << SPARSE_PRECISION) | (1L << (SPARSE_PRECISION - 1))) + 1;
+        return (sparseIndex << RANK_BITS) | rank;
+    }
+
+    private int decodeIndex(final int entry) {
+        return entry >>> (RANK_BITS + SPARSE_PRECISION - _precision);
+    }
+
+    private int decodeRank(final int entry) {
+        final int extraBits = SPARSE_PRECISION - _precision;
+        final int storedRank = entry & RANK_MASK;
+        if(storedRank != 0)
+            return extraBits + storedRank;
+        final int belowDense = (entry >>> RANK_BITS) & ((1 << extraBits) - 1);
+        return Integer.numberOfLeadingZeros(belowDense) - (32 - extraBits) + 1;
+    }
+
+    private boolean offerSparse(final int entry) {
+        if(_sparse == null)
+            return updateRegister(decodeIndex(entry), decodeRank(entry));
+        _tail[_tailSize++] = entry;
+        if(_tailSize == _tail.length) {
+            compactSparse();
+            // Grow the buffer as the list grows, so that merging stays cheap per entry
+            if(_sparse != null && _tail.length < _tailLimit)
+                _tail = new int[Math.min(_tail.length * 2, _tailLimit)];
+        }
+        return true;
+    }
+
+    /**
+     * Append an entry to the compressed sparse list, growing it if necessary. Entries must
+     * be appended in order of sparse index, with no index appearing twice.
+     *
+     * Each entry is written as a varint of the difference from the previous sparse index,
+     * shifted left by one; the low bit is set if the entry has a stored rank, which then
+     * follows in a byte of its own.
+     */
+    private void appendEntry(final int entry) {
+        final int index = entry >>> RANK_BITS;
+        final int rank = entry & RANK_MASK;
+        if(_sparseBytes + MAX_SPARSE_ENTRY_BYTES > _sparse.length)
+            _sparse = ArrayUtil.grow(_sparse, _sparseBytes + MAX_SPARSE_ENTRY_BYTES);
+        int code = ((index - _lastSparseIndex) << 1) | (rank == 0 ? 0 : 1);
+        while((code & ~0x7F) != 0) {
+            _sparse[_sparseBytes++] = (byte) ((code & 0x7F) | 0x80);
+            code >>>= 7;
+        }
+        _sparse[_sparseBytes++] = (byte) code;
+        if(rank != 0)
+            _sparse[_sparseBytes++] = (byte) rank;
+        _lastSparseIndex = index;
+        _sparseCount++;
+    }
+
+    /**
+     * Sort the buffered sparse entries and merge them into the list, keeping the highest
+     * rank for each index, then switch to the dense representation if the list has got
+     * too long.
+     */
+    private void compactSparse() {
+        if(_tailSize == 0)
+            return;
+        Arrays.sort(_tail, 0, _tailSize);
+
+        final SparseCursor list = new SparseCursor(_sparse, _sparseBytes);
+        final int tailSize = _tailSize;
+        // Most entries take two bytes; appendEntry() grows the list if they need more
+        _sparse = new byte[ArrayUtil.oversize(_sparseBytes + tailSize * 2, 1)];
+        _sparseBytes = 0;
+        _sparseCount = 0;
+        _lastSparseIndex = 0;
+        _tailSize = 0;
+
+        // Entries sort by index and then by rank, so the last entry for an index wins
+        int fromList = list.hasNext() ? list.next() : -1;
+        int pending = -1;
+        int i = 0;
+        while(fromList >= 0 || i < tailSize) {
+            final int next;
+            if(i == tailSize || (fromList >= 0 && fromList <= _tail[i])) {
+                next = fromList;
+                fromList = list.hasNext() ? list.next() : -1;
+            } else {
+                next = _tail[i++];
+            }
+            if(pending >= 0 && (pending >>> RANK_BITS) != (next >>> RANK_BITS))
+                appendEntry(pending);
+            pending = next;
+        }
+        if(pending >= 0)
+            appendEntry(pending);
+
+        if(_sparseBytes > _sparseLimit)
+            toDense();
+    }
+
+    private void toDense() {
+        final SparseCursor list = new SparseCursor(_sparse, _sparseBytes);
+        final int[] tail = _tail;
+        final int tailSize = _tailSize;
+        _sparse = null;
+        _sparseBytes = 0;
+        _sparseCount = 0;
+        _tail = null;
+        _tailSize = 0;
+        if(_arena == null) {
+            _words = new int[_wordCount];
+            _wordOffset = 0;
+        } else {
+            _wordOffset = _arena.allocate();
+            if(_arena.isDirect())
+                _directWords = _arena.currentDirectPage();
+            else
+                _words = _arena.currentPage();
+        }
+        while(list.hasNext()) {
+            final int entry = list.next();
+            updateRegister(decodeIndex(entry), decodeRank(entry));
+        }
+        for(int i = 0; i < tailSize; i++) {
+            updateRegister(decodeIndex(tail[i]), decodeRank(tail[i]));
+        }
+    }
+
+    private int getWord(final int word) {
+        return _words != null ? _words[word] : _directWords.get(word);
+    }
+
+    private int getRegister(final int index) {
+        return (getWord(_wordOffset + index / REGISTERS_PER_WORD) >>> ((index % REGISTERS_PER_WORD) * REGISTER_SIZE)) & REGISTER_MASK;
+    }
+
+    private boolean updateRegister(final int index, int rank) {
+        if(rank > MAX_RANK)
+            rank = MAX_RANK;
+        final int word = _wordOffset + index / REGISTERS_PER_WORD;
+        final int shift = (index % REGISTERS_PER_WORD) * REGISTER_SIZE;
+        final int value = getWord(word);
+        final int current = (value >>> shift) & REGISTER_MASK;
+        if(rank > current) {
+            final int updated = (value & ~(REGISTER_MASK << shift)) | (rank << shift);
+            if(_words != null)
+                _words[word] = updated;
+            else
+                _directWords.put(word, updated);
+            return true;
+        }
+        return false;
+    }
+
+    private static double alpha(final int m) {
+        switch(m) {
+        case 16:
+            return 0.673;
+        case 32:
+            return 0.697;
+        case 64:
+            return 0.709;
+        default:
+            return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /**
+     * Factory for sparse HyperLogLog++ estimators with a given accuracy.
+     */
+    public static class Builder implements IBuilder<ICardinality>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int _precision;
+
+        /**
+         * Arena for the estimators' dense registers, if any. Arenas are local to a shard,
+         * so this is not serialized.
+         */
+        private final transient RegisterArena _arena;
+
+        /**
+         * Create a builder for estimators with the given relative standard deviation.
+         *
+         * @param rsd the relative standard deviation
+         */
+        public Builder(final double rsd) {
+            this(precisionFor(rsd));
+        }
+
+        private Builder(final int precision) {
+            if(precision < MIN_PRECISION || precision > MAX_PRECISION)
+                throw new IllegalArgumentException("Precision must be between " + MIN_PRECISION
+                        + " and " + MAX_PRECISION + ", got " + precision);
+            _precision = precision;
+            _arena = null;
+        }
+
+        private Builder(final RegisterArena arena) {
+            _precision = arena.getPrecision();
+            _arena = arena;
+        }
+
+        /**
+         * Create a builder for estimators with the given precision.
+         *
+         * @param precision log2 of the number of dense registers
+         * @return the builder
+         */
+        public static Builder withPrecision(final int precision) {
+            return new Builder(precision);
+        }
+
+        /**
+         * Create a builder for estimators whose dense registers are allocated from an arena.
+         *
+         * @param arena the arena, which also determines the precision
+         * @return the builder
+         */
+        public static Builder withArena(final RegisterArena arena) {
+            return new Builder(arena);
+        }
+
+        private static int lastIndex(final byte[] bytes, final int end) {
+            int entry = 0;
+            final SparseCursor cursor = new SparseCursor(bytes, end);
+            while(cursor.hasNext()) {
+                entry = cursor.next();
+            }
+            return entry >>> RANK_BITS;
+        }
+
+        @Override
+        public SparseHyperLogLog build() {
+            return _arena == null ? new SparseHyperLogLog(_precision) : new SparseHyperLogLog(_arena);
+        }
+
+        @Override
+        public int sizeof() {
+            return wordCount(_precision) * 4;
+        }
+
+        /**
+         * Get the precision of the estimators this builder creates.
+         *
+         * @return log2 of the number of dense registers
+         */
+        public int getPrecision() {
+            return _precision;
+        }
+
+        /**
+         * Read an estimator written by {@link SparseHyperLogLog#writeTo(StreamOutput)}.
+         *
+         * @param in the stream to read from
+         * @return the estimator
+         * @throws IOException
+         */
+        public static SparseHyperLogLog build(final StreamInput in) throws IOException {
+            final SparseHyperLogLog hll = new SparseHyperLogLog(in.readVInt());
+            if(in.readBoolean()) {
+                final int count = in.readVInt();
+                final int bytes = in.readVInt();
+                hll._sparse = new byte[Math.max(bytes, INITIAL_SPARSE_CAPACITY)];
+                in.readBytes(hll._sparse, 0, bytes);
+                hll._sparseBytes = bytes;
+                hll._sparseCount = count;
+                hll._lastSparseIndex = lastIndex(hll._sparse, bytes);
+            } else {
+                hll._sparse = null;
+                hll._tail = null;
+                hll._words = new int[hll._wordCount];
+                for(int i = 0; i < hll._wordCount; i++) {
+                    hll._words[i] = in.readInt();
+                }
+            }
+            return hll;
+        }
+
+        /**
+         * Deserialize an estimator from the output of {@link SparseHyperLogLog#getBytes()}.
+         *
+         * @param bytes the serialized estimator
+         * @return the estimator
+         * @throws IOException
+         */
+        public static SparseHyperLogLog build(final byte[] bytes) throws IOException {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            final SparseHyperLogLog hll = new SparseHyperLogLog(in.readInt());
+            final boolean sparse = in.readBoolean();
+            final int size = in.readInt();
+            if(sparse) {
+                hll._sparse = new byte[ArrayUtil.oversize(size * 2, 1)];
+                for(int i = 0; i < size; i++) {
+                    hll.appendEntry(in.readInt());
+                }
+            } else {
+                hll._sparse = null;
+                hll._tail = null;
+                hll._words = new int[size];
+                for(int i = 0; i < size; i++) {
+                    hll._words[i] = in.readInt();
+                }
+            }
+            return hll;
+        }
+
+    }
+
+    /**
+     * Reads the entries of a compressed sparse list back in order.
+     */
+    private static class SparseCursor {
+
+        private final byte[] _bytes;
+
+        private final int _end;
+
+        private int _position;
+
+        private int _index;
+
+        SparseCursor(final byte[] bytes, final int end) {
+            _bytes = bytes;
+            _end = end;
+        }
+
+        boolean hasNext() {
+            return _position < _end;
+        }
+
+        /**
+         * Decode the next entry.
+         *
+         * @return the entry, in the same form as produced by {@link SparseHyperLogLog#encode(long)}
+         */
+        int next() {
+            int code = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = _bytes[_position++];
+                code |= (b & 0x7F) << shift;
+                shift += 7;
+            } while(b < 0);
+            _index += code >>> 1;
+            final int rank = (code & 1) == 0 ? 0 : _bytes[_position++];
+            return (_index << RANK_BITS) | rank;
+        }
+
+    }
+
+    /**
+     * Exception thrown to indicate that you have asked to merge two incompatible estimators.
+     */
+    @SuppressWarnings("serial")
+    protected static class SparseHyperLogLogMergeException extends CardinalityMergeException {
+
+        /**
+         * Create exception.
+         * @param message
+         */
+        public SparseHyperLogLogMergeException(final String message) {
+            super(message);
+        }
+
+    }
+
+}
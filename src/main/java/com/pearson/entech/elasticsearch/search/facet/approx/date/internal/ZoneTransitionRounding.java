@@ -0,0 +1,218 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.DateTimeField;
+import org.elasticsearch.common.joda.time.DateTimeZone;
+
+/**
+ * Time zone rounding to a datetime field for time zones with daylight saving or other transitions,
+ * where the result can't be calculated arithmetically. Instead of going through Joda for every
+ * datetime, this precomputes a table of the ranges of datetimes which share a rounded value,
+ * covering the datetimes seen so far, and looks each datetime up in it.
+ * <p/>
+ * Within a range free of transitions of the pre zone, the offset is constant, so the rounded value
+ * can only change where the local time crosses a field boundary. The table holds the start of each
+ * such range along with its value, as calculated by the equivalent {@link TimeZoneRounding}, so results
+ * are always identical. Datetimes outside the table extend it to cover twice the span, up to
+ * {@link #MAX_ENTRIES} ranges; beyond that they are rounded by Joda.
+ * <p/>
+ * Lookups first try the range of the previous datetime and the one after it, which is where
+ * datetimes land when they arrive in ascending order, e.g. when rounding ordinals; otherwise
+ * they do a binary search. This class is not thread-safe.
+ */
+public class ZoneTransitionRounding extends TimeZoneRounding implements CopyableRounding {
+
+    /** Largest number of ranges to hold in the table. */
+    public static final int MAX_ENTRIES = 1 << 16;
+
+    /** Number of field units covered by the table when it's first built. */
+    private static final int INITIAL_UNITS = 64;
+
+    /** The table only covers datetimes within about 2000 years of the epoch. */
+    private static final long MAX_TABLED = 1L << 46;
+
+    private final TimeZoneRounding _inner;
+
+    private final DateTimeField _field;
+
+    private final DateTimeZone _preZone;
+
+    private final long _preOffset;
+
+    private final long _postOffset;
+
+    private final float _factor;
+
+    /** Start of each range, ascending. */
+    private long[] _starts = new long[0];
+
+    /** Rounded value of each range. */
+    private long[] _values = new long[0];
+
+    private int _size;
+
+    /** End of the last range, exclusive. */
+    private long _end;
+
+    /** Index of the range used by the previous lookup. */
+    private int _last;
+
+    /** Set once the table can't grow any more. */
+    private boolean _full;
+
+    /**
+     * Create a rounding to a datetime field of the UTC ISO chronology.
+     * The parameters are those of {@link TimeZoneRounding.Builder}.
+     *
+     * @param field the field to round to
+     * @param preZone the time zone to round in
+     * @param postZone the time zone to shift the results into
+     * @param preZoneAdjustLargeInterval false to leave intervals of 12 hours or more in preZone after rounding
+     * @param preOffset offset applied before rounding, in millis
+     * @param postOffset offset applied after rounding, in millis
+     * @param factor factor to multiply datetimes by before rounding
+     */
+    public ZoneTransitionRounding(final DateTimeField field, final DateTimeZone preZone, final DateTimeZone postZone,
+            final boolean preZoneAdjustLargeInterval, final long preOffset, final long postOffset, final float factor) {
+        // Offsets and factor are applied here, so the table only depends on the zones
+        _inner = TimeZoneRounding.builder(field)
+                .preZone(preZone).postZone(postZone)
+                .preZoneAdjustLargeInterval(preZoneAdjustLargeInterval)
+                .build();
+        _field = field;
+        _preZone = preZone;
+        _preOffset = preOffset;
+        _postOffset = postOffset;
+        _factor = factor;
+    }
+
+    private ZoneTransitionRounding(final ZoneTransitionRounding other) {
+        // The inner rounding is immutable, so it can be shared
+        _inner = other._inner;
+        _field = other._field;
+        _preZone = other._preZone;
+        _preOffset = other._preOffset;
+        _postOffset = other._postOffset;
+        _factor = other._factor;
+    }
+
+    /**
+     * Create a rounding with the same settings and an empty table of its own, for use on another thread.
+     * 
+     * @return the new rounding
+     */
+    @Override
+    public ZoneTransitionRounding copy() {
+        return new ZoneTransitionRounding(this);
+    }
+
+    @Override
+    public long calc(final long utcMillis) {
+        final long scaled = _factor == 1.0f ? utcMillis : (long) (utcMillis * _factor);
+        return _postOffset + lookup(scaled + _preOffset);
+    }
+
+    /**
+     * Get the number of ranges in the table.
+     *
+     * @return the number of ranges
+     */
+    public int size() {
+        return _size;
+    }
+
+    private long lookup(final long millis) {
+        int i = _last;
+        if(i < _size && millis >= _starts[i]) {
+            if(millis < endOf(i))
+                return _values[i];
+            if(++i < _size && millis < endOf(i)) {
+                _last = i;
+                return _values[i];
+            }
+        }
+        if(_size == 0 || millis < _starts[0] || millis >= _end) {
+            if(!extend(millis))
+                return _inner.calc(millis);
+        }
+        // Find the last range starting at or before millis
+        int low = 0;
+        int high = _size - 1;
+        while(low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if(_starts[mid] <= millis)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        _last = low;
+        return _values[low];
+    }
+
+    private long endOf(final int i) {
+        return i + 1 < _size ? _starts[i + 1] : _end;
+    }
+
+    private boolean extend(final long millis) {
+        if(_full || millis < -MAX_TABLED || millis >= MAX_TABLED)
+            return false;
+        long start;
+        long end;
+        if(_size == 0) {
+            final long span = INITIAL_UNITS * _field.getDurationField().getUnitMillis();
+            start = millis - span / 2;
+            end = millis + span / 2 + 1;
+        } else {
+            final long span = _end - _starts[0];
+            start = Math.min(_starts[0], millis - span);
+            end = Math.max(_end, millis + span + 1);
+        }
+        start = Math.max(start, -MAX_TABLED);
+        end = Math.min(end, MAX_TABLED);
+        if(!build(start, end)) {
+            _full = true;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean build(final long start, final long end) {
+        long[] starts = new long[Math.max(16, _starts.length)];
+        long[] values = new long[starts.length];
+        int size = 0;
+        long from = start;
+        while(from < end) {
+            // The pre zone's offset is constant up to its next transition
+            final long offset = _preZone.getOffset(from);
+            final long transition = _preZone.nextTransition(from);
+            final long segmentEnd = transition <= from || transition > end ? end : transition;
+            while(from < segmentEnd) {
+                // ...so the rounded value is constant up to the next field boundary in local time
+                long next = _field.roundCeiling(from + offset + 1) - offset;
+                if(next > segmentEnd)
+                    next = segmentEnd;
+                final long value = _inner.calc(from);
+                if(size == 0 || values[size - 1] != value) {
+                    if(size == MAX_ENTRIES)
+                        return false;
+                    if(size == starts.length) {
+                        starts = ArrayUtil.grow(starts);
+                        values = ArrayUtil.grow(values, starts.length);
+                    }
+                    starts[size] = from;
+                    values[size] = value;
+                    size++;
+                }
+                from = next;
+            }
+        }
+        _starts = starts;
+        _values = values;
+        _size = size;
+        _end = end;
+        _last = 0;
+        return true;
+    }
+
+}
@@ -0,0 +1,38 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+public class DirectPagePoolTest {
+
+    @Test
+    public void testSurplusPagesAreFreed() throws Exception {
+        final DirectPagePool pool = new DirectPagePool(ImmutableSettings.EMPTY, true, 1);
+        final ByteBuffer first = pool.acquire();
+        final ByteBuffer second = pool.acquire();
+        assertEquals(2, pool.pagesInUse());
+        pool.release(first);
+        pool.release(second);
+        assertEquals(0, pool.pagesInUse());
+        assertEquals(1, pool.pagesPooled());
+
+        // Only the pooled page comes back; the other one has been freed
+        final ByteBuffer reused = pool.acquire();
+        assertSame(first, reused);
+        assertNotSame(second, pool.acquire());
+    }
+
+    @Test
+    public void testFree() throws Exception {
+        // This JVM exposes a way of freeing direct buffers
+        assertTrue(DirectPagePool.free(ByteBuffer.allocateDirect(DirectPagePool.PAGE_SIZE)));
+    }
+
+}
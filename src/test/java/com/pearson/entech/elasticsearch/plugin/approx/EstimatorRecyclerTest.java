@@ -0,0 +1,50 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EstimatorRecyclerTest {
+
+    @Before
+    public void setUp() throws Exception {
+        // The pool is node-wide, so start from empty
+        while(EstimatorRecycler.pooledHashes() > 0) {
+            EstimatorRecycler.popBytesRefHash();
+        }
+    }
+
+    @Test
+    public void testSmallHashIsReused() throws Exception {
+        final BytesRefHash hash = fill(EstimatorRecycler.popBytesRefHash(), EstimatorRecycler.MAX_POOLED_HASH_SIZE);
+        EstimatorRecycler.pushBytesRefHash(hash);
+        assertEquals(1, EstimatorRecycler.pooledHashes());
+
+        final BytesRefHash reused = EstimatorRecycler.popBytesRefHash();
+        assertSame(hash, reused);
+        assertEquals(0, reused.size());
+        assertEquals(0, reused.add(new BytesRef("value")));
+    }
+
+    @Test
+    public void testLargeHashIsNotRetained() throws Exception {
+        final BytesRefHash hash = fill(EstimatorRecycler.popBytesRefHash(), EstimatorRecycler.MAX_POOLED_HASH_SIZE + 1);
+        EstimatorRecycler.pushBytesRefHash(hash);
+        assertEquals(0, EstimatorRecycler.pooledHashes());
+        assertNotSame(hash, EstimatorRecycler.popBytesRefHash());
+    }
+
+    private static BytesRefHash fill(final BytesRefHash hash, final int size) {
+        for(int i = 0; i < size; i++) {
+            hash.add(new BytesRef(Integer.toString(i)));
+        }
+        assertEquals(size, hash.size());
+        return hash;
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongHashTest {
+
+    @Test
+    public void testIdsAreSequential() throws Exception {
+        final LongHash hash = new LongHash();
+        final long[] values = { 0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE, -42 };
+        for(int i = 0; i < values.length; i++) {
+            assertEquals(i, hash.add(values[i]));
+        }
+        // Adding a value again gives -(id + 1)
+        for(int i = 0; i < values.length; i++) {
+            assertEquals(-(i + 1), hash.add(values[i]));
+            assertEquals(i, hash.find(values[i]));
+            assertEquals(values[i], hash.get(i));
+        }
+        assertEquals(values.length, hash.size());
+        assertEquals(-1, hash.find(2));
+    }
+
+    @Test
+    public void testGrowth() throws Exception {
+        // Far more values than the initial capacity, with repeats
+        final LongHash hash = new LongHash(4);
+        final Set<Long> expected = new LinkedHashSet<Long>();
+        final Random random = new Random(0);
+        for(int i = 0; i < 20000; i++) {
+            final long value = MurmurHash3.hash64(random.nextInt(5000) - 2500);
+            final int id = hash.add(value);
+            if(expected.add(value))
+                assertEquals(expected.size() - 1, id);
+            else
+                assertTrue(id < 0);
+        }
+        check(hash, expected);
+    }
+
+    @Test
+    public void testCollisions() throws Exception {
+        // The two halves of each value cancel out, so they all start probing from slot 0
+        final LongHash hash = new LongHash();
+        final Set<Long> expected = new LinkedHashSet<Long>();
+        for(long i = -500; i < 500; i++) {
+            final long value = i << 32 | i & 0xffffffffL;
+            expected.add(value);
+            hash.add(value);
+            hash.add(value);
+        }
+        assertEquals(1000, expected.size());
+        check(hash, expected);
+        assertEquals(-1, hash.find(1));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        final LongHash hash = new LongHash();
+        for(long i = 0; i < 100; i++) {
+            hash.add(MurmurHash3.hash64(i));
+        }
+        hash.clear();
+        assertEquals(0, hash.size());
+        assertEquals(-1, hash.find(MurmurHash3.hash64(5)));
+        assertEquals(0, hash.add(MurmurHash3.hash64(5)));
+        assertEquals(1, hash.size());
+    }
+
+    // Every value in the set has its ID, in the order they were first added
+    private static void check(final LongHash hash, final Set<Long> expected) {
+        assertEquals(expected.size(), hash.size());
+        int id = 0;
+        for(final long value : expected) {
+            assertEquals(value, hash.get(id));
+            assertEquals(id, hash.find(value));
+            id++;
+        }
+    }
+
+}
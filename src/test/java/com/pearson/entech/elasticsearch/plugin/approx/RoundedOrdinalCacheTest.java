@@ -0,0 +1,175 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pearson.entech.elasticsearch.plugin.approx.RoundedOrdinalCache.Table;
+
+public class RoundedOrdinalCacheTest {
+
+    private final List<DirectoryReader> _readers = new ArrayList<DirectoryReader>();
+
+    private RoundedOrdinalCache _cache;
+
+    @Before
+    public void setUp() throws Exception {
+        _cache = new RoundedOrdinalCache(ImmutableSettings.EMPTY, 1 << 20);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for(final DirectoryReader reader : _readers) {
+            if(reader.getRefCount() > 0)
+                reader.close();
+        }
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        final SegmentReader segment = segment();
+        final Table table = table(4);
+        assertNull(_cache.get(segment.getCoreCacheKey(), "ts", "1h", 4));
+        _cache.put(segment, "ts", "1h", table);
+        assertSame(table, _cache.get(segment.getCoreCacheKey(), "ts", "1h", 4));
+        assertNull(_cache.get(segment.getCoreCacheKey(), "ts", "1d", 4));
+        assertNull(_cache.get(segment.getCoreCacheKey(), "other", "1h", 4));
+        assertNull(_cache.get(segment().getCoreCacheKey(), "ts", "1h", 4));
+    }
+
+    @Test
+    public void testDifferentMaxOrdIsAMiss() throws Exception {
+        final SegmentReader segment = segment();
+        _cache.put(segment, "ts", "1h", table(4));
+        assertNull(_cache.get(segment.getCoreCacheKey(), "ts", "1h", 5));
+    }
+
+    @Test
+    public void testEvictionByWeight() throws Exception {
+        final RoundedOrdinalCache cache = new RoundedOrdinalCache(ImmutableSettings.EMPTY, 1000);
+        final SegmentReader segment = segment();
+        for(int i = 0; i < 100; i++) {
+            cache.put(segment, "ts", "rounding" + i, table(4));
+        }
+        assertTrue(cache.size() < 100);
+        assertTrue(cache.sizeInBytes() <= 1000);
+        assertEquals(cache.size() * table(4).sizeInBytes(), cache.sizeInBytes());
+    }
+
+    @Test
+    public void testInvalidationOnClose() throws Exception {
+        final DirectoryReader closing = reader();
+        final SegmentReader closed = (SegmentReader) closing.leaves().get(0).reader();
+        final SegmentReader open = segment();
+        _cache.put(closed, "ts", "1h", table(4));
+        _cache.put(closed, "ts", "1d", table(4));
+        _cache.put(open, "ts", "1h", table(8));
+        assertEquals(3, _cache.size());
+
+        closing.close();
+        assertEquals(1, _cache.size());
+        assertEquals(table(8).sizeInBytes(), _cache.sizeInBytes());
+        assertNull(_cache.get(closed.getCoreCacheKey(), "ts", "1h", 4));
+        assertTrue(_cache.get(open.getCoreCacheKey(), "ts", "1h", 8) != null);
+    }
+
+    @Test
+    public void testNoPutAfterClose() throws Exception {
+        final DirectoryReader closing = reader();
+        final SegmentReader closed = (SegmentReader) closing.leaves().get(0).reader();
+        closing.close();
+        _cache.put(closed, "ts", "1h", table(4));
+        assertEquals(0, _cache.size());
+        assertEquals(0, _cache.sizeInBytes());
+    }
+
+    @Test
+    public void testReplacedTableIsSubtracted() throws Exception {
+        final SegmentReader segment = segment();
+        _cache.put(segment, "ts", "1h", table(4));
+        _cache.put(segment, "ts", "1h", table(8));
+        assertEquals(1, _cache.size());
+        assertEquals(table(8).sizeInBytes(), _cache.sizeInBytes());
+    }
+
+    @Test
+    public void testSizeAfterRacingPuts() throws Exception {
+        final SegmentReader segment = segment();
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for(int t = 0; t < 8; t++) {
+                final int thread = t;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for(int i = 0; i < 1000; i++) {
+                            _cache.put(segment, "ts", "rounding" + i % 10, table(1 + (thread + i) % 16));
+                        }
+                        return null;
+                    }
+                });
+            }
+            for(final Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // Whichever table won each key, only the winners should be counted
+        assertEquals(10, _cache.size());
+        long expected = 0;
+        for(int maxOrd = 1; maxOrd <= 16; maxOrd++) {
+            for(int i = 0; i < 10; i++) {
+                final Table table = _cache.get(segment.getCoreCacheKey(), "ts", "rounding" + i, maxOrd);
+                if(table != null)
+                    expected += table.sizeInBytes();
+            }
+        }
+        assertEquals(expected, _cache.sizeInBytes());
+    }
+
+    private static Table table(final int maxOrd) {
+        return new Table(new long[] { 0, 3600000 }, new int[maxOrd], maxOrd);
+    }
+
+    private DirectoryReader reader() throws Exception {
+        final RAMDirectory directory = new RAMDirectory();
+        final IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+        final Document doc = new Document();
+        doc.add(new StringField("s", "a", Store.NO));
+        writer.addDocument(doc);
+        writer.close();
+        final DirectoryReader reader = DirectoryReader.open(directory);
+        _readers.add(reader);
+        return reader;
+    }
+
+    private SegmentReader segment() throws Exception {
+        return (SegmentReader) reader().leaves().get(0).reader();
+    }
+
+}
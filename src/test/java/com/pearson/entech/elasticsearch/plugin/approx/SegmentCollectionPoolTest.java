@@ -0,0 +1,48 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+public class SegmentCollectionPoolTest {
+
+    @Test
+    public void testResultsInTaskOrder() throws Exception {
+        final SegmentCollectionPool pool = new SegmentCollectionPool(ImmutableSettings.EMPTY, true, 2);
+        try {
+            assertEquals(Arrays.asList(0, 1, 2), pool.invokeAll(Arrays.asList(task(0), task(1), task(2))));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testClosedPoolRejectsTasks() throws Exception {
+        final SegmentCollectionPool pool = new SegmentCollectionPool(ImmutableSettings.EMPTY, true, 2);
+        pool.close();
+        try {
+            final List<Callable<Integer>> tasks = Arrays.asList(task(0));
+            pool.invokeAll(tasks);
+            fail();
+        } catch(final RejectedExecutionException e) {
+            // The pool has been shut down
+        }
+    }
+
+    private static Callable<Integer> task(final int result) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return result;
+            }
+        };
+    }
+
+}
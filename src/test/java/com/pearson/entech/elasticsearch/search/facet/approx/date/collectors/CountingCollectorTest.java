@@ -0,0 +1,169 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
+
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.longs;
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.strings;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.chrono.ISOChronology;
+import org.elasticsearch.index.fielddata.AtomicFieldData;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.NullEntry;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.TimePeriod;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalCountingFacet;
+
+public class CountingCollectorTest {
+
+    private static final long MINUTE = 60000L;
+
+    private static final long T0 = 1000 * 60 * MINUTE;
+
+    private static final TimeZoneRounding HOURLY = TimeZoneRounding.builder(ISOChronology.getInstanceUTC().hourOfDay()).build();
+
+    private InMemoryIndex _index;
+
+    // The datetimes of each doc, by doc ID
+    private final List<long[]> _datetimes = new ArrayList<long[]>();
+
+    @Before
+    public void setUp() throws Exception {
+        _index = new InMemoryIndex();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _index.close();
+    }
+
+    @Test
+    public void testSparseSegmentCountsMatch() throws Exception {
+        // Enough ordinals for the segment to be rounded lazily and folded sparsely
+        for(int i = 0; i < 5000; i++) {
+            add(T0 + i * MINUTE, T0 + i * MINUTE + 30000);
+        }
+        final int[] docs = new int[100];
+        for(int i = 0; i < docs.length; i++) {
+            docs[i] = i * 50;
+        }
+
+        final CountingCollector<?> collector = collector();
+        final AtomicReaderContext context = _index.reader().leaves().get(0);
+        collector.setNextReader(context);
+        collector.collectBlock(docs, docs.length);
+        collector.postCollection();
+        assertEquals(expected(docs), counts(collector));
+    }
+
+    @Test
+    public void testOrdinalSegmentsCountMatch() throws Exception {
+        // Several segments of multi-valued datetimes, some sharing hours across segments
+        for(int segment = 0; segment < 3; segment++) {
+            for(int i = 0; i < 200; i++) {
+                final long datetime = T0 + (segment * 100 + i) * 7 * MINUTE;
+                if(i % 10 == 0)
+                    add();
+                else
+                    add(datetime, datetime + 90 * MINUTE, datetime + 91 * MINUTE);
+            }
+            _index.flush();
+        }
+        assertEquals(expected(allDocs()), counts(_index.collect(collector(), "f")));
+    }
+
+    @Test
+    public void testValueCountsMatch() throws Exception {
+        // All of a doc's values are counted against its first datetime
+        final Map<Long, Long> expectedSingle = new TreeMap<Long, Long>();
+        final Map<Long, Long> expectedMulti = new TreeMap<Long, Long>();
+        for(int segment = 0; segment < 2; segment++) {
+            for(int i = 0; i < 300; i++) {
+                final long datetime = T0 + i * 13 * MINUTE;
+                final long[] datetimes = segment == 0 ? new long[] { datetime, datetime + 120 * MINUTE } : new long[] { datetime };
+                final Document doc = longs(new Document(), "ts", datetimes);
+                final int values = i % 4;
+                for(int v = 0; v < values; v++) {
+                    longs(doc, "number", i + v);
+                    strings(doc, "text", "t" + (i + v));
+                }
+                if(values > 0) {
+                    longs(doc, "single", i);
+                    increment(expectedSingle, HOURLY.calc(datetime), 1);
+                    increment(expectedMulti, HOURLY.calc(datetime), values);
+                }
+                _index.add(doc);
+            }
+            _index.flush();
+        }
+        assertEquals(expectedMulti, counts(_index.collect(collector(_index.stringFieldData("text")), "f")));
+        assertEquals(expectedMulti, counts(_index.collect(collector(_index.longFieldData("number")), "f")));
+        assertEquals(expectedSingle, counts(_index.collect(collector(_index.longFieldData("single")), "f")));
+    }
+
+    private static void increment(final Map<Long, Long> counts, final long timestamp, final long count) {
+        final Long previous = counts.get(timestamp);
+        counts.put(timestamp, previous == null ? count : previous + count);
+    }
+
+    private void add(final long... datetimes) throws Exception {
+        _index.add(longs(new Document(), "ts", datetimes));
+        _datetimes.add(datetimes);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private CountingCollector<AtomicFieldData<ScriptDocValues>> collector() {
+        return new CountingCollector(_index.longFieldData("ts"), HOURLY);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private CountingCollector<AtomicFieldData<ScriptDocValues>> collector(final IndexFieldData<?> valueFieldData) {
+        return new CountingCollector(_index.longFieldData("ts"), valueFieldData, HOURLY);
+    }
+
+    // Round and count each datetime of each doc, the slow way
+    private Map<Long, Long> expected(final int[] docs) {
+        final Map<Long, Long> counts = new TreeMap<Long, Long>();
+        for(final int doc : docs) {
+            for(final long datetime : _datetimes.get(doc)) {
+                final long timestamp = HOURLY.calc(datetime);
+                final Long count = counts.get(timestamp);
+                counts.put(timestamp, count == null ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
+    private int[] allDocs() {
+        final int[] docs = new int[_datetimes.size()];
+        for(int i = 0; i < docs.length; i++) {
+            docs[i] = i;
+        }
+        return docs;
+    }
+
+    private static Map<Long, Long> counts(final CountingCollector<?> collector) {
+        return counts(collector.build("f"));
+    }
+
+    private static Map<Long, Long> counts(final InternalFacet built) {
+        final InternalCountingFacet facet = (InternalCountingFacet) built;
+        final Map<Long, Long> counts = new TreeMap<Long, Long>();
+        for(final TimePeriod<NullEntry> period : facet.getTimePeriods()) {
+            counts.put(period.getTime(), period.getTotalCount());
+        }
+        return counts;
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
+
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.doubles;
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.longs;
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.strings;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.lucene.document.Document;
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.chrono.ISOChronology;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctTimePeriod;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.NullEntry;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalDistinctFacet;
+
+public class DistinctCollectorTest {
+
+    private static final long MINUTE = 60000L;
+
+    private static final long T0 = 1000 * 60 * MINUTE;
+
+    private static final TimeZoneRounding HOURLY = TimeZoneRounding.builder(ISOChronology.getInstanceUTC().hourOfDay()).build();
+
+    private InMemoryIndex _index;
+
+    // The datetimes and distinct values of each doc, in the order added
+    private final List<long[]> _datetimes = new ArrayList<long[]>();
+
+    private final List<long[]> _values = new ArrayList<long[]>();
+
+    @Before
+    public void setUp() throws Exception {
+        _index = new InMemoryIndex();
+        // Datetimes with ordinals, so occurrences are recorded by timestamp pointer
+        for(int i = 0; i < 400; i++) {
+            add(new long[] { T0 + i * 5 * MINUTE, T0 + i * 5 * MINUTE + 60 * MINUTE }, i % 37 - 18, -(i % 11) - 100);
+        }
+        _index.flush();
+        // Single-valued datetimes without ordinals, so occurrences are recorded by bucket
+        for(int i = 0; i < 400; i++) {
+            add(new long[] { T0 + i * 4 * MINUTE }, i % 23 - 11);
+        }
+        _index.flush();
+        // Some docs without values or datetimes
+        for(int i = 0; i < 50; i++) {
+            add(i % 2 == 0 ? new long[] { T0 + i * MINUTE } : new long[0]);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _index.close();
+    }
+
+    @Test
+    public void testExactCountsMatch() throws Exception {
+        final InternalDistinctFacet facet = collect(_index.stringFieldData("text"));
+        assertEquals(expected(), periods(facet));
+        assertEquals(expectedDistinct(), facet.getDistinctCount());
+    }
+
+    @Test
+    public void testNumericCountsMatchText() throws Exception {
+        // Numeric fields are counted from hashes of their values rather than their terms
+        final Map<Long, String> expected = periods(collect(_index.stringFieldData("text")));
+        final InternalDistinctFacet longs = collect(_index.longFieldData("number"));
+        assertEquals(expected, periods(longs));
+        assertEquals(expectedDistinct(), longs.getDistinctCount());
+        final InternalDistinctFacet doubles = collect(_index.doubleFieldData("real"));
+        assertEquals(expected, periods(doubles));
+        assertEquals(expectedDistinct(), doubles.getDistinctCount());
+    }
+
+    private void add(final long[] datetimes, final long... values) throws Exception {
+        final Document doc = longs(longs(new Document(), "ts", datetimes), "number", values);
+        for(final long value : values) {
+            strings(doc, "text", String.valueOf(value));
+            doubles(doc, "real", value / 4.0);
+        }
+        _index.add(doc);
+        _datetimes.add(datetimes);
+        _values.add(values);
+    }
+
+    private InternalDistinctFacet collect(final IndexFieldData<?> distinctFieldData) throws Exception {
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        final DistinctCollector<?, ?> collector = new DistinctCollector(_index.longFieldData("ts"),
+                distinctFieldData, HOURLY, 1000, 0.01, false, null);
+        return (InternalDistinctFacet) _index.collect(collector, "f");
+    }
+
+    // Count every value of a doc once for each of its datetimes, the slow way: "time" -> "count distinct"
+    private Map<Long, String> expected() {
+        final Map<Long, Long> counts = new TreeMap<Long, Long>();
+        final Map<Long, Set<Long>> distinct = new TreeMap<Long, Set<Long>>();
+        for(int doc = 0; doc < _datetimes.size(); doc++) {
+            for(final long datetime : _datetimes.get(doc)) {
+                final long timestamp = HOURLY.calc(datetime);
+                for(final long value : _values.get(doc)) {
+                    final Long count = counts.get(timestamp);
+                    counts.put(timestamp, count == null ? 1 : count + 1);
+                    if(!distinct.containsKey(timestamp))
+                        distinct.put(timestamp, new HashSet<Long>());
+                    distinct.get(timestamp).add(value);
+                }
+            }
+        }
+        final Map<Long, String> periods = new TreeMap<Long, String>();
+        for(final Long timestamp : counts.keySet()) {
+            periods.put(timestamp, counts.get(timestamp) + " " + distinct.get(timestamp).size());
+        }
+        return periods;
+    }
+
+    private long expectedDistinct() {
+        final Set<Long> distinct = new HashSet<Long>();
+        for(int doc = 0; doc < _datetimes.size(); doc++) {
+            if(_datetimes.get(doc).length > 0) {
+                for(final long value : _values.get(doc)) {
+                    distinct.add(value);
+                }
+            }
+        }
+        return distinct.size();
+    }
+
+    // "time" -> "count distinct"
+    private static Map<Long, String> periods(final InternalFacet built) {
+        final InternalDistinctFacet facet = (InternalDistinctFacet) built;
+        final Map<Long, String> periods = new TreeMap<Long, String>();
+        for(final DistinctTimePeriod<NullEntry> period : facet.getTimePeriods()) {
+            periods.put(period.getTime(), period.getTotalCount() + " " + period.getDistinctCount());
+        }
+        return periods;
+    }
+
+}
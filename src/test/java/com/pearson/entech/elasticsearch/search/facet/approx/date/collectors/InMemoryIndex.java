@@ -0,0 +1,202 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleField;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Version;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.fielddata.FieldDataType;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexFieldDataService;
+import org.elasticsearch.index.fielddata.plain.DoubleArrayIndexFieldData;
+import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.search.facet.InternalFacet;
+
+/**
+ * A small Lucene index held in memory, with field data loaded the same way as on a node,
+ * for running collectors without starting one.
+ */
+public class InMemoryIndex implements Closeable {
+
+    private final RAMDirectory _directory = new RAMDirectory();
+
+    private final IndexWriter _writer;
+
+    private final IndexFieldDataService _fieldData = new IndexFieldDataService(new Index("test"));
+
+    private DirectoryReader _reader;
+
+    /**
+     * Create a new empty index.
+     *
+     * @throws IOException
+     */
+    public InMemoryIndex() throws IOException {
+        _writer = new IndexWriter(_directory, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+    }
+
+    /**
+     * Add a long field to a document, once per value.
+     *
+     * @param doc the document
+     * @param field the field name
+     * @param values the values
+     * @return the document
+     */
+    public static Document longs(final Document doc, final String field, final long... values) {
+        for(final long value : values) {
+            doc.add(new LongField(field, value, Store.NO));
+        }
+        return doc;
+    }
+
+    /**
+     * Add a double field to a document, once per value.
+     *
+     * @param doc the document
+     * @param field the field name
+     * @param values the values
+     * @return the document
+     */
+    public static Document doubles(final Document doc, final String field, final double... values) {
+        for(final double value : values) {
+            doc.add(new DoubleField(field, value, Store.NO));
+        }
+        return doc;
+    }
+
+    /**
+     * Add an untokenized string field to a document, once per value.
+     *
+     * @param doc the document
+     * @param field the field name
+     * @param values the values
+     * @return the document
+     */
+    public static Document strings(final Document doc, final String field, final String... values) {
+        for(final String value : values) {
+            doc.add(new StringField(field, value, Store.NO));
+        }
+        return doc;
+    }
+
+    /**
+     * Add a document.
+     *
+     * @param doc the document
+     * @throws IOException
+     */
+    public void add(final Document doc) throws IOException {
+        _writer.addDocument(doc);
+    }
+
+    /**
+     * Delete the documents with a given string field value.
+     *
+     * @param field the field name
+     * @param value the value
+     * @throws IOException
+     */
+    public void delete(final String field, final String value) throws IOException {
+        _writer.deleteDocuments(new Term(field, value));
+    }
+
+    /**
+     * Write the documents added so far to their own segment.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        _writer.commit();
+    }
+
+    /**
+     * Get a reader over everything added so far. The reader is opened on first use,
+     * so all documents must be added before calling this.
+     *
+     * @return the reader
+     * @throws IOException
+     */
+    public DirectoryReader reader() throws IOException {
+        if(_reader == null)
+            _reader = DirectoryReader.open(_writer, true);
+        return _reader;
+    }
+
+    /**
+     * Get the field data of a long field.
+     *
+     * @param field the field name
+     * @return the field data
+     */
+    public LongArrayIndexFieldData longFieldData(final String field) {
+        return _fieldData.getForField(new FieldMapper.Names(field), new FieldDataType("long"));
+    }
+
+    /**
+     * Get the field data of a double field.
+     *
+     * @param field the field name
+     * @return the field data
+     */
+    public DoubleArrayIndexFieldData doubleFieldData(final String field) {
+        return _fieldData.getForField(new FieldMapper.Names(field), new FieldDataType("double"));
+    }
+
+    /**
+     * Get the field data of a string field.
+     *
+     * @param field the field name
+     * @return the field data
+     */
+    public IndexFieldData<?> stringFieldData(final String field) {
+        return _fieldData.getForField(new FieldMapper.Names(field), new FieldDataType("string"));
+    }
+
+    /**
+     * Run a collector over every live document of every segment, one at a time, and build its facet.
+     * This is the baseline which the faster collection paths should agree with.
+     *
+     * @param collector the collector
+     * @param facetName the name of the facet to build
+     * @return the facet
+     * @throws IOException
+     */
+    public InternalFacet collect(final BuildableCollector collector, final String facetName) throws IOException {
+        for(final AtomicReaderContext context : reader().leaves()) {
+            collector.setNextReader(context);
+            final AtomicReader reader = context.reader();
+            final Bits live = reader.getLiveDocs();
+            for(int doc = 0; doc < reader.maxDoc(); doc++) {
+                if(live == null || live.get(doc))
+                    collector.collect(doc);
+            }
+        }
+        collector.postCollection();
+        return collector.build(facetName);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(_reader != null)
+            _reader.close();
+        _writer.close();
+        _directory.close();
+    }
+
+}
@@ -0,0 +1,175 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
+
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.doubles;
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.longs;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.elasticsearch.index.fielddata.ordinals.Ordinals;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NumericFieldHashesTest {
+
+    private static final long[] LONGS = { 0, -1, 1, -1000000, Long.MIN_VALUE, Long.MAX_VALUE, 42 };
+
+    private static final double[] DOUBLES = { 0.0, -0.5, 0.5, -1.0, 1.0, -1e300, 1e-300, 42.25 };
+
+    private InMemoryIndex _index;
+
+    @Before
+    public void setUp() throws Exception {
+        _index = new InMemoryIndex();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _index.close();
+    }
+
+    @Test
+    public void testHashesAreDistinct() throws Exception {
+        final Set<Long> hashes = new HashSet<Long>();
+        for(final long value : LONGS) {
+            assertTrue("Hash of " + value, hashes.add(NumericFieldHashes.hash(value)));
+        }
+        hashes.clear();
+        for(final double value : DOUBLES) {
+            assertTrue("Hash of " + value, hashes.add(NumericFieldHashes.hash(value)));
+        }
+        // Doubles are hashed by their bits, not their value as a long
+        assertFalse(NumericFieldHashes.hash(1.0) == NumericFieldHashes.hash(1L));
+        assertFalse(NumericFieldHashes.hash(-1.0) == NumericFieldHashes.hash(-1L));
+    }
+
+    @Test
+    public void testLongFieldsAreReadAsLongs() throws Exception {
+        // Single-valued without gaps, then multi-valued
+        for(int i = 0; i < LONGS.length; i++) {
+            _index.add(longs(new Document(), "number", LONGS[i]));
+        }
+        _index.flush();
+        for(int i = 0; i < LONGS.length; i++) {
+            _index.add(longs(new Document(), "number", LONGS[i], LONGS[(i + 3) % LONGS.length]));
+        }
+        _index.flush();
+
+        final List<Set<Long>> expected = new ArrayList<Set<Long>>();
+        for(int i = 0; i < LONGS.length; i++) {
+            expected.add(hashes(LONGS[i]));
+        }
+        for(int i = 0; i < LONGS.length; i++) {
+            expected.add(hashes(LONGS[i], LONGS[(i + 3) % LONGS.length]));
+        }
+        assertEquals(expected, read(new NumericFieldHashes(_index.longFieldData("number"))));
+    }
+
+    @Test
+    public void testDoubleFieldsAreReadAsDoubles() throws Exception {
+        // Single-valued with gaps, then multi-valued
+        for(int i = 0; i < DOUBLES.length; i++) {
+            _index.add(i % 3 == 0 ? new Document() : doubles(new Document(), "real", DOUBLES[i]));
+        }
+        _index.flush();
+        for(int i = 0; i < DOUBLES.length; i++) {
+            _index.add(doubles(new Document(), "real", DOUBLES[i], DOUBLES[(i + 3) % DOUBLES.length]));
+        }
+        _index.flush();
+
+        final List<Set<Long>> expected = new ArrayList<Set<Long>>();
+        for(int i = 0; i < DOUBLES.length; i++) {
+            expected.add(i % 3 == 0 ? new HashSet<Long>() : hashes(DOUBLES[i]));
+        }
+        for(int i = 0; i < DOUBLES.length; i++) {
+            expected.add(hashes(DOUBLES[i], DOUBLES[(i + 3) % DOUBLES.length]));
+        }
+        assertEquals(expected, read(new NumericFieldHashes(_index.doubleFieldData("real"))));
+    }
+
+    @Test
+    public void testOrdinalHashesMatchValueHashes() throws Exception {
+        for(int i = 0; i < LONGS.length; i++) {
+            _index.add(doubles(longs(new Document(), "number", LONGS[i], LONGS[(i + 1) % LONGS.length]),
+                    "real", DOUBLES[i], DOUBLES[(i + 1) % DOUBLES.length]));
+        }
+        checkOrdinals(new NumericFieldHashes(_index.longFieldData("number")));
+        checkOrdinals(new NumericFieldHashes(_index.doubleFieldData("real")));
+    }
+
+    @Test
+    public void testIsNumeric() throws Exception {
+        assertTrue(NumericFieldHashes.isNumeric(_index.longFieldData("number")));
+        assertTrue(NumericFieldHashes.isNumeric(_index.doubleFieldData("real")));
+        assertFalse(NumericFieldHashes.isNumeric(_index.stringFieldData("text")));
+    }
+
+    // The set of hashes of each doc, by doc ID
+    private List<Set<Long>> read(final NumericFieldHashes hashes) throws Exception {
+        final List<Set<Long>> docs = new ArrayList<Set<Long>>();
+        for(final AtomicReaderContext context : _index.reader().leaves()) {
+            hashes.setNextReader(context);
+            for(int doc = 0; doc < context.reader().maxDoc(); doc++) {
+                hashes.collect(doc);
+                final Set<Long> set = new HashSet<Long>();
+                for(int i = 0; i < hashes.count(); i++) {
+                    set.add(hashes.hashAt(i));
+                }
+                assertEquals(hashes.count(), set.size());
+                docs.add(set);
+            }
+        }
+        hashes.postCollection();
+        return docs;
+    }
+
+    // Each doc's ordinals hash to the same values as the doc itself
+    private void checkOrdinals(final NumericFieldHashes hashes) throws Exception {
+        final AtomicReaderContext context = _index.reader().leaves().get(0);
+        hashes.setNextReader(context);
+        final Ordinals.Docs ordinals = hashes.ordinals();
+        assertNotNull(ordinals);
+        for(int doc = 0; doc < context.reader().maxDoc(); doc++) {
+            hashes.collect(doc);
+            final Set<Long> expected = new HashSet<Long>();
+            for(int i = 0; i < hashes.count(); i++) {
+                expected.add(hashes.hashAt(i));
+            }
+            final Set<Long> actual = new HashSet<Long>();
+            final Ordinals.Docs.Iter iter = ordinals.getIter(doc);
+            for(int ord = iter.next(); ord != 0; ord = iter.next()) {
+                actual.add(hashes.hashOfOrd(ord));
+            }
+            assertEquals(expected, actual);
+        }
+        hashes.postCollection();
+        assertNull(hashes.ordinals());
+    }
+
+    private static Set<Long> hashes(final long... values) {
+        final Set<Long> hashes = new HashSet<Long>();
+        for(final long value : values) {
+            hashes.add(NumericFieldHashes.hash(value));
+        }
+        return hashes;
+    }
+
+    private static Set<Long> hashes(final double... values) {
+        final Set<Long> hashes = new HashSet<Long>();
+        for(final double value : values) {
+            hashes.add(NumericFieldHashes.hash(value));
+        }
+        return hashes;
+    }
+
+}
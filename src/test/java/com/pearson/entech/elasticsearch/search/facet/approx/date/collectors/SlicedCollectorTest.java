@@ -0,0 +1,147 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
+
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.longs;
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.strings;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.document.Document;
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.chrono.ISOChronology;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.Slice;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.TimePeriod;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.XContentEnabledList;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalSlicedFacet;
+
+public class SlicedCollectorTest {
+
+    private static final long MINUTE = 60000L;
+
+    private static final long T0 = 1000 * 60 * MINUTE;
+
+    private static final TimeZoneRounding HOURLY = TimeZoneRounding.builder(ISOChronology.getInstanceUTC().hourOfDay()).build();
+
+    private InMemoryIndex _index;
+
+    // The datetimes and slice labels of each doc, in the order added
+    private final List<long[]> _datetimes = new ArrayList<long[]>();
+
+    private final List<String[]> _slices = new ArrayList<String[]>();
+
+    @Before
+    public void setUp() throws Exception {
+        _index = new InMemoryIndex();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _index.close();
+    }
+
+    @Test
+    public void testOrdinalCountsMatch() throws Exception {
+        // Multi-valued datetimes and string slices both have ordinals
+        for(int segment = 0; segment < 3; segment++) {
+            for(int i = 0; i < 150; i++) {
+                final long datetime = T0 + (segment * 50 + i) * 11 * MINUTE;
+                add(new long[] { datetime, datetime + 75 * MINUTE }, label(i), label(i + 1));
+            }
+            _index.flush();
+        }
+        assertEquals(expected(), counts(_index.collect(collector(), "f")));
+    }
+
+    @Test
+    public void testLabelsAreCopiedOnFirstInsert() throws Exception {
+        // Single-valued datetimes have no ordinals, so each label goes through incrementSafely()
+        // under a BytesRef which is reused for the next value
+        for(int i = 0; i < 300; i++) {
+            add(new long[] { T0 + i * 3 * MINUTE }, label(i), label(i + 2), label(i + 4));
+        }
+        final Map<String, Long> counts = counts(_index.collect(collector(), "f"));
+        assertEquals(expected(), counts);
+        assertEquals(7 * (300 * 3 / 60), counts.size());
+    }
+
+    @Test
+    public void testValueCountsMatch() throws Exception {
+        // All of a doc's values are counted in each of its slices, against its first datetime
+        final Map<String, Long> expected = new TreeMap<String, Long>();
+        for(int segment = 0; segment < 2; segment++) {
+            for(int i = 0; i < 200; i++) {
+                final long datetime = T0 + i * 13 * MINUTE;
+                final long[] datetimes = segment == 0 ? new long[] { datetime, datetime + 120 * MINUTE } : new long[] { datetime };
+                final Document doc = strings(longs(new Document(), "ts", datetimes), "slice", label(i), label(i + 1));
+                final int values = i % 4;
+                for(int v = 0; v < values; v++) {
+                    strings(doc, "value", "v" + (i + v));
+                }
+                if(values > 0) {
+                    increment(expected, HOURLY.calc(datetime) + " " + label(i), values);
+                    increment(expected, HOURLY.calc(datetime) + " " + label(i + 1), values);
+                }
+                _index.add(doc);
+            }
+            _index.flush();
+        }
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        final SlicedCollector<?, ?> collector = new SlicedCollector(_index.longFieldData("ts"),
+                _index.stringFieldData("value"), _index.stringFieldData("slice"), HOURLY);
+        assertEquals(expected, counts(_index.collect(collector, "f")));
+    }
+
+    private void add(final long[] datetimes, final String... slices) throws Exception {
+        _index.add(strings(longs(new Document(), "ts", datetimes), "slice", slices));
+        _datetimes.add(datetimes);
+        _slices.add(slices);
+    }
+
+    private static String label(final int i) {
+        return "slice" + i % 7;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private SlicedCollector<?, ?> collector() {
+        return new SlicedCollector(_index.longFieldData("ts"), _index.stringFieldData("slice"), HOURLY);
+    }
+
+    // Count every slice label of a doc once for each of its datetimes, the slow way
+    private Map<String, Long> expected() {
+        final Map<String, Long> counts = new TreeMap<String, Long>();
+        for(int doc = 0; doc < _datetimes.size(); doc++) {
+            for(final long datetime : _datetimes.get(doc)) {
+                for(final String slice : _slices.get(doc)) {
+                    increment(counts, HOURLY.calc(datetime) + " " + slice, 1);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static void increment(final Map<String, Long> counts, final String key, final long count) {
+        final Long previous = counts.get(key);
+        counts.put(key, previous == null ? count : previous + count);
+    }
+
+    // "time label" -> count
+    private static Map<String, Long> counts(final InternalFacet built) {
+        final InternalSlicedFacet facet = (InternalSlicedFacet) built;
+        final Map<String, Long> counts = new TreeMap<String, Long>();
+        for(final TimePeriod<XContentEnabledList<Slice<String>>> period : facet.getTimePeriods()) {
+            for(final Slice<String> slice : period.getEntry()) {
+                counts.put(period.getTime() + " " + slice.getLabel(), slice.getTotalCount());
+            }
+        }
+        return counts;
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
+
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.longs;
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.strings;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.document.Document;
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.chrono.ISOChronology;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctSlice;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctTimePeriod;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.XContentEnabledList;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalSlicedDistinctFacet;
+
+public class SlicedDistinctCollectorTest {
+
+    private static final long HOUR = 3600000L;
+
+    private static final long T1 = 1000 * HOUR;
+
+    private static final long T2 = 1001 * HOUR;
+
+    private InMemoryIndex _index;
+
+    @Before
+    public void setUp() throws Exception {
+        _index = new InMemoryIndex();
+        // Two timestamps, two slices and three values, in the same doc
+        _index.add(values(longs(strings(new Document(), "slice", "a", "b"), "ts", T1, T2 + 5), 1, 2, 3));
+        _index.add(values(longs(strings(new Document(), "slice", "a"), "ts", T1 + 5), 3, 4));
+        _index.flush();
+        _index.add(values(longs(strings(new Document(), "slice", "b"), "ts", T2), 5));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _index.close();
+    }
+
+    @Test
+    public void testEveryValueIsCountedInEverySliceOfEveryTimestamp() throws Exception {
+        final Map<String, String> expected = new TreeMap<String, String>();
+        expected.put(T1 + " a", "5 4");
+        expected.put(T1 + " b", "3 3");
+        expected.put(T2 + " a", "3 3");
+        expected.put(T2 + " b", "4 4");
+        assertEquals(expected, slices(collect(_index.stringFieldData("text"))));
+    }
+
+    @Test
+    public void testNumericAndTextFieldsCountTheSame() throws Exception {
+        final InternalSlicedDistinctFacet text = collect(_index.stringFieldData("text"));
+        final InternalSlicedDistinctFacet numeric = collect(_index.longFieldData("number"));
+        assertEquals(slices(text), slices(numeric));
+        assertEquals(periods(text), periods(numeric));
+        assertEquals(text.getTotalCount(), numeric.getTotalCount());
+        assertEquals(text.getDistinctCount(), numeric.getDistinctCount());
+    }
+
+    private static Document values(final Document doc, final long... values) {
+        longs(doc, "number", values);
+        for(final long value : values) {
+            strings(doc, "text", String.valueOf(value));
+        }
+        return doc;
+    }
+
+    private InternalSlicedDistinctFacet collect(final IndexFieldData<?> distinctFieldData) throws Exception {
+        final TimeZoneRounding rounding = TimeZoneRounding.builder(ISOChronology.getInstanceUTC().hourOfDay()).build();
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        final SlicedDistinctCollector<?, ?, ?> collector = new SlicedDistinctCollector(_index.longFieldData("ts"),
+                _index.stringFieldData("slice"), distinctFieldData, rounding, 100, 0.01, false, null);
+        return (InternalSlicedDistinctFacet) _index.collect(collector, "f");
+    }
+
+    // "time label" -> "count distinct"
+    private static Map<String, String> slices(final InternalSlicedDistinctFacet facet) {
+        final Map<String, String> slices = new TreeMap<String, String>();
+        for(final DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>> period : facet.getTimePeriods()) {
+            for(final DistinctSlice<String> slice : period.getEntry()) {
+                slices.put(period.getTime() + " " + slice.getLabel(), slice.getTotalCount() + " " + slice.getDistinctCount());
+            }
+        }
+        return slices;
+    }
+
+    // "time" -> "count distinct"
+    private static Map<Long, String> periods(final InternalSlicedDistinctFacet facet) {
+        final Map<Long, String> periods = new TreeMap<Long, String>();
+        for(final DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>> period : facet.getTimePeriods()) {
+            periods.put(period.getTime(), period.getTotalCount() + " " + period.getDistinctCount());
+        }
+        return periods;
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
+
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.longs;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.chrono.ISOChronology;
+import org.elasticsearch.index.fielddata.AtomicFieldData;
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimestampFirstCollectorTest {
+
+    private static final long MINUTE = 60000L;
+
+    private static final long T0 = 1000 * 60 * MINUTE;
+
+    // Enough ordinals for the first segment to be rounded lazily
+    private static final int DOCS = 5000;
+
+    private InMemoryIndex _index;
+
+    @Before
+    public void setUp() throws Exception {
+        _index = new InMemoryIndex();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _index.close();
+    }
+
+    @Test
+    public void testLazyTimestampsAreRoundedOnce() throws Exception {
+        // Two datetimes per doc, so the field has ordinals
+        final List<long[]> datetimes = new ArrayList<long[]>();
+        for(int i = 0; i < DOCS; i++) {
+            datetimes.add(new long[] { T0 + i * MINUTE, T0 + i * MINUTE + 30000 });
+            _index.add(longs(new Document(), "ts", datetimes.get(i)));
+        }
+        final TimestampRecorder recorder = new TimestampRecorder(_index.longFieldData("ts"), hourly());
+        recorder.setNextReader(_index.reader().leaves().get(0));
+
+        // Jump back and forth between hours, so ordinals are rounded out of order
+        for(int i = 0; i < DOCS; i++) {
+            final int doc = i * 37 % DOCS;
+            recorder.collect(doc);
+            assertEquals(2, recorder._timestamps.size());
+            for(int j = 0; j < 2; j++) {
+                assertEquals(hourly().calc(datetimes.get(doc)[j]), recorder._timestamps.get(j).longValue());
+            }
+        }
+        // Each hour once, plus the timestamp reserved for ordinal 0
+        final int hours = (DOCS + 59) / 60;
+        assertEquals(hours + 1, recorder.timestampCount());
+    }
+
+    @Test
+    public void testLazyPointersAreEqualForEqualTimestamps() throws Exception {
+        // Two datetimes per doc, so the field has ordinals
+        for(int i = 0; i < DOCS; i++) {
+            _index.add(longs(new Document(), "ts", T0 + i * MINUTE, T0 + i * MINUTE + 30000));
+        }
+        final PointerRecorder recorder = new PointerRecorder(_index.longFieldData("ts"), hourly());
+        final AtomicReaderContext context = _index.reader().leaves().get(0);
+        recorder.setNextReader(context);
+        assertTrue(recorder.hasOrdinals());
+
+        // Jump back and forth between hours, so ordinals are rounded out of order
+        for(int i = 0; i < DOCS; i++) {
+            recorder.collect(i * 37 % DOCS);
+        }
+        final int hours = (DOCS + 59) / 60;
+        assertEquals(hours, recorder._pointers.size());
+        // Plus the pointer reserved for ordinal 0
+        assertEquals(hours + 1, recorder.timestampCount());
+    }
+
+    @Test
+    public void testSingleAndMultiValuedLoaders() throws Exception {
+        final List<long[]> datetimes = new ArrayList<long[]>();
+        // Single-valued, loaded as plain longs
+        for(int i = 0; i < 100; i++) {
+            datetimes.add(new long[] { T0 + i * 7 * MINUTE });
+        }
+        // Single-valued with gaps, which keep their ordinals
+        for(int i = 0; i < 100; i++) {
+            datetimes.add(i % 3 == 0 ? new long[0] : new long[] { T0 + i * 7 * MINUTE });
+        }
+        // Multi-valued, with gaps and single values
+        for(int i = 0; i < 100; i++) {
+            datetimes.add(i % 3 == 0 ? new long[0] : i % 3 == 1 ? new long[] { T0 + i * 7 * MINUTE }
+                    : new long[] { T0 + i * 7 * MINUTE, T0 + i * 7 * MINUTE + 90 * MINUTE, T0 + i * 7 * MINUTE + 91 * MINUTE });
+        }
+        for(int i = 0; i < datetimes.size(); i++) {
+            _index.add(longs(new Document(), "ts", datetimes.get(i)));
+            if(i % 100 == 99)
+                _index.flush();
+        }
+
+        final TimestampRecorder recorder = new TimestampRecorder(_index.longFieldData("ts"), hourly());
+        final List<AtomicReaderContext> leaves = _index.reader().leaves();
+        assertEquals(3, leaves.size());
+        for(final AtomicReaderContext context : leaves) {
+            recorder.setNextReader(context);
+            // Only the first segment is loaded without ordinals
+            assertEquals("Segment " + context.ord, context.ord != 0, recorder.hasOrdinals());
+            for(int doc = 0; doc < context.reader().maxDoc(); doc++) {
+                recorder.collect(doc);
+                final long[] expected = datetimes.get(context.docBase + doc);
+                assertEquals(expected.length, recorder._timestamps.size());
+                for(int j = 0; j < expected.length; j++) {
+                    assertEquals(hourly().calc(expected[j]), recorder._timestamps.get(j).longValue());
+                }
+            }
+        }
+    }
+
+    private static TimeZoneRounding hourly() {
+        return TimeZoneRounding.builder(ISOChronology.getInstanceUTC().hourOfDay()).build();
+    }
+
+    /**
+     * Keeps the timestamps of the last doc collected.
+     */
+    private static class TimestampRecorder extends TimestampFirstCollector<AtomicFieldData<ScriptDocValues>> {
+
+        private final List<Long> _timestamps = new ArrayList<Long>();
+
+        TimestampRecorder(final LongArrayIndexFieldData keyFieldData, final TimeZoneRounding tzRounding) {
+            super(keyFieldData, tzRounding);
+        }
+
+        @Override
+        public void collect(final int doc) throws IOException {
+            super.collect(doc);
+            _timestamps.clear();
+            while(hasNextTimestamp()) {
+                _timestamps.add(nextTimestamp());
+            }
+        }
+
+        @Override
+        public InternalFacet build(final String facetName) {
+            return null;
+        }
+
+    }
+
+    /**
+     * Checks that each timestamp only ever has one pointer.
+     */
+    private static class PointerRecorder extends TimestampFirstCollector<AtomicFieldData<ScriptDocValues>> {
+
+        private final Map<Long, Integer> _pointers = new HashMap<Long, Integer>();
+
+        PointerRecorder(final LongArrayIndexFieldData keyFieldData, final TimeZoneRounding tzRounding) {
+            super(keyFieldData, tzRounding);
+        }
+
+        @Override
+        public void collect(final int doc) throws IOException {
+            super.collect(doc);
+            while(hasNextTimestamp()) {
+                final int pointer = nextTimestampPointer();
+                final Integer previous = _pointers.put(timestampAt(pointer), pointer);
+                if(previous != null)
+                    assertEquals("Pointer for " + timestampAt(pointer), previous.intValue(), pointer);
+            }
+        }
+
+        @Override
+        public InternalFacet build(final String facetName) {
+            return null;
+        }
+
+    }
+
+}
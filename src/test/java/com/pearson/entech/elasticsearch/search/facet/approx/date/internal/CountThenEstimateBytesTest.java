@@ -0,0 +1,122 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.junit.Test;
+
+import com.pearson.entech.elasticsearch.plugin.approx.EstimatorRecycler;
+
+public class CountThenEstimateBytesTest {
+
+    @Test
+    public void testHashedExactCounting() throws Exception {
+        final CountThenEstimateBytes cteb = hashed(1000);
+        offerRange(cteb, 0, 500);
+        offerRange(cteb, 0, 500);
+        assertTrue(cteb.hashed());
+        assertFalse(cteb.tipped());
+        assertEquals(500, cteb.cardinality());
+    }
+
+    @Test
+    public void testHashedTipping() throws Exception {
+        final CountThenEstimateBytes hashed = hashed(100);
+        final CountThenEstimateBytes bytes = new CountThenEstimateBytes(100, builder());
+        offerRange(hashed, 0, 5000);
+        offerRange(bytes, 0, 5000);
+        assertTrue(hashed.tipped());
+        // Both modes feed the estimator the same hashes
+        assertEquals(bytes.cardinality(), hashed.cardinality());
+    }
+
+    @Test
+    public void testHashedStreamRoundTrip() throws Exception {
+        final CountThenEstimateBytes cteb = hashed(1000);
+        offerRange(cteb, 0, 300);
+        final BytesStreamOutput out = new BytesStreamOutput();
+        cteb.writeTo(out);
+        final CountThenEstimateBytes copy = new CountThenEstimateBytes(new BytesStreamInput(out.bytes()), 1000, builder());
+        assertTrue(copy.hashed());
+        assertEquals(300, copy.cardinality());
+        offerRange(copy, 250, 350);
+        assertEquals(350, copy.cardinality());
+    }
+
+    @Test
+    public void testRecycledCounterStartsEmpty() throws Exception {
+        final CountThenEstimateBytes first = new CountThenEstimateBytes(1000, builder());
+        offerRange(first, 0, 300);
+        first.writeTo(new BytesStreamOutput());
+        final int pooled = EstimatorRecycler.pooledHashes();
+        first.release();
+        first.release();
+        assertEquals(pooled + 1, EstimatorRecycler.pooledHashes());
+
+        final CountThenEstimateBytes second = new CountThenEstimateBytes(1000, builder());
+        assertEquals(pooled, EstimatorRecycler.pooledHashes());
+        assertEquals(0, second.cardinality());
+        offerRange(second, 250, 350);
+        assertEquals(100, second.cardinality());
+    }
+
+    @Test
+    public void testTippingRecyclesCounter() throws Exception {
+        final CountThenEstimateBytes cteb = new CountThenEstimateBytes(100, builder());
+        offerRange(cteb, 0, 100);
+        final int pooled = EstimatorRecycler.pooledHashes();
+        offerRange(cteb, 100, 101);
+        assertTrue(cteb.tipped());
+        assertEquals(pooled + 1, EstimatorRecycler.pooledHashes());
+    }
+
+    @Test
+    public void testHashedExternalizableRoundTrip() throws Exception {
+        final CountThenEstimateBytes cteb = hashed(1000);
+        offerRange(cteb, 0, 300);
+        final CountThenEstimateBytes copy = new CountThenEstimateBytes(cteb.getBytes(), 1000, builder());
+        assertTrue(copy.hashed());
+        assertEquals(300, copy.cardinality());
+    }
+
+    @Test
+    public void testMergeHashedIntoBytes() throws Exception {
+        final CountThenEstimateBytes bytes = new CountThenEstimateBytes(1000, builder());
+        offerRange(bytes, 0, 300);
+        final CountThenEstimateBytes hashed = hashed(1000);
+        offerRange(hashed, 200, 400);
+        final CountThenEstimateBytes merged = CountThenEstimateBytes.mergeEstimators(bytes, hashed);
+        assertTrue(merged.hashed());
+        assertEquals(400, merged.cardinality());
+    }
+
+    @Test
+    public void testMergeBytesIntoHashedTips() throws Exception {
+        final CountThenEstimateBytes hashed = hashed(500);
+        offerRange(hashed, 0, 300);
+        final CountThenEstimateBytes bytes = new CountThenEstimateBytes(500, builder());
+        offerRange(bytes, 300, 600);
+        final CountThenEstimateBytes merged = CountThenEstimateBytes.mergeEstimators(hashed, bytes);
+        assertTrue(merged.tipped());
+        assertEquals(600, merged.cardinality(), 2);
+    }
+
+    private CountThenEstimateBytes hashed(final int tippingPoint) {
+        return new CountThenEstimateBytes(tippingPoint, builder(), true);
+    }
+
+    private SparseHyperLogLog.Builder builder() {
+        return new SparseHyperLogLog.Builder(DistinctCountPayload.DEFAULT_RSD);
+    }
+
+    private void offerRange(final CountThenEstimateBytes cteb, final int from, final int to) {
+        for(int i = from; i < to; i++) {
+            cteb.offerBytesRef(new BytesRef("value-" + i));
+        }
+    }
+
+}
@@ -0,0 +1,332 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.longs;
+import static com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex.strings;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.DateTimeZone;
+import org.elasticsearch.common.joda.time.chrono.ISOChronology;
+import org.elasticsearch.common.lucene.docset.ContextDocIdSet;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.search.facet.FacetExecutor.Collector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pearson.entech.elasticsearch.plugin.approx.DirectPagePool;
+import com.pearson.entech.elasticsearch.plugin.approx.EstimatorRecycler;
+import com.pearson.entech.elasticsearch.plugin.approx.SegmentCollectionPool;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.InMemoryIndex;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DateFacet;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctSlice;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctTimePeriod;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.Slice;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.TimePeriod;
+
+public class DateFacetExecutorTest {
+
+    private static final long MINUTE = 60000L;
+
+    private static final long T0 = 1000 * 60 * MINUTE;
+
+    private static final TimeZoneRounding HOURLY = TimeZoneRounding.builder(ISOChronology.getInstanceUTC().hourOfDay()).build();
+
+    private static final TimeZoneRounding DAILY = TimeZoneRounding.builder(ISOChronology.getInstanceUTC().dayOfMonth()).build();
+
+    private InMemoryIndex _index;
+
+    private SegmentCollectionPool _segmentPool;
+
+    private int _docs = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        _index = new InMemoryIndex();
+        _segmentPool = new SegmentCollectionPool(ImmutableSettings.EMPTY, true, 3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _segmentPool.close();
+        _index.close();
+    }
+
+    @Test
+    public void testPostBlocksMatchCollectorMode() throws Exception {
+        // More matching docs per segment than fit in one block
+        addSegment(4000, true);
+        addSegment(3500, false);
+        for(final Kind kind : Kind.values()) {
+            final List<ContextDocIdSet> docSets = docSets(3);
+            assertEquals(kind.name(), collectorMode(executor(kind, HOURLY, null), docSets),
+                    postMode(executor(kind, HOURLY, null), docSets));
+        }
+    }
+
+    @Test
+    public void testMatchAllMatchesCollectorMode() throws Exception {
+        // Whole segments are counted from term doc frequencies, except the one with deletions
+        addSegment(2000, true);
+        addSegment(1500, false);
+        addSegment(1000, true);
+        for(int i = 0; i < 100; i++) {
+            _index.delete("id", String.valueOf(3500 + i * 7));
+        }
+        for(final Kind kind : Kind.values()) {
+            final List<ContextDocIdSet> docSets = docSets(1);
+            assertEquals(kind.name(), collectorMode(executor(kind, HOURLY, null), docSets),
+                    postMode(executor(kind, HOURLY, null), docSets));
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        // More segments than threads, so some tasks get several
+        for(int i = 0; i < 6; i++) {
+            addSegment(600 + i * 150, i % 2 == 0);
+        }
+        final DateTimeZone london = DateTimeZone.forID("Europe/London");
+        final TimeZoneRounding[] roundings = {
+                HOURLY,
+                TimeZoneRounding.builder(ISOChronology.getInstanceUTC().dayOfMonth()).preZone(london).build(),
+                FixedOffsetRounding.forField(ISOChronology.getInstanceUTC().hourOfDay(), DateTimeZone.UTC, DateTimeZone.UTC, true, 0, 0, 1.0f),
+                new ZoneTransitionRounding(ISOChronology.getInstanceUTC().dayOfMonth(), london, DateTimeZone.UTC, true, 0, 0, 1.0f),
+                // Not one we know how to share, so it's collected sequentially
+                new TimeZoneRounding() {
+                    @Override
+                    public long calc(final long utcMillis) {
+                        return HOURLY.calc(utcMillis);
+                    }
+                }
+        };
+        for(final TimeZoneRounding rounding : roundings) {
+            for(final Kind kind : Kind.values()) {
+                final List<ContextDocIdSet> docSets = docSets(2);
+                assertEquals(kind.name() + " " + rounding.getClass().getSimpleName(), postMode(executor(kind, rounding, null), docSets),
+                        postMode(executor(kind, rounding, _segmentPool), docSets));
+            }
+        }
+    }
+
+    @Test
+    public void testReleaseWithoutBuild() throws Exception {
+        addSegment(3000, true);
+        final DirectPagePool pagePool = new DirectPagePool(ImmutableSettings.EMPTY, true, 0);
+        final DateFacetExecutor executor = offHeapExecutor(pagePool, null);
+        executor.post().executePost(docSets(1));
+        assertTrue(pagePool.pagesInUse() > 0);
+
+        // As if the search failed before the facet was built
+        executor.release();
+        executor.release();
+        assertEquals(0, pagePool.pagesInUse());
+
+        // Once built, the pages belong to the facet
+        final DateFacetExecutor built = offHeapExecutor(pagePool, null);
+        built.post().executePost(docSets(1));
+        final int inUse = pagePool.pagesInUse();
+        final DateFacet<?> facet = (DateFacet<?>) built.buildFacet("f");
+        built.release();
+        assertEquals(inUse, pagePool.pagesInUse());
+        flatten(facet);
+        assertEquals(0, pagePool.pagesInUse());
+    }
+
+    @Test
+    public void testReleaseAfterTaskFailure() throws Exception {
+        for(int i = 0; i < 6; i++) {
+            addSegment(1500, i % 2 == 0);
+        }
+        final DirectPagePool pagePool = new DirectPagePool(ImmutableSettings.EMPTY, true, 0);
+        final DateFacetExecutor executor = offHeapExecutor(pagePool, _segmentPool);
+        executeBroken(executor);
+        // Every task's collector was released, not just the one which failed
+        assertEquals(0, pagePool.pagesInUse());
+        executor.release();
+        assertEquals(0, pagePool.pagesInUse());
+
+        // Exact counters go back to the recycler too
+        while(EstimatorRecycler.pooledHashes() > 0) {
+            EstimatorRecycler.popBytesRefHash();
+        }
+        executeBroken(executor(Kind.SLICED_DISTINCT, HOURLY, _segmentPool));
+        assertTrue(EstimatorRecycler.pooledHashes() > 0);
+    }
+
+    @Test
+    public void testRoundingForTask() throws Exception {
+        // Roundings from the builder and fixed offset roundings are immutable
+        final DateTimeZone london = DateTimeZone.forID("Europe/London");
+        final TimeZoneRounding[] built = {
+                HOURLY,
+                TimeZoneRounding.builder(TimeValue.timeValueMinutes(90)).build(),
+                TimeZoneRounding.builder(ISOChronology.getInstanceUTC().hourOfDay()).preZone(london).build(),
+                TimeZoneRounding.builder(ISOChronology.getInstanceUTC().dayOfMonth()).preZone(london).build(),
+                TimeZoneRounding.builder(TimeValue.timeValueMinutes(90)).preZone(london).build(),
+                TimeZoneRounding.builder(TimeValue.timeValueHours(48)).preZone(london).build(),
+                TimeZoneRounding.builder(ISOChronology.getInstanceUTC().hourOfDay()).factor(2.0f).build(),
+                TimeZoneRounding.builder(ISOChronology.getInstanceUTC().hourOfDay()).preOffset(MINUTE).build()
+        };
+        for(final TimeZoneRounding rounding : built) {
+            assertSame(rounding.getClass().getName(), rounding, DateFacetExecutor.roundingForTask(rounding));
+        }
+        final TimeZoneRounding fixed = FixedOffsetRounding.forField(ISOChronology.getInstanceUTC().hourOfDay(),
+                DateTimeZone.UTC, DateTimeZone.UTC, true, 0, 0, 1.0f);
+        assertSame(fixed, DateFacetExecutor.roundingForTask(fixed));
+        // Zone transition roundings fill a table as they go
+        final TimeZoneRounding transitions = new ZoneTransitionRounding(ISOChronology.getInstanceUTC().dayOfMonth(),
+                london, DateTimeZone.UTC, true, 0, 0, 1.0f);
+        final TimeZoneRounding copy = DateFacetExecutor.roundingForTask(transitions);
+        assertNotSame(transitions, copy);
+        assertEquals(transitions.calc(T0), copy.calc(T0));
+        // Anything else might not be thread-safe
+        assertNull(DateFacetExecutor.roundingForTask(new TimeZoneRounding() {
+            @Override
+            public long calc(final long utcMillis) {
+                return utcMillis;
+            }
+        }));
+    }
+
+    /**
+     * The kinds of facet, by which optional fields they use.
+     */
+    private enum Kind {
+        COUNTING, VALUE, DISTINCT, SLICED, SLICED_DISTINCT
+    }
+
+    /**
+     * Add a segment of docs, each with one or two datetimes, a slice label and a couple of values.
+     *
+     * @param docs the number of docs
+     * @param multiValued true to give each doc two datetimes, so the field has ordinals
+     */
+    private void addSegment(final int docs, final boolean multiValued) throws Exception {
+        for(int i = 0; i < docs; i++) {
+            final long datetime = T0 + (_docs + i) * 3 * MINUTE;
+            final Document doc = multiValued
+                    ? longs(new Document(), "ts", datetime, datetime + 100 * MINUTE)
+                    : longs(new Document(), "ts", datetime);
+            strings(doc, "id", String.valueOf(_docs + i));
+            strings(doc, "slice", "slice" + i % 5);
+            strings(doc, "value", "v" + i % 13, "v" + (i % 13 + 1));
+            _index.add(doc);
+        }
+        _docs += docs;
+        _index.flush();
+    }
+
+    private DateFacetExecutor executor(final Kind kind, final TimeZoneRounding rounding, final SegmentCollectionPool pool) {
+        final IndexFieldData<?> value = kind == Kind.VALUE ? _index.stringFieldData("value") : null;
+        final IndexFieldData<?> distinct = kind == Kind.DISTINCT || kind == Kind.SLICED_DISTINCT ? _index.stringFieldData("value") : null;
+        final IndexFieldData<?> slice = kind == Kind.SLICED || kind == Kind.SLICED_DISTINCT ? _index.stringFieldData("slice") : null;
+        return new DateFacetExecutor(_index.longFieldData("ts"), value, distinct, slice, rounding,
+                1000, 0.01, false, null, null, null, pool);
+    }
+
+    // Collect in parallel, where the last segment can't be read
+    private void executeBroken(final DateFacetExecutor executor) throws Exception {
+        final List<ContextDocIdSet> docSets = docSets(1);
+        final ContextDocIdSet last = docSets.get(docSets.size() - 1);
+        docSets.set(docSets.size() - 1, new ContextDocIdSet(last.context, new DocIdSet() {
+            @Override
+            public DocIdSetIterator iterator() {
+                throw new IllegalStateException("Broken segment");
+            }
+        }));
+        try {
+            executor.post().executePost(docSets);
+            fail();
+        } catch(final IllegalStateException e) {
+            assertEquals("Broken segment", e.getMessage());
+        }
+    }
+
+    // Daily sliced distinct counts of IDs, which go dense straight away at this precision
+    private DateFacetExecutor offHeapExecutor(final DirectPagePool pagePool, final SegmentCollectionPool pool) {
+        return new DateFacetExecutor(_index.longFieldData("ts"), null, _index.stringFieldData("id"), _index.stringFieldData("slice"),
+                DAILY, 0, 0.1, false, pagePool, null, null, pool);
+    }
+
+    /**
+     * Get a doc set for every segment, matching every nth live doc.
+     *
+     * @param n the step between matching docs, or 1 to match them all
+     * @return the doc sets
+     */
+    private List<ContextDocIdSet> docSets(final int n) throws Exception {
+        final List<ContextDocIdSet> docSets = new ArrayList<ContextDocIdSet>();
+        for(final AtomicReaderContext context : _index.reader().leaves()) {
+            final int maxDoc = context.reader().maxDoc();
+            final Bits live = context.reader().getLiveDocs();
+            final FixedBitSet bits = new FixedBitSet(maxDoc);
+            for(int doc = 0; doc < maxDoc; doc += n) {
+                if(live == null || live.get(doc))
+                    bits.set(doc);
+            }
+            docSets.add(new ContextDocIdSet(context, bits));
+        }
+        return docSets;
+    }
+
+    // The baseline: one doc at a time, as in collector mode
+    private static Map<String, String> collectorMode(final DateFacetExecutor executor, final List<ContextDocIdSet> docSets) throws Exception {
+        final Collector collector = executor.collector();
+        for(final ContextDocIdSet docSet : docSets) {
+            collector.setNextReader(docSet.context);
+            final DocIdSetIterator iter = docSet.docSet.iterator();
+            for(int doc = iter.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iter.nextDoc()) {
+                collector.collect(doc);
+            }
+        }
+        collector.postCollection();
+        return flatten((DateFacet<?>) executor.buildFacet("f"));
+    }
+
+    private static Map<String, String> postMode(final DateFacetExecutor executor, final List<ContextDocIdSet> docSets) throws Exception {
+        executor.post().executePost(docSets);
+        return flatten((DateFacet<?>) executor.buildFacet("f"));
+    }
+
+    // "time" or "time label" -> "count" or "count distinct", for any kind of date facet
+    private static Map<String, String> flatten(final DateFacet<?> facet) {
+        final Map<String, String> flat = new TreeMap<String, String>();
+        for(final Object item : facet.getTimePeriods()) {
+            final TimePeriod<?> period = (TimePeriod<?>) item;
+            flat.put(String.valueOf(period.getTime()), counts(period.getTotalCount(),
+                    period instanceof DistinctTimePeriod ? ((DistinctTimePeriod<?>) period).getDistinctCount() : -1));
+            if(period.getEntry() instanceof List) {
+                for(final Object entry : (List<?>) period.getEntry()) {
+                    final Slice<?> slice = (Slice<?>) entry;
+                    flat.put(period.getTime() + " " + slice.getLabel(), counts(slice.getTotalCount(),
+                            slice instanceof DistinctSlice ? ((DistinctSlice<?>) slice).getDistinctCount() : -1));
+                }
+            }
+        }
+        return flat;
+    }
+
+    private static String counts(final long count, final long distinct) {
+        return distinct < 0 ? String.valueOf(count) : count + " " + distinct;
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.DateTimeField;
+import org.elasticsearch.common.joda.time.DateTimeZone;
+import org.elasticsearch.common.joda.time.chrono.ISOChronology;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+public class FixedOffsetRoundingTest {
+
+    private static final ISOChronology UTC = ISOChronology.getInstanceUTC();
+
+    private static final DateTimeZone[] ZONES = {
+            DateTimeZone.UTC,
+            DateTimeZone.forOffsetHours(5),
+            DateTimeZone.forOffsetHoursMinutes(-3, 30),
+            DateTimeZone.forOffsetHoursMinutes(5, 45)
+    };
+
+    private final Random _random = new Random(0);
+
+    @Test
+    public void testFieldsMatchTimeZoneRounding() throws Exception {
+        final DateTimeField[] fields = { UTC.secondOfMinute(), UTC.minuteOfHour(), UTC.hourOfDay(), UTC.dayOfMonth() };
+        for(final DateTimeField field : fields) {
+            for(final DateTimeZone preZone : ZONES) {
+                for(final DateTimeZone postZone : ZONES) {
+                    for(final boolean adjust : new boolean[] { false, true }) {
+                        final TimeZoneRounding expected = TimeZoneRounding.builder(field)
+                                .preZone(preZone).postZone(postZone).preZoneAdjustLargeInterval(adjust).build();
+                        final TimeZoneRounding actual = FixedOffsetRounding.forField(field, preZone, postZone, adjust, 0, 0, 1.0f);
+                        assertNotNull(actual);
+                        assertSameRounding(field + " " + preZone + " " + postZone + " " + adjust, expected, actual);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIntervalsMatchTimeZoneRounding() throws Exception {
+        final long[] intervals = { 1000, 90 * 1000, 3600 * 1000, 12 * 3600 * 1000, 86400 * 1000, 7 * 86400 * 1000L };
+        for(final long interval : intervals) {
+            for(final DateTimeZone preZone : ZONES) {
+                for(final DateTimeZone postZone : ZONES) {
+                    for(final boolean adjust : new boolean[] { false, true }) {
+                        final TimeZoneRounding expected = TimeZoneRounding.builder(TimeValue.timeValueMillis(interval))
+                                .preZone(preZone).postZone(postZone).preZoneAdjustLargeInterval(adjust).build();
+                        final TimeZoneRounding actual = FixedOffsetRounding.forInterval(interval, preZone, postZone, adjust, 0, 0, 1.0f);
+                        assertNotNull(actual);
+                        assertSameRounding(interval + " " + preZone + " " + postZone + " " + adjust, expected, actual);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOffsetsAndFactorMatchTimeZoneRounding() throws Exception {
+        final DateTimeZone zone = DateTimeZone.forOffsetHours(-7);
+        final TimeZoneRounding expected = TimeZoneRounding.builder(UTC.hourOfDay())
+                .preZone(zone).postZone(zone).preOffset(-15 * 60 * 1000).postOffset(3000).factor(1000.0f).build();
+        final TimeZoneRounding actual = FixedOffsetRounding.forField(UTC.hourOfDay(), zone, zone, false, -15 * 60 * 1000, 3000, 1000.0f);
+        for(int i = 0; i < 10000; i++) {
+            // Seconds rather than millis, so that the factor doesn't overflow
+            final long seconds = _random.nextInt();
+            assertEquals(Long.toString(seconds), expected.calc(seconds), actual.calc(seconds));
+        }
+    }
+
+    @Test
+    public void testUnsupportedRoundings() throws Exception {
+        final DateTimeZone london = DateTimeZone.forID("Europe/London");
+        assertNull(FixedOffsetRounding.forField(UTC.hourOfDay(), london, DateTimeZone.UTC, false, 0, 0, 1.0f));
+        assertNull(FixedOffsetRounding.forField(UTC.hourOfDay(), DateTimeZone.UTC, london, false, 0, 0, 1.0f));
+        assertNull(FixedOffsetRounding.forInterval(3600 * 1000, london, london, false, 0, 0, 1.0f));
+        assertNull(FixedOffsetRounding.forField(UTC.weekOfWeekyear(), DateTimeZone.UTC, DateTimeZone.UTC, false, 0, 0, 1.0f));
+        assertNull(FixedOffsetRounding.forField(UTC.monthOfYear(), DateTimeZone.UTC, DateTimeZone.UTC, false, 0, 0, 1.0f));
+        assertNull(FixedOffsetRounding.forField(UTC.year(), DateTimeZone.UTC, DateTimeZone.UTC, false, 0, 0, 1.0f));
+    }
+
+    private void assertSameRounding(final String message, final TimeZoneRounding expected, final TimeZoneRounding actual) {
+        final long[] edges = { 0, -1, 1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        for(final long edge : edges) {
+            assertEquals(message + " at " + edge, expected.calc(edge), actual.calc(edge));
+        }
+        for(int i = 0; i < 2000; i++) {
+            // Roughly 1900 to 2040
+            final long millis = (_random.nextLong() % 2200000000000L);
+            assertEquals(message + " at " + millis, expected.calc(millis), actual.calc(millis));
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class NarrowIntArrayTest {
+
+    @Test
+    public void testSmallValuesStayInBytes() throws Exception {
+        final NarrowIntArray array = new NarrowIntArray(1);
+        for(int i = 0; i < 1000; i++) {
+            array.add(i % 256);
+        }
+        assertEquals(1, array.width());
+        assertEquals(1000, array.size());
+        for(int i = 0; i < 1000; i++) {
+            assertEquals(i % 256, array.get(i));
+        }
+    }
+
+    @Test
+    public void testAddWidensAndKeepsValues() throws Exception {
+        final NarrowIntArray array = new NarrowIntArray(4);
+        array.add(200);
+        array.add(300);
+        assertEquals(2, array.width());
+        array.add(65535);
+        assertEquals(2, array.width());
+        array.add(70000);
+        assertEquals(4, array.width());
+        assertEquals(200, array.get(0));
+        assertEquals(300, array.get(1));
+        assertEquals(65535, array.get(2));
+        assertEquals(70000, array.get(3));
+    }
+
+    @Test
+    public void testSetWidensAndKeepsValues() throws Exception {
+        final NarrowIntArray array = new NarrowIntArray(4);
+        for(int i = 0; i < 10; i++) {
+            array.add(i);
+        }
+        array.set(3, Integer.MAX_VALUE);
+        assertEquals(4, array.width());
+        assertEquals(Integer.MAX_VALUE, array.get(3));
+        assertEquals(9, array.get(9));
+        array.set(3, 3);
+        assertEquals(3, array.get(3));
+    }
+
+}
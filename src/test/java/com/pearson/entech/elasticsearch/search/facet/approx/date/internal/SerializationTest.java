@@ -1,5 +1,6 @@
 package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
 
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -15,6 +16,7 @@ import org.elasticsearch.common.trove.ExtTHashMap;
 import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
 import org.elasticsearch.common.trove.map.hash.TLongIntHashMap;
 import org.elasticsearch.common.trove.map.hash.TObjectIntHashMap;
+import org.elasticsearch.search.facet.Facet;
 import org.elasticsearch.search.facet.InternalFacet;
 import org.junit.Test;
 
@@ -107,6 +109,35 @@ public class SerializationTest {
         compareDistinctCounts(expectedCounts, expectedCardinalities, receivedCounts);
     }
 
+    @Test
+    public void testReducingSerializedDistinctFacets() throws Exception {
+        final InternalDistinctFacet[] received = new InternalDistinctFacet[3];
+        for(int shard = 0; shard < received.length; shard++) {
+            // Period 1 is exact on every shard; period 2 is approximate on the first one only
+            final DistinctCountPayload payload1 = new DistinctCountPayload(999);
+            payload1.update(new BytesRef("homer"));
+            payload1.update(new BytesRef("shard" + shard));
+            final DistinctCountPayload payload2 = new DistinctCountPayload(shard == 0 ? 0 : 999);
+            payload2.update(new BytesRef("bart"));
+            final ExtTLongObjectHashMap<DistinctCountPayload> counts = CacheRecycler.popLongObjectMap();
+            counts.put(1, payload1);
+            counts.put(2, payload2);
+            received[shard] = new InternalDistinctFacet();
+            serializeAndDeserialize(new InternalDistinctFacet("bar", counts), received[shard]);
+        }
+        final InternalDistinctFacet reduced = (InternalDistinctFacet) received[0].reduce(
+                newArrayList((Facet[]) received));
+        final Map<Long, Integer> expectedCounts = newHashMap();
+        expectedCounts.put(1l, 6);
+        expectedCounts.put(2l, 3);
+        final Map<Long, Integer> expectedCardinalities = newHashMap();
+        expectedCardinalities.put(1l, 4);
+        expectedCardinalities.put(2l, 1);
+        compareDistinctCounts(expectedCounts, expectedCardinalities,
+                new ExtTLongObjectHashMap<DistinctCountPayload>(reduced.peekCounts()));
+        assertTrue(reduced.peekCounts().get(2).getCardinality().tipped());
+    }
+
     private void compareDistinctCounts(final Map<Long, Integer> expectedCounts,
             final Map<Long, Integer> expectedCardinalities, final ExtTLongObjectHashMap<DistinctCountPayload> receivedCounts) {
         assertEquals(expectedCounts.size(), receivedCounts.size());
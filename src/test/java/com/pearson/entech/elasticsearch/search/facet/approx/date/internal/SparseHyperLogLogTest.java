@@ -0,0 +1,400 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.clearspring.analytics.stream.cardinality.HyperLogLog;
+import com.pearson.entech.elasticsearch.plugin.approx.DirectPagePool;
+import com.pearson.entech.elasticsearch.plugin.approx.EstimatorRecycler;
+import com.pearson.entech.elasticsearch.plugin.approx.MurmurHash3;
+
+public class SparseHyperLogLogTest {
+
+    @Test
+    public void testSparseCountsAreNearlyExact() throws Exception {
+        final SparseHyperLogLog hll = new SparseHyperLogLog(14);
+        offerRange(hll, 0, 1000);
+        assertTrue(hll.isSparse());
+        assertEquals(1000, hll.cardinality(), 2);
+    }
+
+    @Test
+    public void testSparseIsSmallerThanDense() throws Exception {
+        final SparseHyperLogLog hll = new SparseHyperLogLog(17);
+        offerRange(hll, 0, 2000);
+        assertTrue(hll.isSparse());
+        assertTrue(hll.sizeof() < new SparseHyperLogLog.Builder(0.0025).sizeof() / 4);
+    }
+
+    @Test
+    public void testCompressedSparseCoversMoreThanOneEntryPerWord() throws Exception {
+        // 3500 entries would take more memory than the 2731 dense words as plain ints
+        final SparseHyperLogLog hll = new SparseHyperLogLog(14);
+        offerRange(hll, 0, 3500);
+        assertTrue(hll.isSparse());
+        assertEquals(3500, hll.cardinality(), 5);
+        assertTrue(hll.sizeof() <= SparseHyperLogLog.Builder.withPrecision(14).sizeof() * 5 / 4);
+    }
+
+    @Test
+    public void testSparseKeepsGrowingAfterStreaming() throws Exception {
+        final SparseHyperLogLog hll = new SparseHyperLogLog(14);
+        offerRange(hll, 0, 1000);
+        final BytesStreamOutput out = new BytesStreamOutput();
+        hll.writeTo(out);
+        final SparseHyperLogLog copy = SparseHyperLogLog.Builder.build(new BytesStreamInput(out.bytes()));
+        offerRange(hll, 500, 2500);
+        offerRange(copy, 500, 2500);
+        assertTrue(copy.isSparse());
+        assertEquals(hll.cardinality(), copy.cardinality());
+        assertEquals(2500, copy.cardinality(), 4);
+    }
+
+    @Test
+    public void testDuplicatesAreIgnored() throws Exception {
+        final SparseHyperLogLog hll = new SparseHyperLogLog(14);
+        for(int i = 0; i < 10; i++) {
+            offerRange(hll, 0, 500);
+        }
+        assertEquals(500, hll.cardinality(), 1);
+    }
+
+    @Test
+    public void testDensifiesAndStaysAccurate() throws Exception {
+        final SparseHyperLogLog hll = new SparseHyperLogLog(14);
+        offerRange(hll, 0, 200000);
+        assertFalse(hll.isSparse());
+        assertWithinError(200000, hll.cardinality(), 14);
+    }
+
+    @Test
+    public void testDefaultPrecisionIsWithinOnePercent() throws Exception {
+        final SparseHyperLogLog hll = new SparseHyperLogLog.Builder(0.0025).build();
+        offerRange(hll, 0, 1000000);
+        assertEquals(1000000, hll.cardinality(), 10000);
+    }
+
+    @Test
+    public void testMergeSparseAndDense() throws Exception {
+        final SparseHyperLogLog sparse = new SparseHyperLogLog(14);
+        offerRange(sparse, 0, 1000);
+        final SparseHyperLogLog dense = new SparseHyperLogLog(14);
+        offerRange(dense, 500, 100000);
+        final SparseHyperLogLog merged = (SparseHyperLogLog) sparse.merge(dense);
+        assertWithinError(100000, merged.cardinality(), 14);
+        // Inputs are unchanged
+        assertEquals(1000, sparse.cardinality(), 2);
+
+        sparse.addAll(dense);
+        assertEquals(merged.cardinality(), sparse.cardinality());
+    }
+
+    @Test
+    public void testMergeTwoSparse() throws Exception {
+        final SparseHyperLogLog hll1 = new SparseHyperLogLog(14);
+        offerRange(hll1, 0, 1000);
+        final SparseHyperLogLog hll2 = new SparseHyperLogLog(14);
+        offerRange(hll2, 500, 1500);
+        hll1.addAll(hll2);
+        assertEquals(1500, hll1.cardinality(), 3);
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testCannotMergeDifferentPrecisions() throws Exception {
+        new SparseHyperLogLog(14).addAll(new SparseHyperLogLog(15));
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testCannotMergeDifferentTypes() throws Exception {
+        new SparseHyperLogLog(14).merge(new HyperLogLog(14));
+    }
+
+    @Test
+    public void testSerializeSparse() throws Exception {
+        final SparseHyperLogLog hll = new SparseHyperLogLog(14);
+        offerRange(hll, 0, 1000);
+        final SparseHyperLogLog copy = SparseHyperLogLog.Builder.build(hll.getBytes());
+        assertTrue(copy.isSparse());
+        assertEquals(hll.cardinality(), copy.cardinality());
+    }
+
+    @Test
+    public void testSerializeDense() throws Exception {
+        final SparseHyperLogLog hll = new SparseHyperLogLog(14);
+        offerRange(hll, 0, 50000);
+        final SparseHyperLogLog copy = SparseHyperLogLog.Builder.build(hll.getBytes());
+        assertFalse(copy.isSparse());
+        assertEquals(hll.cardinality(), copy.cardinality());
+    }
+
+    @Test
+    public void testTippedPayloadRoundTrip() throws Exception {
+        final CountThenEstimateBytes cteb = new CountThenEstimateBytes(10, new SparseHyperLogLog.Builder(0.01));
+        for(int i = 0; i < 100; i++) {
+            cteb.offerBytesRef(new BytesRef(Integer.toString(i)));
+        }
+        assertTrue(cteb.tipped());
+        final CountThenEstimateBytes copy = new CountThenEstimateBytes(cteb.getBytes(), 10, new SparseHyperLogLog.Builder(0.01));
+        assertTrue(copy.tipped());
+        assertEquals(100, copy.cardinality());
+    }
+
+    @Test
+    public void testStreamSparse() throws Exception {
+        final SparseHyperLogLog hll = new SparseHyperLogLog(14);
+        offerRange(hll, 0, 1000);
+        final BytesStreamOutput out = new BytesStreamOutput();
+        hll.writeTo(out);
+        final SparseHyperLogLog copy = SparseHyperLogLog.Builder.build(new BytesStreamInput(out.bytes()));
+        assertTrue(copy.isSparse());
+        assertEquals(hll.cardinality(), copy.cardinality());
+        // Delta encoding should beat four bytes per entry
+        assertTrue(out.bytes().length() < hll.getBytes().length);
+    }
+
+    @Test
+    public void testStreamDense() throws Exception {
+        final SparseHyperLogLog hll = new SparseHyperLogLog(14);
+        offerRange(hll, 0, 50000);
+        final BytesStreamOutput out = new BytesStreamOutput();
+        hll.writeTo(out);
+        final SparseHyperLogLog copy = SparseHyperLogLog.Builder.build(new BytesStreamInput(out.bytes()));
+        assertFalse(copy.isSparse());
+        assertEquals(hll.cardinality(), copy.cardinality());
+    }
+
+    @Test
+    public void testStreamUntippedPayload() throws Exception {
+        final CountThenEstimateBytes cteb = new CountThenEstimateBytes(1000, new SparseHyperLogLog.Builder(0.01));
+        for(int i = 0; i < 100; i++) {
+            cteb.offerBytesRef(new BytesRef(Integer.toString(i)));
+        }
+        final BytesStreamOutput out = new BytesStreamOutput();
+        cteb.writeTo(out);
+        final CountThenEstimateBytes copy = new CountThenEstimateBytes(
+                new BytesStreamInput(out.bytes()), 1000, new SparseHyperLogLog.Builder(0.01));
+        assertFalse(copy.tipped());
+        assertEquals(100, copy.cardinality());
+        // Still accepts new values
+        copy.offerBytesRef(new BytesRef("new"));
+        assertEquals(101, copy.cardinality());
+    }
+
+    @Test
+    public void testStreamTipsOnLowerThreshold() throws Exception {
+        final CountThenEstimateBytes cteb = new CountThenEstimateBytes(1000, new SparseHyperLogLog.Builder(0.01));
+        for(int i = 0; i < 100; i++) {
+            cteb.offerBytesRef(new BytesRef(Integer.toString(i)));
+        }
+        final BytesStreamOutput out = new BytesStreamOutput();
+        cteb.writeTo(out);
+        final CountThenEstimateBytes copy = new CountThenEstimateBytes(
+                new BytesStreamInput(out.bytes()), 10, new SparseHyperLogLog.Builder(0.01));
+        assertTrue(copy.tipped());
+        assertEquals(100, copy.cardinality());
+    }
+
+    @Test
+    public void testPayloadPrecisionSurvivesSerialization() throws Exception {
+        final DistinctCountPayload payload = new DistinctCountPayload(0, 0.05);
+        for(int i = 0; i < 5000; i++) {
+            payload.update(new BytesRef(Integer.toString(i)));
+        }
+        final BytesStreamOutput out = new BytesStreamOutput();
+        payload.writeTo(out);
+        final DistinctCountPayload copy = new DistinctCountPayload(new BytesStreamInput(out.bytes()));
+        assertEquals(SparseHyperLogLog.precisionFor(0.05), copy.getPrecision());
+        assertEquals(payload.getCardinality().cardinality(), copy.getCardinality().cardinality());
+        assertTrue(out.bytes().length() < new SparseHyperLogLog.Builder(DistinctCountPayload.DEFAULT_RSD).sizeof() / 10);
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testCannotMergePayloadsOfDifferentPrecisions() throws Exception {
+        new DistinctCountPayload(0, 0.05).merge(new DistinctCountPayload(0, 0.01));
+    }
+
+    @Test
+    public void testMergeFromStreamMatchesInMemoryMerge() throws Exception {
+        // Sparse into sparse, dense into sparse, sparse into dense, dense into dense
+        final int[][] sizes = { { 100, 200 }, { 100, 100000 }, { 100000, 100 }, { 100000, 200000 } };
+        for(final int[] size : sizes) {
+            final SparseHyperLogLog target = new SparseHyperLogLog(14);
+            offerRange(target, 0, size[0]);
+            final SparseHyperLogLog source = new SparseHyperLogLog(14);
+            offerRange(source, size[0] / 2, size[0] / 2 + size[1]);
+            final SparseHyperLogLog expected = (SparseHyperLogLog) target.merge(source);
+
+            final BytesStreamOutput out = new BytesStreamOutput();
+            source.writeTo(out);
+            target.addAll(new BytesStreamInput(out.bytes()));
+            assertEquals(expected.isSparse(), target.isSparse());
+            assertEquals(expected.cardinality(), target.cardinality());
+        }
+    }
+
+    @Test
+    public void testMergePayloadFromStream() throws Exception {
+        final DistinctCountPayload exact = new DistinctCountPayload(1000, 0.01);
+        final DistinctCountPayload tipped = new DistinctCountPayload(1000, 0.01);
+        for(int i = 0; i < 500; i++) {
+            exact.update(new BytesRef(Integer.toString(i)));
+        }
+        for(int i = 0; i < 5000; i++) {
+            tipped.update(new BytesRef(Integer.toString(i)));
+        }
+        final BytesStreamOutput out = new BytesStreamOutput();
+        tipped.writeTo(out);
+        exact.mergeFrom(new BytesStreamInput(out.bytes()));
+        assertTrue(exact.getCardinality().tipped());
+        assertEquals(5500, exact.getCount());
+        assertEquals(tipped.getCardinality().cardinality(), exact.getCardinality().cardinality());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testCannotMergeStreamedPayloadOfDifferentPrecision() throws Exception {
+        final BytesStreamOutput out = new BytesStreamOutput();
+        new DistinctCountPayload(0, 0.01).writeTo(out);
+        new DistinctCountPayload(0, 0.05).mergeFrom(new BytesStreamInput(out.bytes()));
+    }
+
+    @Test
+    public void testArenaBackedEstimatorsMatchStandalone() throws Exception {
+        final RegisterArena arena = new RegisterArena(14);
+        final SparseHyperLogLog[] inArena = new SparseHyperLogLog[20];
+        final SparseHyperLogLog[] standalone = new SparseHyperLogLog[inArena.length];
+        for(int i = 0; i < inArena.length; i++) {
+            inArena[i] = SparseHyperLogLog.Builder.withArena(arena).build();
+            standalone[i] = new SparseHyperLogLog(14);
+        }
+        // Interleave the offers so that neighbouring slots are written alternately
+        for(int round = 0; round < 10; round++) {
+            for(int i = 0; i < inArena.length; i++) {
+                offerRange(inArena[i], i * 100000 + round * 5000, i * 100000 + (round + 1) * 5000);
+                offerRange(standalone[i], i * 100000 + round * 5000, i * 100000 + (round + 1) * 5000);
+            }
+        }
+        assertEquals(inArena.length, arena.size());
+        for(int i = 0; i < inArena.length; i++) {
+            assertFalse(inArena[i].isSparse());
+            assertEquals(standalone[i].cardinality(), inArena[i].cardinality());
+        }
+    }
+
+    @Test
+    public void testArenaOnlyAllocatesWhenEstimatorsGoDense() throws Exception {
+        final RegisterArena arena = new RegisterArena(14);
+        final SparseHyperLogLog sparse = SparseHyperLogLog.Builder.withArena(arena).build();
+        offerRange(sparse, 0, 100);
+        assertTrue(sparse.isSparse());
+        assertEquals(0, arena.size());
+        assertEquals(0, arena.sizeInBytes());
+
+        final SparseHyperLogLog dense = SparseHyperLogLog.Builder.withArena(arena).build();
+        offerRange(dense, 0, 100000);
+        assertEquals(1, arena.size());
+        // The first page only has room for one slot
+        assertEquals(arena.getSlotSize() * 4, arena.sizeInBytes());
+    }
+
+    @Test
+    public void testArenaRecyclesFullSizePages() throws Exception {
+        // At this precision, a full page holds 6 slots, after pages of 1, 2 and 4
+        final RegisterArena arena = new RegisterArena(18);
+        final SparseHyperLogLog expected = new SparseHyperLogLog(18);
+        offerRange(expected, 0, 100000);
+        for(int i = 0; i < 8; i++) {
+            final SparseHyperLogLog dense = SparseHyperLogLog.Builder.withArena(arena).build();
+            offerRange(dense, 0, 100000);
+            assertEquals(expected.cardinality(), dense.cardinality());
+        }
+        final int pooled = EstimatorRecycler.pooledPages();
+        arena.release();
+        arena.release();
+        assertEquals(pooled + 1, EstimatorRecycler.pooledPages());
+
+        // A recycled page comes back zeroed
+        final RegisterArena reused = new RegisterArena(18);
+        final SparseHyperLogLog[] estimators = new SparseHyperLogLog[8];
+        for(int i = 0; i < 8; i++) {
+            estimators[i] = SparseHyperLogLog.Builder.withArena(reused).build();
+            offerRange(estimators[i], i * 100000, (i + 1) * 100000);
+            estimators[i].offerHashed(0L);
+        }
+        assertEquals(pooled, EstimatorRecycler.pooledPages());
+        final SparseHyperLogLog last = new SparseHyperLogLog(18);
+        offerRange(last, 700000, 800000);
+        assertFalse(estimators[7].isSparse());
+        last.offerHashed(0L);
+        assertEquals(last.cardinality(), estimators[7].cardinality());
+        reused.release();
+    }
+
+    @Test
+    public void testArenaBackedEstimatorSerialization() throws Exception {
+        final RegisterArena arena = new RegisterArena(14);
+        final SparseHyperLogLog first = SparseHyperLogLog.Builder.withArena(arena).build();
+        final SparseHyperLogLog second = SparseHyperLogLog.Builder.withArena(arena).build();
+        offerRange(first, 0, 100000);
+        offerRange(second, 100000, 150000);
+
+        final BytesStreamOutput out = new BytesStreamOutput();
+        second.writeTo(out);
+        final SparseHyperLogLog copy = SparseHyperLogLog.Builder.build(new BytesStreamInput(out.bytes()));
+        assertEquals(second.cardinality(), copy.cardinality());
+        assertEquals(second.cardinality(), SparseHyperLogLog.Builder.build(second.getBytes()).cardinality());
+    }
+
+    @Test
+    public void testOffHeapArena() throws Exception {
+        final DirectPagePool pool = new DirectPagePool(ImmutableSettings.EMPTY, true, 4);
+        final RegisterArena arena = new RegisterArena(14, pool);
+        final SparseHyperLogLog offHeap = SparseHyperLogLog.Builder.withArena(arena).build();
+        final SparseHyperLogLog onHeap = new SparseHyperLogLog(14);
+        offerRange(offHeap, 0, 100000);
+        offerRange(onHeap, 0, 100000);
+        assertTrue(arena.isDirect());
+        assertEquals(1, pool.pagesInUse());
+        assertEquals(onHeap.cardinality(), offHeap.cardinality());
+
+        final BytesStreamOutput out = new BytesStreamOutput();
+        offHeap.writeTo(out);
+        assertEquals(onHeap.cardinality(), SparseHyperLogLog.Builder.build(new BytesStreamInput(out.bytes())).cardinality());
+
+        arena.release();
+        arena.release();
+        assertEquals(0, pool.pagesInUse());
+        assertEquals(1, pool.pagesPooled());
+
+        // A reused page must come back zeroed
+        final RegisterArena reused = new RegisterArena(14, pool);
+        final SparseHyperLogLog small = SparseHyperLogLog.Builder.withArena(reused).build();
+        final SparseHyperLogLog expected = new SparseHyperLogLog(14);
+        offerRange(small, 0, 5000);
+        offerRange(expected, 0, 5000);
+        assertEquals(0, pool.pagesPooled());
+        assertFalse(small.isSparse());
+        assertEquals(expected.cardinality(), small.cardinality());
+        reused.release();
+    }
+
+    private void offerRange(final SparseHyperLogLog hll, final int from, final int to) {
+        for(int i = from; i < to; i++) {
+            hll.offerHashed(MurmurHash3.hash64(new BytesRef(Integer.toString(i))));
+        }
+    }
+
+    private void assertWithinError(final long expected, final long actual, final int precision) {
+        // Allow three standard deviations
+        final double rsd = 1.04 / Math.sqrt(1 << precision);
+        assertEquals(expected, actual, expected * rsd * 3);
+    }
+
+}
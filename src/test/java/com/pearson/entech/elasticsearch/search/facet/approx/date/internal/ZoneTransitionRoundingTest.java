@@ -0,0 +1,131 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.elasticsearch.common.joda.Joda;
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.DateTimeField;
+import org.elasticsearch.common.joda.time.DateTimeZone;
+import org.elasticsearch.common.joda.time.chrono.ISOChronology;
+import org.junit.Test;
+
+public class ZoneTransitionRoundingTest {
+
+    private static final ISOChronology UTC = ISOChronology.getInstanceUTC();
+
+    private static final DateTimeZone[] ZONES = {
+            DateTimeZone.forID("Europe/London"),
+            DateTimeZone.forID("America/New_York"),
+            // Transitions at midnight
+            DateTimeZone.forID("America/Sao_Paulo"),
+            // Half-hour daylight saving
+            DateTimeZone.forID("Australia/Lord_Howe"),
+            DateTimeZone.UTC
+    };
+
+    private static final DateTimeField[] FIELDS = {
+            UTC.hourOfDay(), UTC.dayOfMonth(), UTC.weekOfWeekyear(), UTC.monthOfYear(),
+            Joda.QuarterOfYear.getField(UTC), UTC.yearOfCentury()
+    };
+
+    // 2000 to 2020
+    private static final long FROM = 946684800000L;
+
+    private static final long SPAN = 20 * 365 * 86400000L;
+
+    private final Random _random = new Random(0);
+
+    @Test
+    public void testRandomDatetimesMatchTimeZoneRounding() throws Exception {
+        for(final DateTimeField field : FIELDS) {
+            for(final DateTimeZone preZone : ZONES) {
+                for(final DateTimeZone postZone : ZONES) {
+                    for(final boolean adjust : new boolean[] { false, true }) {
+                        final TimeZoneRounding expected = TimeZoneRounding.builder(field)
+                                .preZone(preZone).postZone(postZone).preZoneAdjustLargeInterval(adjust).build();
+                        final TimeZoneRounding actual = new ZoneTransitionRounding(field, preZone, postZone, adjust, 0, 0, 1.0f);
+                        final String message = field + " " + preZone + " " + postZone + " " + adjust;
+                        for(int i = 0; i < 1000; i++) {
+                            final long millis = FROM + (long) (_random.nextDouble() * SPAN);
+                            assertEquals(message + " at " + millis, expected.calc(millis), actual.calc(millis));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAscendingDatetimesAroundTransitionsMatchTimeZoneRounding() throws Exception {
+        for(final DateTimeField field : FIELDS) {
+            for(final DateTimeZone zone : ZONES) {
+                final TimeZoneRounding expected = TimeZoneRounding.builder(field).preZone(zone).postZone(zone).build();
+                final TimeZoneRounding actual = new ZoneTransitionRounding(field, zone, zone, false, 0, 0, 1.0f);
+                // Every transition in a couple of years, and either side of it
+                long transition = zone.nextTransition(FROM);
+                while(transition > FROM && transition < FROM + 2 * 365 * 86400000L) {
+                    final long[] datetimes = { transition - 3600001, transition - 1, transition, transition + 1, transition + 3600000 };
+                    for(final long millis : datetimes) {
+                        assertEquals(field + " " + zone + " at " + millis, expected.calc(millis), actual.calc(millis));
+                    }
+                    transition = zone.nextTransition(transition);
+                }
+                // A sorted run, as when rounding ordinals
+                final long[] sorted = new long[5000];
+                for(int i = 0; i < sorted.length; i++) {
+                    sorted[i] = FROM + (long) (_random.nextDouble() * 2 * 365 * 86400000L);
+                }
+                Arrays.sort(sorted);
+                for(final long millis : sorted) {
+                    assertEquals(field + " " + zone + " at " + millis, expected.calc(millis), actual.calc(millis));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOffsetsAndFactorMatchTimeZoneRounding() throws Exception {
+        final DateTimeZone zone = DateTimeZone.forID("Europe/London");
+        final TimeZoneRounding expected = TimeZoneRounding.builder(UTC.dayOfMonth())
+                .preZone(zone).postZone(zone).preOffset(-6 * 3600000).postOffset(3000).factor(1000.0f).build();
+        final TimeZoneRounding actual = new ZoneTransitionRounding(UTC.dayOfMonth(), zone, zone, false, -6 * 3600000, 3000, 1000.0f);
+        for(int i = 0; i < 10000; i++) {
+            // Seconds rather than millis, so that the factor doesn't overflow
+            final long seconds = FROM / 1000 + _random.nextInt((int) (SPAN / 1000));
+            assertEquals(Long.toString(seconds), expected.calc(seconds), actual.calc(seconds));
+        }
+    }
+
+    @Test
+    public void testCopyHasItsOwnTable() throws Exception {
+        final DateTimeZone zone = DateTimeZone.forID("Europe/London");
+        final TimeZoneRounding expected = TimeZoneRounding.builder(UTC.dayOfMonth()).preZone(zone).postZone(zone).build();
+        final ZoneTransitionRounding original = new ZoneTransitionRounding(UTC.dayOfMonth(), zone, zone, false, 0, 0, 1.0f);
+        assertEquals(expected.calc(FROM), original.calc(FROM));
+        final ZoneTransitionRounding copy = original.copy();
+        assertEquals(0, copy.size());
+        for(int i = 0; i < 1000; i++) {
+            final long millis = FROM + (long) (_random.nextDouble() * SPAN);
+            assertEquals(Long.toString(millis), expected.calc(millis), copy.calc(millis));
+        }
+        assertTrue(copy.size() > 0);
+    }
+
+    @Test
+    public void testTableStaysBounded() throws Exception {
+        final DateTimeZone zone = DateTimeZone.forID("Europe/London");
+        final TimeZoneRounding expected = TimeZoneRounding.builder(UTC.hourOfDay()).preZone(zone).postZone(zone).build();
+        final ZoneTransitionRounding actual = new ZoneTransitionRounding(UTC.hourOfDay(), zone, zone, false, 0, 0, 1.0f);
+        // Hours over two centuries, and far outside the table's range
+        final long[] datetimes = { 0, -4000000000000L, 4000000000000L, Long.MAX_VALUE / 2, Long.MIN_VALUE / 2 };
+        for(final long millis : datetimes) {
+            assertEquals(Long.toString(millis), expected.calc(millis), actual.calc(millis));
+        }
+        assertTrue(actual.size() <= ZoneTransitionRounding.MAX_ENTRIES);
+    }
+
+}